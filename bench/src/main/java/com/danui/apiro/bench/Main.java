@@ -0,0 +1,35 @@
+package com.danui.apiro.bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks, measuring allocation with the GC profiler, and writes
+ * results as JSON.
+ *
+ * Takes the usual JMH command line options, for example
+ *
+ *     java -jar bench/target/benchmarks.jar RouterBenchmark -p routes=1000
+ *
+ * Results go to jmh-result.json unless -rff names another file.
+ */
+public final class Main {
+
+    private Main() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions cmd = new CommandLineOptions(args);
+        Options options = new OptionsBuilder()
+            .parent(cmd)
+            .addProfiler(GCProfiler.class)
+            .resultFormat(ResultFormatType.JSON)
+            .result(cmd.getResult().orElse("jmh-result.json"))
+            .build();
+        new Runner(options).run();
+    }
+}
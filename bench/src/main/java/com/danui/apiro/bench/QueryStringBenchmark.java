@@ -0,0 +1,124 @@
+package com.danui.apiro.bench;
+
+import com.danui.apiro.QuerySchema;
+import com.danui.apiro.QueryString;
+import com.danui.apiro.QueryStringCache;
+import com.danui.apiro.QueryValues;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Throughput of QueryString.parse, alone and followed by typical getters,
+ * through a QueryStringCache, and of QuerySchema.decode reading the same
+ * parameters.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueryStringBenchmark {
+
+    /**
+     * Query strings, keyed by a short name.
+     */
+    @Param({"search", "encoded", "facets", "garbage"})
+    public String query;
+
+    private static final QuerySchema SCHEMA = new QuerySchema.Builder()
+        .addString("q")
+        .addInt("page", 1)
+        .addLong("limit", 20L)
+        .addString("sort")
+        .addFlag("desc")
+        .build();
+
+    private String qs;
+    private final QueryValues values = new QueryValues();
+    private final QueryStringCache cache = new QueryStringCache(1024, 4096);
+
+    @Setup
+    public void setup() {
+        switch (query) {
+        case "search":
+            qs = "q=running+shoes&page=2&limit=50&sort=price&desc";
+            break;
+        case "encoded":
+            qs = "q=caf%C3%A9+cr%C3%A8me&page=2&limit=50&sort=price"
+                + "&from=2024-01-01T00%3A00%3A00Z&desc";
+            break;
+        case "facets":
+            StringBuilder sb = new StringBuilder("q=shoes&page=1&limit=50");
+            for (int i = 0; i < 200; ++i) {
+                sb.append("&id=").append(100000 + i);
+            }
+            qs = sb.toString();
+            break;
+        case "garbage":
+            qs = "q=%27%20OR%201%3D1--&page=abc&limit=1e9&sort=&desc=maybe";
+            break;
+        default:
+            throw new IllegalArgumentException("Unknown query " + query);
+        }
+    }
+
+    @Benchmark
+    public QueryString parse() {
+        return QueryString.parse(qs);
+    }
+
+    @Benchmark
+    public void parseAndGet(Blackhole bh) throws Exception {
+        QueryString params = QueryString.parse(qs);
+        bh.consume(params.isString("q") ? params.getString("q") : null);
+        bh.consume(params.getInt("page", 1));
+        bh.consume(params.getLong("limit", 20L));
+        bh.consume(params.isString("sort"));
+        bh.consume(params.has("desc"));
+    }
+
+    @Benchmark
+    public void cachedParseAndGet(Blackhole bh) throws Exception {
+        QueryString params = cache.parse(qs);
+        bh.consume(params.isString("q") ? params.getString("q") : null);
+        bh.consume(params.getInt("page", 1));
+        bh.consume(params.getLong("limit", 20L));
+        bh.consume(params.isString("sort"));
+        bh.consume(params.has("desc"));
+    }
+
+    @Benchmark
+    public void parseAndGetArray(Blackhole bh) throws Exception {
+        QueryString params = QueryString.parse(qs);
+        bh.consume(params.getLongArray("id"));
+    }
+
+    @Benchmark
+    public void schemaDecode(Blackhole bh) throws Exception {
+        QueryValues params;
+        try {
+            params = SCHEMA.decode(qs, values);
+        } catch (Exception e) {
+            // Garbage is rejected, as by a real endpoint.
+            bh.consume(e);
+            return;
+        }
+        bh.consume(params.hasValue(0) ? params.getString(0) : null);
+        bh.consume(params.getInt(1));
+        bh.consume(params.getLong(2));
+        bh.consume(params.hasValue(3));
+        bh.consume(params.getBoolean(4));
+    }
+}
@@ -0,0 +1,124 @@
+package com.danui.apiro.bench;
+
+import com.danui.apiro.Endpoint;
+import com.danui.apiro.PathEndpoint;
+import com.danui.apiro.PathParams;
+import com.danui.apiro.Router;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of Router.dispatch.
+ *
+ * Routes look like "/r17/items", "/r17/items/([^/]+)" or
+ * "/r17/items/(?&lt;id&gt;[^/]+)" depending on style. The request hits the
+ * first bound route, the last bound route, or misses every route. Endpoints
+ * are either Matcher based Endpoints or PathEndpoints, and do nothing.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RouterBenchmark {
+
+    @Param({"10", "100", "1000", "10000"})
+    public int routes;
+
+    @Param({"first", "last", "miss"})
+    public String hit;
+
+    @Param({"literal", "positional", "named"})
+    public String style;
+
+    @Param({"SCAN", "TREE", "AUTOMATON"})
+    public Router.Mode mode;
+
+    @Param({"Endpoint", "PathEndpoint"})
+    public String endpoint;
+
+    private Router router;
+    private HttpServletRequest req;
+    private HttpServletResponse res;
+
+    @Setup
+    public void setup() {
+        String suffix;
+        String value;
+        switch (style) {
+        case "literal":
+            suffix = "";
+            value = "";
+            break;
+        case "positional":
+            suffix = "/([^/]+)";
+            value = "/42";
+            break;
+        case "named":
+            suffix = "/(?<id>[^/]+)";
+            value = "/42";
+            break;
+        default:
+            throw new IllegalArgumentException("Unknown style " + style);
+        }
+        router = new Router(mode);
+        NoOp noOp = new NoOp();
+        for (int i = 0; i < routes; ++i) {
+            String regex = "/r" + i + "/items" + suffix;
+            if (endpoint.equals("PathEndpoint")) {
+                router.on(regex, (PathEndpoint) noOp);
+            } else {
+                router.on(regex, (Endpoint) noOp);
+            }
+        }
+        String path;
+        switch (hit) {
+        case "first":
+            path = "/r0/items" + value;
+            break;
+        case "last":
+            path = "/r" + (routes - 1) + "/items" + value;
+            break;
+        case "miss":
+            path = "/missing/items" + value;
+            break;
+        default:
+            throw new IllegalArgumentException("Unknown hit " + hit);
+        }
+        req = Servlets.request("GET", path, null);
+        res = Servlets.response();
+        // Build the route index outside of the measurement.
+        router.dispatch(req, res);
+    }
+
+    @Benchmark
+    public boolean dispatch() {
+        return router.dispatch(req, res);
+    }
+
+    private static final class NoOp implements Endpoint, PathEndpoint {
+        @Override
+        public void handle(HttpServletRequest req, HttpServletResponse res,
+            Matcher matcher) {
+        }
+
+        @Override
+        public void handle(HttpServletRequest req, HttpServletResponse res,
+            PathParams params) {
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.danui.apiro.bench;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * In-memory stand-ins for servlet requests and responses.
+ *
+ * Only the request line is answered. Every other method does nothing and
+ * returns null, false or zero, so the stand-ins add next to nothing to the
+ * time or allocation being measured.
+ */
+final class Servlets {
+
+    private Servlets() {
+    }
+
+    static HttpServletRequest request(String method, String pathInfo,
+        String queryString) {
+
+        return (HttpServletRequest) Proxy.newProxyInstance(
+            Servlets.class.getClassLoader(),
+            new Class<?>[] {HttpServletRequest.class},
+            new Stub(method, pathInfo, queryString));
+    }
+
+    static HttpServletResponse response() {
+        return (HttpServletResponse) Proxy.newProxyInstance(
+            Servlets.class.getClassLoader(),
+            new Class<?>[] {HttpServletResponse.class},
+            new Stub(null, null, null));
+    }
+
+    private static final class Stub implements InvocationHandler {
+        private final String method;
+        private final String pathInfo;
+        private final String queryString;
+
+        Stub(String method, String pathInfo, String queryString) {
+            this.method = method;
+            this.pathInfo = pathInfo;
+            this.queryString = queryString;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method m, Object[] args) {
+            switch (m.getName()) {
+            case "getMethod":
+                return method;
+            case "getPathInfo":
+                return pathInfo;
+            case "getQueryString":
+                return queryString;
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "equals":
+                return proxy == args[0];
+            case "toString":
+                return method + " " + pathInfo;
+            default:
+                return defaultValue(m.getReturnType());
+            }
+        }
+
+        private static Object defaultValue(Class<?> type) {
+            if (type == boolean.class) {
+                return Boolean.FALSE;
+            }
+            if (type == int.class) {
+                return 0;
+            }
+            if (type == long.class) {
+                return 0L;
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.danui.apiro;
+
+import java.io.IOException;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Servlet that routes requests of every HTTP method with one router.
+ *
+ * Routes are bound with their method, for example in init().
+ *
+ *     Router routes = getRouter();
+ *     routes.on(HttpMethod.GET, "/doc/?", new ListDocs());
+ *     routes.on(HttpMethod.POST, "/doc/?", new CreateDoc());
+ *
+ * The path is matched once, whatever the method. Paths that match no route
+ * get 404 Not Found, and paths whose route is not bound to the request's
+ * method get 405 Method Not Allowed, with an Allow header.
+ *
+ * @author Wong H'sien Jin
+ */
+public class ApiroServlet extends HttpServlet {
+
+    private static final long serialVersionUID = 1L;
+
+    private final transient Router router;
+
+    /**
+     * Create a servlet that routes in SCAN mode.
+     */
+    public ApiroServlet() {
+        this(new Router());
+    }
+
+    /**
+     * Create a servlet.
+     *
+     * @param router Router to dispatch requests with.
+     */
+    public ApiroServlet(Router router) {
+        if (router == null) {
+            throw new IllegalArgumentException("router is null");
+        }
+        this.router = router;
+    }
+
+    /**
+     * Router that requests are dispatched with, for binding routes and
+     * configuring it.
+     */
+    public Router getRouter() {
+        return router;
+    }
+
+    @Override
+    protected void service(HttpServletRequest req, HttpServletResponse res)
+        throws ServletException, IOException {
+
+        if (!router.dispatch(req, res)) {
+            res.sendError(HttpServletResponse.SC_NOT_FOUND);
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package com.danui.apiro;
+
+import java.util.concurrent.Executor;
+
+/**
+ * How a router runs AsyncEndpoints.
+ */
+class AsyncConfig {
+
+    static final AsyncConfig DEFAULT = new AsyncConfig(null, -1);
+
+    // Runs endpoints, or null to use AsyncContext.start().
+    final Executor executor;
+    // Async timeout in milliseconds, or -1 for the container's default.
+    final long timeout;
+
+    AsyncConfig(Executor executor, long timeout) {
+        this.executor = executor;
+        this.timeout = timeout;
+    }
+}
@@ -0,0 +1,159 @@
+package com.danui.apiro;
+
+import java.io.IOException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Runs an AsyncEndpoint for one request, and completes the request.
+ *
+ * The request is completed exactly once: when the endpoint returns, when it
+ * fails, or when the request times out, whichever comes first. The endpoint
+ * is not run at all if the request timed out, or was rejected, before the
+ * task started, as the request and response may by then belong to another
+ * request. A concurrency limit slot, if any, is held until the request is
+ * completed.
+ */
+class AsyncDispatch implements Runnable, AsyncListener {
+
+    private final AsyncContext context;
+    private final HttpServletRequest req;
+    private final HttpServletResponse res;
+    private final AsyncEndpoint endpoint;
+    private final PathParams params;
+    private final ConcurrencyLimit.Permit permit;
+    private final AtomicBoolean started = new AtomicBoolean();
+    private final AtomicBoolean done = new AtomicBoolean();
+
+    private AsyncDispatch(AsyncContext context, HttpServletRequest req,
+        HttpServletResponse res, AsyncEndpoint endpoint, PathParams params,
+        ConcurrencyLimit.Permit permit) {
+
+        this.context = context;
+        this.req = req;
+        this.res = res;
+        this.endpoint = endpoint;
+        this.params = params;
+        this.permit = permit;
+    }
+
+    /**
+     * Start async processing of a request and hand it to the endpoint.
+     *
+     * Requests that do not support async processing, for example because a
+     * filter does not, are handled on the calling thread.
+     *
+     * @param permit Concurrency limit slot to release when the request
+     *     completes, or null.
+     */
+    static void start(HttpServletRequest req, HttpServletResponse res,
+        AsyncEndpoint endpoint, PathParams params, AsyncConfig config,
+        ConcurrencyLimit.Permit permit) {
+
+        if (!req.isAsyncSupported()) {
+            new AsyncDispatch(null, req, res, endpoint, params, permit)
+                .run();
+            return;
+        }
+        AsyncContext context = req.startAsync(req, res);
+        if (config.timeout >= 0) {
+            context.setTimeout(config.timeout);
+        }
+        AsyncDispatch task = new AsyncDispatch(context, req, res, endpoint,
+            params, permit);
+        context.addListener(task);
+        try {
+            if (config.executor == null) {
+                context.start(task);
+            } else {
+                config.executor.execute(task);
+            }
+        } catch (RejectedExecutionException e) {
+            task.fail(HttpServletResponse.SC_SERVICE_UNAVAILABLE, null);
+        }
+    }
+
+    @Override
+    public void run() {
+        if (!started.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            endpoint.handle(req, res, params);
+        } catch (Throwable e) {
+            fail(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e);
+            if (e instanceof Error) {
+                throw (Error) e;
+            }
+            return;
+        }
+        if (context != null && done.compareAndSet(false, true)) {
+            context.complete();
+        }
+        release();
+    }
+
+    @Override
+    public void onTimeout(AsyncEvent event) {
+        fail(HttpServletResponse.SC_SERVICE_UNAVAILABLE, null);
+    }
+
+    @Override
+    public void onError(AsyncEvent event) {
+        fail(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+            event.getThrowable());
+    }
+
+    @Override
+    public void onComplete(AsyncEvent event) {
+        done.set(true);
+        release();
+    }
+
+    @Override
+    public void onStartAsync(AsyncEvent event) {
+    }
+
+    /**
+     * Send an error, unless the request is already complete or the response
+     * is committed, and complete the request.
+     */
+    private void fail(int status, Throwable cause) {
+        // Keep a task that has not started from running later.
+        started.set(true);
+        if (cause != null) {
+            ServletContext servletContext = req.getServletContext();
+            if (servletContext != null) {
+                servletContext.log("Async endpoint failed for "
+                    + req.getPathInfo(), cause);
+            }
+        }
+        if (!done.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            if (!res.isCommitted()) {
+                res.sendError(status);
+            }
+        } catch (IOException | IllegalStateException e) {
+            // The client has gone, or the container has given up on the
+            // request. Either way there is no one left to tell.
+        }
+        if (context != null) {
+            context.complete();
+        }
+        release();
+    }
+
+    private void release() {
+        if (permit != null) {
+            permit.release();
+        }
+    }
+}
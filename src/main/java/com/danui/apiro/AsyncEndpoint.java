@@ -0,0 +1,31 @@
+package com.danui.apiro;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Handles matched requests asynchronously, off the container's thread.
+ *
+ * Router starts async processing, runs the endpoint on its async executor,
+ * and completes the request when handle() returns. If handle() throws, the
+ * request fails with 500 Internal Server Error.
+ *
+ * @author Wong H'sien Jin
+ */
+public interface AsyncEndpoint {
+    /**
+     * Handle a request.
+     *
+     * @param req Request
+     *
+     * @param res Response
+     *
+     * @param params Path parameters, i.e. the groups of the regex that
+     *     matched req.getPathInfo(). Unlike those given to a PathEndpoint,
+     *     they belong to this request alone.
+     *
+     * @throws Exception when the request cannot be handled.
+     */
+    public void handle(HttpServletRequest req, HttpServletResponse res,
+        PathParams params) throws Exception;
+}
@@ -0,0 +1,75 @@
+package com.danui.apiro;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executors suited to running AsyncEndpoints.
+ *
+ * Any Executor will do, such as a ForkJoinPool. Requests that an executor
+ * rejects fail with 503 Service Unavailable.
+ *
+ * @author Wong H'sien Jin
+ */
+public final class AsyncExecutors {
+
+    private AsyncExecutors() {
+    }
+
+    /**
+     * Executor that runs each task on a new virtual thread.
+     *
+     * @return Executor, or null if the JVM does not have virtual threads.
+     */
+    public static ExecutorService virtualThreads() {
+        try {
+            return (ExecutorService) java.util.concurrent.Executors.class
+                .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Executor of virtual threads, where the JVM has them, or else a bounded
+     * pool.
+     *
+     * @param threads Number of threads of the bounded pool.
+     *
+     * @param queueSize Number of tasks the bounded pool may queue.
+     */
+    public static ExecutorService virtualThreadsOrBounded(int threads,
+        int queueSize) {
+
+        ExecutorService result = virtualThreads();
+        return (result != null) ? result : bounded(threads, queueSize);
+    }
+
+    /**
+     * Fixed pool of daemon threads with a bounded queue. Tasks beyond the
+     * queue are rejected, rather than left to pile up.
+     *
+     * @param threads Number of threads.
+     *
+     * @param queueSize Number of tasks that may wait for a thread.
+     */
+    public static ExecutorService bounded(int threads, int queueSize) {
+        return new ThreadPoolExecutor(threads, threads, 0,
+            TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(queueSize),
+            new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread result = new Thread(r,
+                        "apiro-async-" + count.incrementAndGet());
+                    result.setDaemon(true);
+                    return result;
+                }
+            });
+    }
+}
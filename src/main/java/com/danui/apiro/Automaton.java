@@ -0,0 +1,416 @@
+package com.danui.apiro;
+
+import java.util.Arrays;
+
+/**
+ * Single automaton that matches a path against many regexes at once.
+ *
+ * The regexes are compiled into one program, tried in order as alternatives of
+ * a top level alternation, and the program is run as a tagged NFA (a Pike VM).
+ * The path is scanned once, whatever the number of regexes, and the result is
+ * the first regex that matches the whole path along with its capture group
+ * offsets. Thread priorities follow java.util.regex's backtracking order, so
+ * the groups are the ones a Matcher would report, apart from the cases
+ * described by RegexParser.groupsLikeMatcher.
+ */
+class Automaton {
+
+    /**
+     * Largest program, in instructions, that a single regex may compile to.
+     */
+    private static final int MAX_REGEX_SIZE = 10000;
+
+    private static final int CHAR = 0;
+    private static final int SET = 1;
+    private static final int SPLIT = 2;
+    private static final int JMP = 3;
+    private static final int SAVE = 4;
+    private static final int MATCH = 5;
+    private static final int FORK = 6;
+
+    // Instructions are op[pc] with operands x[pc] and y[pc]. SPLIT prefers x
+    // over y. FORK prefers forks[x[pc]] over forks[x[pc]+1] and so on up to
+    // forks[y[pc]-1]. MATCH reports regex number x[pc].
+    private int[] op = new int[64];
+    private int[] x = new int[64];
+    private int[] y = new int[64];
+    private RegexParser.CharSet[] sets = new RegexParser.CharSet[64];
+    private int size;
+
+    private final int[] forks;
+    // Entry point of each regex, or -1 if it is not covered.
+    private final int[] starts;
+    private final boolean[] covered;
+    private final boolean[] exactGroups;
+    private final int slots;
+    private final ThreadLocal<State> state = new ThreadLocal<State>() {
+        @Override
+        protected State initialValue() {
+            return new State();
+        }
+    };
+
+    /**
+     * Compile regexes.
+     *
+     * @param regexes Parsed regexes. Null entries, and regexes that would
+     *     compile to too large a program, are left out of the automaton.
+     */
+    Automaton(RegexParser.Node[] regexes) {
+        covered = new boolean[regexes.length];
+        exactGroups = new boolean[regexes.length];
+        starts = new int[regexes.length];
+        Arrays.fill(starts, -1);
+        int[] entries = new int[regexes.length];
+        int numEntries = 0;
+        int groups = 0;
+        emit(FORK, 0, 0);
+        for (int i = 0; i < regexes.length; ++i) {
+            if (regexes[i] == null || sizeOf(regexes[i]) > MAX_REGEX_SIZE) {
+                continue;
+            }
+            covered[i] = true;
+            exactGroups[i] = RegexParser.groupsLikeMatcher(regexes[i]);
+            starts[i] = size;
+            entries[numEntries++] = size;
+            emit(SAVE, 0, 0);
+            compile(regexes[i]);
+            emit(SAVE, 1, 0);
+            emit(MATCH, i, 0);
+            groups = Math.max(groups, RegexParser.groupCount(regexes[i]));
+        }
+        forks = Arrays.copyOf(entries, numEntries);
+        y[0] = numEntries;
+        slots = 2 * (groups + 1);
+        op = Arrays.copyOf(op, size);
+        x = Arrays.copyOf(x, size);
+        y = Arrays.copyOf(y, size);
+        sets = Arrays.copyOf(sets, size);
+    }
+
+    /**
+     * Is a regex part of the automaton?
+     */
+    boolean covers(int regex) {
+        return covered[regex];
+    }
+
+    /**
+     * Largest number of groups in any covered regex.
+     */
+    int groupCount() {
+        return slots / 2 - 1;
+    }
+
+    /**
+     * Are a covered regex's groups reported as a Matcher would?
+     */
+    boolean hasExactGroups(int regex) {
+        return exactGroups[regex];
+    }
+
+    /**
+     * Match a whole path.
+     *
+     * @param path Path to match.
+     *
+     * @param groups Receives the start and end offsets of the matching
+     *     regex's groups, with group 0 being the whole path. Unmatched groups
+     *     have offsets of -1. Groups beyond the array's length are not
+     *     reported. May be null.
+     *
+     * @return Number of the first covered regex that matches, or -1 if none
+     *     match.
+     */
+    int match(String path, int[] groups) {
+        return match(path, groups, null, 0);
+    }
+
+    /**
+     * Match a whole path against some of the regexes.
+     *
+     * Regexes that are left out cost nothing, whereas each regex that is
+     * tried adds a thread at every position until it fails.
+     *
+     * @param seeds Numbers of the regexes to try, in ascending order, or null
+     *     to try all of them. Regexes that are not covered are skipped.
+     *
+     * @param numSeeds Number of entries of seeds to use.
+     *
+     * @see #match(String, int[])
+     */
+    int match(String path, int[] groups, int[] seeds, int numSeeds) {
+        State s = state.get();
+        Threads current = s.current;
+        Threads next = s.next;
+        current.size = 0;
+        Arrays.fill(s.caps, -1);
+        s.advance();
+        if (seeds == null) {
+            add(s, current, 0, 0);
+        } else {
+            // Adding each regex in turn keeps their priority order.
+            for (int i = 0; i < numSeeds; ++i) {
+                int start = starts[seeds[i]];
+                if (start >= 0) {
+                    add(s, current, start, 0);
+                }
+            }
+        }
+        int len = path.length();
+        int pos = 0;
+        while (current.size > 0) {
+            int c = -1;
+            int end = pos;
+            if (pos < len) {
+                c = path.codePointAt(pos);
+                end = pos + Character.charCount(c);
+            }
+            s.advance();
+            next.size = 0;
+            for (int t = 0; t < current.size; ++t) {
+                int pc = current.pcs[t];
+                switch (op[pc]) {
+                case MATCH:
+                    if (pos == len) {
+                        if (groups != null) {
+                            System.arraycopy(current.caps, t * slots, groups,
+                                0, Math.min(slots, groups.length));
+                            if (groups.length > slots) {
+                                Arrays.fill(groups, slots, groups.length, -1);
+                            }
+                        }
+                        return x[pc];
+                    }
+                    break;
+                case CHAR:
+                    if (c == x[pc]) {
+                        System.arraycopy(current.caps, t * slots, s.caps, 0,
+                            slots);
+                        add(s, next, pc + 1, end);
+                    }
+                    break;
+                default:
+                    if (c >= 0 && sets[pc].contains(c)) {
+                        System.arraycopy(current.caps, t * slots, s.caps, 0,
+                            slots);
+                        add(s, next, pc + 1, end);
+                    }
+                    break;
+                }
+            }
+            if (pos == len) {
+                break;
+            }
+            Threads swap = current;
+            current = next;
+            next = swap;
+            pos = end;
+        }
+        return -1;
+    }
+
+    /**
+     * Add a thread at pc, and every thread reachable from it without
+     * consuming input, in priority order.
+     *
+     * The thread's captures are in s.caps, and are left unchanged on return.
+     */
+    private void add(State s, Threads threads, int pc, int pos) {
+        int[] caps = s.caps;
+        int sp = 0;
+        s.stack[sp++] = pc;
+        while (sp > 0) {
+            pc = s.stack[--sp];
+            if (pc < 0) {
+                // Restore a capture slot saved below.
+                int slot = -pc - 1;
+                caps[slot] = s.stack[--sp];
+                continue;
+            }
+            if (s.marks[pc] == s.generation) {
+                continue;
+            }
+            s.marks[pc] = s.generation;
+            switch (op[pc]) {
+            case JMP:
+                s.stack[sp++] = x[pc];
+                break;
+            case SPLIT:
+                s.stack[sp++] = y[pc];
+                s.stack[sp++] = x[pc];
+                break;
+            case FORK:
+                for (int i = y[pc] - 1; i >= x[pc]; --i) {
+                    s.stack[sp++] = forks[i];
+                }
+                break;
+            case SAVE:
+                s.stack[sp++] = caps[x[pc]];
+                s.stack[sp++] = -x[pc] - 1;
+                s.stack[sp++] = pc + 1;
+                caps[x[pc]] = pos;
+                break;
+            default:
+                threads.add(pc, caps);
+                break;
+            }
+        }
+    }
+
+    private int emit(int op, int x, int y) {
+        if (size == this.op.length) {
+            int capacity = size * 2;
+            this.op = Arrays.copyOf(this.op, capacity);
+            this.x = Arrays.copyOf(this.x, capacity);
+            this.y = Arrays.copyOf(this.y, capacity);
+            sets = Arrays.copyOf(sets, capacity);
+        }
+        this.op[size] = op;
+        this.x[size] = x;
+        this.y[size] = y;
+        return size++;
+    }
+
+    private void compile(RegexParser.Node node) {
+        if (node instanceof RegexParser.CharSet) {
+            RegexParser.CharSet set = (RegexParser.CharSet) node;
+            if (!set.negated && set.ranges.length == 2
+                && set.ranges[0] == set.ranges[1]) {
+                emit(CHAR, set.ranges[0], 0);
+            } else {
+                int pc = emit(SET, 0, 0);
+                sets[pc] = set;
+            }
+        } else if (node instanceof RegexParser.Concat) {
+            for (RegexParser.Node i : ((RegexParser.Concat) node).items) {
+                compile(i);
+            }
+        } else if (node instanceof RegexParser.Alternation) {
+            compileAlternation((RegexParser.Alternation) node);
+        } else if (node instanceof RegexParser.Group) {
+            RegexParser.Group group = (RegexParser.Group) node;
+            emit(SAVE, 2 * group.index, 0);
+            compile(group.body);
+            emit(SAVE, 2 * group.index + 1, 0);
+        } else if (node instanceof RegexParser.Repeat) {
+            compileRepeat((RegexParser.Repeat) node);
+        }
+    }
+
+    private void compileAlternation(RegexParser.Alternation alternation) {
+        int n = alternation.items.size();
+        int[] jumps = new int[n - 1];
+        for (int i = 0; i < n - 1; ++i) {
+            int split = emit(SPLIT, size + 1, 0);
+            compile(alternation.items.get(i));
+            jumps[i] = emit(JMP, 0, 0);
+            y[split] = size;
+        }
+        compile(alternation.items.get(n - 1));
+        for (int jump : jumps) {
+            x[jump] = size;
+        }
+    }
+
+    private void compileRepeat(RegexParser.Repeat repeat) {
+        for (int i = 0; i < repeat.min; ++i) {
+            compile(repeat.body);
+        }
+        if (repeat.max < 0) {
+            int split = emit(SPLIT, 0, 0);
+            compile(repeat.body);
+            emit(JMP, split, 0);
+            prefer(split, split + 1, size, repeat.greedy);
+            return;
+        }
+        int optional = repeat.max - repeat.min;
+        int[] splits = new int[optional];
+        for (int i = 0; i < optional; ++i) {
+            splits[i] = emit(SPLIT, 0, 0);
+            compile(repeat.body);
+        }
+        for (int split : splits) {
+            prefer(split, split + 1, size, repeat.greedy);
+        }
+    }
+
+    /**
+     * Point a SPLIT at the body of a repetition and at what follows it.
+     */
+    private void prefer(int split, int body, int out, boolean greedy) {
+        x[split] = greedy ? body : out;
+        y[split] = greedy ? out : body;
+    }
+
+    /**
+     * Number of instructions a syntax tree compiles to.
+     */
+    private static long sizeOf(RegexParser.Node node) {
+        long result = 0;
+        if (node instanceof RegexParser.CharSet) {
+            result = 1;
+        } else if (node instanceof RegexParser.Concat) {
+            for (RegexParser.Node i : ((RegexParser.Concat) node).items) {
+                result += sizeOf(i);
+            }
+        } else if (node instanceof RegexParser.Alternation) {
+            for (RegexParser.Node i : ((RegexParser.Alternation) node).items) {
+                result += sizeOf(i) + 2;
+            }
+        } else if (node instanceof RegexParser.Group) {
+            result = sizeOf(((RegexParser.Group) node).body) + 2;
+        } else if (node instanceof RegexParser.Repeat) {
+            RegexParser.Repeat repeat = (RegexParser.Repeat) node;
+            long body = sizeOf(repeat.body);
+            result = repeat.min * body;
+            if (repeat.max < 0) {
+                result += body + 2;
+            } else {
+                result += (repeat.max - repeat.min) * (body + 1);
+            }
+        }
+        return Math.min(result, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Threads of the VM at one input position, in priority order.
+     */
+    private class Threads {
+        final int[] pcs = new int[op.length];
+        int[] caps = new int[slots * 8];
+        int size;
+
+        void add(int pc, int[] threadCaps) {
+            if ((size + 1) * slots > caps.length) {
+                caps = Arrays.copyOf(caps, caps.length * 2);
+            }
+            pcs[size] = pc;
+            System.arraycopy(threadCaps, 0, caps, size * slots, slots);
+            size += 1;
+        }
+    }
+
+    /**
+     * Per thread scratch space.
+     */
+    private class State {
+        final Threads current = new Threads();
+        final Threads next = new Threads();
+        final int[] caps = new int[slots];
+        final int[] marks = new int[op.length];
+        final int[] stack = new int[3 * op.length + forks.length + 1];
+        int generation;
+
+        /**
+         * Start a new step, so that no instruction has been visited.
+         */
+        void advance() {
+            generation += 1;
+            if (generation == 0) {
+                Arrays.fill(marks, 0);
+                generation = 1;
+            }
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.danui.apiro;
+
+/**
+ * Matches all routes at once with a single Automaton.
+ *
+ * Only routes whose literal prefix is a prefix of the path are run in the
+ * automaton, so that routes which cannot match do not each cost a thread at
+ * every position of the path. Routes whose regexes use syntax the automaton
+ * does not support fall back to regex matching. If the endpoint needs a
+ * Matcher, it is produced by matching the path against the winning route's
+ * regex alone.
+ */
+class AutomatonIndex implements RouteIndex {
+
+    private final Automaton automaton;
+    private final Fallbacks fallbacks;
+    private final PrefixTrie trie;
+    private final ThreadLocal<int[]> seeds;
+
+    AutomatonIndex(Route[] routes) {
+        RegexParser.Node[] regexes = new RegexParser.Node[routes.length];
+        for (int i = 0; i < routes.length; ++i) {
+            regexes[i] = RegexParser.parse(routes[i].regex());
+        }
+        this.automaton = new Automaton(regexes);
+        boolean[] covered = new boolean[routes.length];
+        for (int i = 0; i < routes.length; ++i) {
+            covered[i] = automaton.covers(i);
+        }
+        this.fallbacks = new Fallbacks(routes, covered);
+        this.trie = new PrefixTrie(routes);
+        final int size = routes.length;
+        this.seeds = new ThreadLocal<int[]>() {
+            @Override
+            protected int[] initialValue() {
+                return new int[size];
+            }
+        };
+    }
+
+    @Override
+    public boolean find(String path, RouteMatch match) {
+        int[] seeds = this.seeds.get();
+        int numSeeds = 0;
+        PrefixTrie.Candidates candidates = trie.candidates(path);
+        for (int i = candidates.next(); i >= 0; i = candidates.next()) {
+            seeds[numSeeds++] = i;
+        }
+        int best = -1;
+        if (numSeeds > 0) {
+            best = automaton.match(path,
+                match.groupBuffer(automaton.groupCount()), seeds, numSeeds);
+        }
+        return fallbacks.find(path, best,
+            best >= 0 && automaton.hasExactGroups(best), match);
+    }
+}
@@ -0,0 +1,299 @@
+package com.danui.apiro;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * Response that holds back the body an endpoint writes, and records the
+ * status and headers it sets, so that they can be cached and replayed.
+ *
+ * Status and headers are passed on to the response as they are set. Errors
+ * and redirects are passed on too, and leave nothing to cache. Responses
+ * that set cookies or forbid shared caching are recorded, but must not be
+ * sent to other clients.
+ */
+class BufferedResponse extends HttpServletResponseWrapper {
+
+    private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+    // Headers by lower case name, in the order first set.
+    private final Map<String,Header> headers = new LinkedHashMap<>();
+    private int status = SC_OK;
+    private boolean passedOn;
+    private boolean setsCookie;
+    private ServletOutputStream out;
+    private PrintWriter writer;
+
+    BufferedResponse(HttpServletResponse res) {
+        super(res);
+    }
+
+    /**
+     * Request for an endpoint whose response is buffered. It hides the
+     * container's sendfile support, so that the endpoint writes its body
+     * here rather than leaving it to the container, which would leave an
+     * empty body to cache.
+     */
+    static HttpServletRequest request(HttpServletRequest req) {
+        return new HttpServletRequestWrapper(req) {
+            @Override
+            public Object getAttribute(String name) {
+                if (FileEndpoint.SENDFILE_SUPPORT.equals(name)) {
+                    return null;
+                }
+                return super.getAttribute(name);
+            }
+        };
+    }
+
+    /**
+     * Is the body still held here? False after an error or redirect.
+     */
+    boolean isBuffered() {
+        return !passedOn;
+    }
+
+    /**
+     * Is the response meant for this client only? True if it sets a
+     * cookie, or its Cache-Control has no-store or private.
+     */
+    boolean isPrivate() {
+        if (setsCookie || headers.containsKey("set-cookie")) {
+            return true;
+        }
+        Header cacheControl = headers.get("cache-control");
+        if (cacheControl != null) {
+            for (String i : cacheControl.values) {
+                String value = i.toLowerCase(Locale.ROOT);
+                if (value.contains("no-store") || value.contains("private")) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Status, headers and body recorded so far.
+     */
+    SavedResponse save() {
+        if (writer != null) {
+            writer.flush();
+        }
+        return new SavedResponse(status, getContentType(), headers(),
+            body.toByteArray());
+    }
+
+    private String[] headers() {
+        List<String> result = new ArrayList<>();
+        for (Header i : headers.values()) {
+            for (String value : i.values) {
+                result.add(i.name);
+                result.add(value);
+            }
+        }
+        return result.toArray(new String[result.size()]);
+    }
+
+    @Override
+    public void setStatus(int sc) {
+        status = sc;
+        super.setStatus(sc);
+    }
+
+    @Override
+    @Deprecated
+    public void setStatus(int sc, String sm) {
+        setStatus(sc);
+    }
+
+    @Override
+    public void sendError(int sc) throws IOException {
+        passedOn = true;
+        super.sendError(sc);
+    }
+
+    @Override
+    public void sendError(int sc, String msg) throws IOException {
+        passedOn = true;
+        super.sendError(sc, msg);
+    }
+
+    @Override
+    public void sendRedirect(String location) throws IOException {
+        passedOn = true;
+        super.sendRedirect(location);
+    }
+
+    @Override
+    public void addCookie(Cookie cookie) {
+        setsCookie = true;
+        super.addCookie(cookie);
+    }
+
+    @Override
+    public void setHeader(String name, String value) {
+        record(name, value, false);
+        super.setHeader(name, value);
+    }
+
+    @Override
+    public void addHeader(String name, String value) {
+        record(name, value, true);
+        super.addHeader(name, value);
+    }
+
+    @Override
+    public void setIntHeader(String name, int value) {
+        record(name, String.valueOf(value), false);
+        super.setIntHeader(name, value);
+    }
+
+    @Override
+    public void addIntHeader(String name, int value) {
+        record(name, String.valueOf(value), true);
+        super.addIntHeader(name, value);
+    }
+
+    @Override
+    public void setDateHeader(String name, long date) {
+        record(name, formatDate(date), false);
+        super.setDateHeader(name, date);
+    }
+
+    @Override
+    public void addDateHeader(String name, long date) {
+        record(name, formatDate(date), true);
+        super.addDateHeader(name, date);
+    }
+
+    @Override
+    public void setContentLength(int len) {
+        // Set from the buffered body instead.
+    }
+
+    @Override
+    public void setContentLengthLong(long len) {
+        // Set from the buffered body instead.
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() {
+        if (writer != null) {
+            throw new IllegalStateException("getWriter() already called");
+        }
+        if (out == null) {
+            out = new BufferStream();
+        }
+        return out;
+    }
+
+    @Override
+    public PrintWriter getWriter() throws UnsupportedEncodingException {
+        if (out != null) {
+            throw new IllegalStateException(
+                "getOutputStream() already called");
+        }
+        if (writer == null) {
+            String charset = getCharacterEncoding();
+            writer = new PrintWriter(new OutputStreamWriter(body,
+                (charset != null) ? charset : "ISO-8859-1"));
+        }
+        return writer;
+    }
+
+    @Override
+    public void flushBuffer() {
+        // Nothing is sent until the endpoint returns.
+        if (writer != null) {
+            writer.flush();
+        }
+    }
+
+    @Override
+    public void resetBuffer() {
+        if (writer != null) {
+            writer.flush();
+        }
+        body.reset();
+    }
+
+    @Override
+    public void reset() {
+        super.reset();
+        resetBuffer();
+        headers.clear();
+        status = SC_OK;
+    }
+
+    private void record(String name, String value, boolean add) {
+        String key = name.toLowerCase(Locale.ROOT);
+        Header header = headers.get(key);
+        if (header == null || !add) {
+            header = new Header(name);
+            headers.put(key, header);
+        }
+        header.values.add(value);
+    }
+
+    private static String formatDate(long date) {
+        SimpleDateFormat format = new SimpleDateFormat(
+            "EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format.format(new Date(date));
+    }
+
+    private static final class Header {
+        final String name;
+        final List<String> values = new ArrayList<>(1);
+
+        Header(String name) {
+            this.name = name;
+        }
+    }
+
+    private final class BufferStream extends ServletOutputStream {
+        @Override
+        public void write(int b) {
+            body.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            body.write(b, off, len);
+        }
+
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+
+        /**
+         * Refused, as the body is taken when the endpoint returns, so bytes
+         * written later by a listener would be lost rather than cached.
+         * Endpoints that write asynchronously must not be wrapped.
+         */
+        @Override
+        public void setWriteListener(WriteListener listener) {
+            throw new UnsupportedOperationException(
+                "Buffered responses are written on return");
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package com.danui.apiro;
+
+/**
+ * Size and counters of a cache, such as one that a router keeps per route
+ * table.
+ */
+class CacheConfig {
+    final int maxEntries;
+    final StripedCounter hits = new StripedCounter();
+    final StripedCounter misses = new StripedCounter();
+
+    CacheConfig(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    CacheStats snapshot() {
+        return new CacheStats(hits.sum(), misses.sum());
+    }
+}
@@ -0,0 +1,44 @@
+package com.danui.apiro;
+
+/**
+ * Hits and misses of a cache at some point in time.
+ *
+ * @author Wong H'sien Jin
+ */
+public final class CacheStats {
+
+    private final long hits;
+    private final long misses;
+
+    CacheStats(long hits, long misses) {
+        this.hits = hits;
+        this.misses = misses;
+    }
+
+    /**
+     * Number of lookups answered by the cache.
+     */
+    public long hits() {
+        return hits;
+    }
+
+    /**
+     * Number of lookups the cache could not answer.
+     */
+    public long misses() {
+        return misses;
+    }
+
+    /**
+     * Fraction of lookups answered by the cache, or 0 if there were none.
+     */
+    public double hitRate() {
+        long lookups = hits + misses;
+        return (lookups == 0) ? 0 : (double) hits / lookups;
+    }
+
+    @Override
+    public String toString() {
+        return "hits=" + hits + " misses=" + misses;
+    }
+}
@@ -0,0 +1,14 @@
+package com.danui.apiro;
+
+/**
+ * Route that a path matched, with the offsets of its groups in the path.
+ */
+class CachedMatch {
+    final Route route;
+    final int[] groups;
+
+    CachedMatch(Route route, int[] groups) {
+        this.route = route;
+        this.groups = groups;
+    }
+}
@@ -0,0 +1,362 @@
+package com.danui.apiro;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Endpoint that caches the responses of another endpoint, and answers
+ * conditional GETs.
+ *
+ *     static final CachingEndpoint DOCS =
+ *         new CachingEndpoint.Builder(new GetDoc())
+ *             .ttl(30, TimeUnit.SECONDS)
+ *             .maxBytes(64 << 20)
+ *             .queryKeys("lang")
+ *             .build();
+ *
+ *     router.on(HttpMethod.GET, "/doc/([^/]+)/?", DOCS);
+ *
+ * Responses are cached by route, path parameters and the values of the
+ * chosen query parameters. Other query parameters and request headers are
+ * ignored, so endpoints whose responses depend on them must not be cached,
+ * or must list them. Only GET requests that end with 200 OK are cached, and
+ * not if they set a cookie or their Cache-Control has no-store or private.
+ * HEAD requests are answered from the cache but do not fill it. Requests
+ * whose query string does not parse are passed to the endpoint as they are.
+ * The endpoint must write its response before it returns; setting a
+ * WriteListener on the output stream throws UnsupportedOperationException.
+ *
+ * Each cached response gets an ETag, unless the endpoint set one, and
+ * requests whose If-None-Match names it get 304 Not Modified. Responses are
+ * dropped when their time to live runs out, when invalidated, or when the
+ * cache needs room, those not requested lately first. Hits take no locks.
+ *
+ * @author Wong H'sien Jin
+ */
+public final class CachingEndpoint implements Endpoint {
+
+    // Rough cost of an entry beyond its body and strings, in bytes.
+    private static final int ENTRY_OVERHEAD = 128;
+
+    private final Endpoint endpoint;
+    private final long ttlNanos;
+    private final long maxBytes;
+    private final String[] queryKeys;
+    private final StripedCounter hits = new StripedCounter();
+    private final StripedCounter misses = new StripedCounter();
+    private final ConcurrentHashMap<String,Entry> entries =
+        new ConcurrentHashMap<>();
+    private final AtomicLong bytes = new AtomicLong();
+    // Held while making room, so that one thread at a time sweeps.
+    private final Object evicting = new Object();
+
+    private CachingEndpoint(Builder builder) {
+        this.endpoint = builder.endpoint;
+        this.ttlNanos = builder.ttlNanos;
+        this.maxBytes = builder.maxBytes;
+        this.queryKeys = builder.queryKeys;
+    }
+
+    @Override
+    public void handle(HttpServletRequest req, HttpServletResponse res,
+        Matcher matcher) {
+
+        boolean get = "GET".equals(req.getMethod());
+        if (!get && !"HEAD".equals(req.getMethod())) {
+            endpoint.handle(req, res, matcher);
+            return;
+        }
+        String params = RequestKey.params(matcher);
+        String key = RequestKey.of(matcher, params, req.getQueryString(),
+            queryKeys);
+        if (key == null) {
+            endpoint.handle(req, res, matcher);
+            return;
+        }
+        Entry entry = lookup(key);
+        if (entry != null) {
+            hits.increment();
+            send(req, res, entry, get);
+            return;
+        }
+        misses.increment();
+        if (!get) {
+            endpoint.handle(req, res, matcher);
+            return;
+        }
+        BufferedResponse buffered = new BufferedResponse(res);
+        endpoint.handle(BufferedResponse.request(req), buffered, matcher);
+        if (!buffered.isBuffered()) {
+            return;
+        }
+        SavedResponse saved = buffered.save();
+        if (saved.status != HttpServletResponse.SC_OK
+            || buffered.isPrivate()) {
+            SavedResponse.write(res, saved.body);
+            return;
+        }
+        String etag = saved.header("ETag");
+        if (etag == null) {
+            etag = tag(saved.body);
+            res.setHeader("ETag", etag);
+            saved = saved.withHeader("ETag", etag);
+        }
+        store(new Entry(key, params, saved, etag,
+            System.nanoTime() + ttlNanos));
+        if (isNotModified(req, etag)) {
+            res.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        } else {
+            SavedResponse.write(res, saved.body);
+        }
+    }
+
+    /**
+     * Drop cached responses of requests with these path parameters, on any
+     * route, whatever their query parameters.
+     *
+     * @param values Path parameters, in group order. Null for groups that
+     *     did not take part in the match.
+     */
+    public void invalidate(String... values) {
+        String params = RequestKey.params(values);
+        for (Entry i : entries.values()) {
+            if (i.params.equals(params)) {
+                remove(i);
+            }
+        }
+    }
+
+    /**
+     * Drop every cached response.
+     */
+    public void invalidateAll() {
+        for (Entry i : entries.values()) {
+            remove(i);
+        }
+    }
+
+    /**
+     * Get hits and misses so far. Only GET and HEAD requests are counted.
+     */
+    public CacheStats stats() {
+        return new CacheStats(hits.sum(), misses.sum());
+    }
+
+    /**
+     * Approximate memory held by cached responses, in bytes.
+     */
+    public long size() {
+        return bytes.get();
+    }
+
+    private Entry lookup(String key) {
+        Entry result = entries.get(key);
+        if (result == null) {
+            return null;
+        }
+        if (System.nanoTime() - result.expires >= 0) {
+            remove(result);
+            return null;
+        }
+        if (!result.referenced) {
+            result.referenced = true;
+        }
+        return result;
+    }
+
+    private void store(Entry entry) {
+        if (entry.size > maxBytes) {
+            return;
+        }
+        Entry old = entries.put(entry.key, entry);
+        bytes.addAndGet(entry.size - ((old != null) ? old.size : 0));
+        if (bytes.get() > maxBytes) {
+            evict(entry);
+        }
+    }
+
+    /**
+     * Drop entries other than the one just stored until the cache fits,
+     * giving ones requested since the last sweep a second chance, as the
+     * CLOCK algorithm does.
+     */
+    private void evict(Entry stored) {
+        synchronized (evicting) {
+            while (bytes.get() > maxBytes && entries.size() > 1) {
+                for (Entry i : entries.values()) {
+                    if (bytes.get() <= maxBytes) {
+                        return;
+                    }
+                    if (i == stored) {
+                        continue;
+                    }
+                    if (i.referenced) {
+                        i.referenced = false;
+                    } else {
+                        remove(i);
+                    }
+                }
+            }
+        }
+    }
+
+    private void remove(Entry entry) {
+        if (entries.remove(entry.key, entry)) {
+            bytes.addAndGet(-entry.size);
+        }
+    }
+
+    private static void send(HttpServletRequest req, HttpServletResponse res,
+        Entry entry, boolean withBody) {
+
+        entry.response.sendHeaders(res);
+        if (isNotModified(req, entry.etag)) {
+            res.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+        entry.response.sendBody(res, withBody);
+    }
+
+    /**
+     * Does an If-None-Match header name the tag? Tags are compared weakly,
+     * ignoring "W/" on either side, as for GET and HEAD.
+     */
+    static boolean isNotModified(HttpServletRequest req, String etag) {
+        String header = req.getHeader("If-None-Match");
+        if (header == null) {
+            return false;
+        }
+        String opaque = opaque(etag);
+        for (String i : header.split(",")) {
+            String tag = i.trim();
+            if (tag.equals("*") || opaque(tag).equals(opaque)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Entity tag without the weak indicator.
+     */
+    private static String opaque(String etag) {
+        return etag.startsWith("W/") ? etag.substring(2) : etag;
+    }
+
+    /**
+     * Strong ETag of a body.
+     */
+    static String tag(byte[] body) {
+        byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256").digest(body);
+        } catch (NoSuchAlgorithmException e) {
+            // Every JVM has SHA-256.
+            throw new IllegalStateException(e);
+        }
+        StringBuilder result = new StringBuilder(34);
+        result.append('"');
+        for (int i = 0; i < 16; ++i) {
+            result.append(Character.forDigit((digest[i] >> 4) & 0xf, 16));
+            result.append(Character.forDigit(digest[i] & 0xf, 16));
+        }
+        return result.append('"').toString();
+    }
+
+    private static final class Entry {
+        final String key;
+        final String params;
+        final SavedResponse response;
+        final String etag;
+        final long expires;
+        final long size;
+        // Set by hits and cleared by sweeps, without synchronization, which
+        // at worst evicts an entry that was just requested.
+        boolean referenced;
+
+        Entry(String key, String params, SavedResponse response, String etag,
+            long expires) {
+
+            this.key = key;
+            this.params = params;
+            this.response = response;
+            this.etag = etag;
+            this.expires = expires;
+            long strings = key.length() + params.length();
+            for (String i : response.headers) {
+                strings += i.length();
+            }
+            this.size = ENTRY_OVERHEAD + response.body.length + 2 * strings;
+        }
+    }
+
+    /**
+     * Builds CachingEndpoints.
+     */
+    public static final class Builder {
+        private final Endpoint endpoint;
+        private long ttlNanos = TimeUnit.MINUTES.toNanos(1);
+        private long maxBytes = 16 << 20;
+        private String[] queryKeys = new String[0];
+
+        /**
+         * @param endpoint Endpoint whose responses to cache.
+         */
+        public Builder(Endpoint endpoint) {
+            if (endpoint == null) {
+                throw new IllegalArgumentException("endpoint is null");
+            }
+            this.endpoint = endpoint;
+        }
+
+        /**
+         * How long responses are served from the cache. One minute unless
+         * set.
+         */
+        public Builder ttl(long duration, TimeUnit unit) {
+            if (duration <= 0) {
+                throw new IllegalArgumentException("ttl must be positive");
+            }
+            this.ttlNanos = unit.toNanos(duration);
+            return this;
+        }
+
+        /**
+         * Approximate memory that cached responses may use. 16 MiB unless
+         * set. Responses bigger than this are not cached.
+         */
+        public Builder maxBytes(long maxBytes) {
+            if (maxBytes <= 0) {
+                throw new IllegalArgumentException(
+                    "maxBytes must be positive");
+            }
+            this.maxBytes = maxBytes;
+            return this;
+        }
+
+        /**
+         * Query parameters that responses depend on. Responses are cached
+         * separately for each combination of their values. Other query
+         * parameters are ignored.
+         */
+        public Builder queryKeys(String... keys) {
+            for (String i : keys) {
+                if (i == null) {
+                    throw new IllegalArgumentException("key is null");
+                }
+            }
+            this.queryKeys = keys.clone();
+            return this;
+        }
+
+        public CachingEndpoint build() {
+            return new CachingEndpoint(this);
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package com.danui.apiro;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Endpoint that lets concurrent identical requests share one run of another
+ * endpoint.
+ *
+ *     Endpoint docs = new CoalescingEndpoint.Builder(new GetDoc())
+ *         .maxWait(2, TimeUnit.SECONDS)
+ *         .build();
+ *
+ *     router.on(HttpMethod.GET, "/doc/([^/]+)/?", docs);
+ *
+ * A GET request that arrives while another with the same key is being
+ * handled waits for it, and is sent a copy of its response, rather than
+ * calling the endpoint again. So when a popular document expires from a
+ * cache, the backing store sees one request for it, not one per client.
+ * Keys are made as by CachingEndpoint, of the route, path parameters and
+ * chosen query parameters. Other methods, and requests whose query string
+ * does not parse, are handled as usual.
+ *
+ * Requests wait at most maxWait. If it runs out, or the request they wait on
+ * throws, sends an error or redirect, fails with a 5xx status, or sets a
+ * cookie or Cache-Control no-store or private, they call the endpoint
+ * themselves.
+ *
+ * @author Wong H'sien Jin
+ */
+public final class CoalescingEndpoint implements Endpoint {
+
+    private final Endpoint endpoint;
+    private final long maxWaitNanos;
+    private final String[] queryKeys;
+    private final ConcurrentHashMap<String,Flight> flights =
+        new ConcurrentHashMap<>();
+    private final StripedCounter coalesced = new StripedCounter();
+    private final StripedCounter fallbacks = new StripedCounter();
+
+    private CoalescingEndpoint(Builder builder) {
+        this.endpoint = builder.endpoint;
+        this.maxWaitNanos = builder.maxWaitNanos;
+        this.queryKeys = builder.queryKeys;
+    }
+
+    @Override
+    public void handle(HttpServletRequest req, HttpServletResponse res,
+        Matcher matcher) {
+
+        if (!"GET".equals(req.getMethod())) {
+            endpoint.handle(req, res, matcher);
+            return;
+        }
+        String key = RequestKey.of(matcher, RequestKey.params(matcher),
+            req.getQueryString(), queryKeys);
+        if (key == null) {
+            endpoint.handle(req, res, matcher);
+            return;
+        }
+        Flight flight = new Flight();
+        Flight leader = flights.putIfAbsent(key, flight);
+        if (leader != null) {
+            SavedResponse saved = leader.await(maxWaitNanos);
+            if (saved != null) {
+                coalesced.increment();
+                saved.sendHeaders(res);
+                saved.sendBody(res, true);
+            } else {
+                fallbacks.increment();
+                endpoint.handle(req, res, matcher);
+            }
+            return;
+        }
+        BufferedResponse buffered = new BufferedResponse(res);
+        SavedResponse saved = null;
+        try {
+            endpoint.handle(BufferedResponse.request(req), buffered, matcher);
+            if (buffered.isBuffered()) {
+                saved = buffered.save();
+            }
+        } finally {
+            flights.remove(key, flight);
+            boolean shared = saved != null && saved.status < 500
+                && !buffered.isPrivate();
+            flight.land(shared ? saved : null);
+        }
+        if (saved != null) {
+            SavedResponse.write(res, saved.body);
+        }
+    }
+
+    /**
+     * Number of requests sent a copy of another's response.
+     */
+    public long coalesced() {
+        return coalesced.sum();
+    }
+
+    /**
+     * Number of requests that waited in vain and called the endpoint
+     * themselves.
+     */
+    public long fallbacks() {
+        return fallbacks.sum();
+    }
+
+    /**
+     * Number of requests now waiting on others.
+     */
+    int waiting() {
+        int result = 0;
+        for (Flight i : flights.values()) {
+            result += i.waiters.get();
+        }
+        return result;
+    }
+
+    /**
+     * A request being handled, which others may wait on.
+     */
+    private static final class Flight {
+        private final CountDownLatch landed = new CountDownLatch(1);
+        private final AtomicInteger waiters = new AtomicInteger();
+        private volatile SavedResponse response;
+
+        /**
+         * Release waiters.
+         *
+         * @param response Response to share, or null if it may not be.
+         */
+        void land(SavedResponse response) {
+            this.response = response;
+            landed.countDown();
+        }
+
+        /**
+         * Wait for the response.
+         *
+         * @return Response, or null if there is none to share in time.
+         */
+        SavedResponse await(long nanos) {
+            waiters.incrementAndGet();
+            try {
+                if (!landed.await(nanos, TimeUnit.NANOSECONDS)) {
+                    return null;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            } finally {
+                waiters.decrementAndGet();
+            }
+            return response;
+        }
+    }
+
+    /**
+     * Builds CoalescingEndpoints.
+     */
+    public static final class Builder {
+        private final Endpoint endpoint;
+        private long maxWaitNanos = TimeUnit.SECONDS.toNanos(5);
+        private String[] queryKeys = new String[0];
+
+        /**
+         * @param endpoint Endpoint whose runs to share.
+         */
+        public Builder(Endpoint endpoint) {
+            if (endpoint == null) {
+                throw new IllegalArgumentException("endpoint is null");
+            }
+            this.endpoint = endpoint;
+        }
+
+        /**
+         * How long a request waits on another before calling the endpoint
+         * itself. Five seconds unless set.
+         */
+        public Builder maxWait(long duration, TimeUnit unit) {
+            if (duration < 0) {
+                throw new IllegalArgumentException("maxWait is negative");
+            }
+            this.maxWaitNanos = unit.toNanos(duration);
+            return this;
+        }
+
+        /**
+         * Query parameters that responses depend on. Only requests that
+         * agree on their values share a response. Other query parameters
+         * are ignored.
+         */
+        public Builder queryKeys(String... keys) {
+            for (String i : keys) {
+                if (i == null) {
+                    throw new IllegalArgumentException("key is null");
+                }
+            }
+            this.queryKeys = keys.clone();
+            return this;
+        }
+
+        public CoalescingEndpoint build() {
+            return new CoalescingEndpoint(this);
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package com.danui.apiro;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Adaptive limit on the requests a route handles at once.
+ *
+ * Latencies are smoothed into a moving average, and the lowest that average
+ * has been lately is taken as the route's latency without queueing. The
+ * limit grows by one while the route is busy and the average stays near that
+ * low, and shrinks by a tenth when the average rises to more than twice it,
+ * as in AIMD congestion control. It shrinks at most once per round trip, so
+ * that the average can show the effect of the smaller limit first. So when a
+ * route's endpoint slows down, for example because a downstream service is
+ * struggling, fewer requests queue up on it, and the container's threads
+ * stay free for other routes. Single slow requests, and latencies that merely
+ * vary, do not shrink the limit.
+ *
+ * All state is kept in atomics, without locks. Updates that lose a race are
+ * dropped, which only delays the limit's adjustment.
+ */
+final class ConcurrencyLimit {
+
+    // Samples after which the lowest average is forgotten, so that the
+    // limit follows an endpoint that has become slower for good.
+    private static final int WINDOW = 256;
+    // Samples the moving average mostly reflects. Until it has seen this
+    // many, the limit is left alone.
+    private static final int SMOOTHING = 16;
+    // Average latency, as a multiple of the lowest, taken as a sign of
+    // queueing.
+    private static final double TOLERANCE = 2.0;
+    private static final double BACKOFF = 0.9;
+
+    private final int maxLimit;
+    private final AtomicInteger limit;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    // Bits of the moving average of latency in nanoseconds, 0 before any.
+    private final AtomicLong average = new AtomicLong();
+    private final AtomicLong lowest = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong windowLowest = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong samples = new AtomicLong();
+    // Sample count at the last backoff.
+    private final AtomicLong backedOff = new AtomicLong();
+    final StripedCounter rejected = new StripedCounter();
+
+    /**
+     * @param initialLimit Limit to start with.
+     *
+     * @param maxLimit Highest the limit may grow to.
+     */
+    ConcurrencyLimit(int initialLimit, int maxLimit) {
+        this.limit = new AtomicInteger(initialLimit);
+        this.maxLimit = maxLimit;
+    }
+
+    int limit() {
+        return limit.get();
+    }
+
+    int inFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * Take a slot for a request.
+     *
+     * @return False, and counts a rejection, if the route is at its limit.
+     */
+    boolean tryAcquire() {
+        while (true) {
+            int n = inFlight.get();
+            if (n >= limit.get()) {
+                rejected.increment();
+                return false;
+            }
+            if (inFlight.compareAndSet(n, n + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Give back a slot, and adjust the limit by the request's latency.
+     */
+    void release(long nanos) {
+        int used = inFlight.getAndDecrement();
+        long n = samples.incrementAndGet();
+        long latency = average(nanos);
+        if (n < SMOOTHING) {
+            return;
+        }
+        lower(windowLowest, latency);
+        lower(lowest, latency);
+        if (n % WINDOW == 0) {
+            lowest.set(windowLowest.getAndSet(Long.MAX_VALUE));
+        }
+        int current = limit.get();
+        int next;
+        if (latency > TOLERANCE * lowest.get()) {
+            // Once per round trip of the requests the limit lets in.
+            long last = backedOff.get();
+            if (n - last < Math.max(current, SMOOTHING)
+                || !backedOff.compareAndSet(last, n)) {
+                return;
+            }
+            next = Math.max(1, (int) (current * BACKOFF));
+        } else if (2 * used >= current) {
+            // Only grow a limit that is being used.
+            next = Math.min(maxLimit, current + 1);
+        } else {
+            return;
+        }
+        if (next != current) {
+            limit.compareAndSet(current, next);
+        }
+    }
+
+    /**
+     * Add a latency to the moving average.
+     *
+     * @return New average.
+     */
+    private long average(long nanos) {
+        while (true) {
+            long bits = average.get();
+            double current = Double.longBitsToDouble(bits);
+            double next = (bits == 0) ? nanos
+                : current + (nanos - current) / SMOOTHING;
+            if (average.compareAndSet(bits, Double.doubleToLongBits(next))) {
+                return (long) next;
+            }
+        }
+    }
+
+    /**
+     * Slot of a request that completes on another thread. It is released
+     * once, however many ways the request ends.
+     */
+    static final class Permit {
+        private final ConcurrencyLimit limit;
+        private final long start;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        /**
+         * @param start System.nanoTime() when the slot was taken.
+         */
+        Permit(ConcurrencyLimit limit, long start) {
+            this.limit = limit;
+            this.start = start;
+        }
+
+        void release() {
+            if (released.compareAndSet(false, true)) {
+                limit.release(System.nanoTime() - start);
+            }
+        }
+    }
+
+    private static void lower(AtomicLong value, long x) {
+        long current = value.get();
+        while (x < current && !value.compareAndSet(current, x)) {
+            current = value.get();
+        }
+    }
+}
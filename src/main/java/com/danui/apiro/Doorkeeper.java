@@ -0,0 +1,56 @@
+package com.danui.apiro;
+
+import java.util.Arrays;
+
+/**
+ * Remembers, approximately, which paths have been seen recently.
+ *
+ * A cache that only admits paths seen before is not churned by paths that
+ * are requested once, as in TinyLFU. Paths are remembered in a Bloom filter
+ * that is cleared after about as many paths as the cache holds, so that old
+ * sightings are forgotten. Updates are not synchronized, so racing threads
+ * may forget a sighting, which only delays admission.
+ */
+class Doorkeeper {
+
+    private final long[] bits;
+    private final int mask;
+    private final int resetAfter;
+    private int additions;
+
+    /**
+     * @param entries Number of paths to remember before starting over.
+     */
+    Doorkeeper(int entries) {
+        // About 8 bits per path keeps false positives to a few percent.
+        int bitCount = 8 * Math.min(Math.max(entries, 8), 1 << 24);
+        int size = Integer.highestOneBit(bitCount - 1) << 1;
+        this.bits = new long[size / 64];
+        this.mask = size - 1;
+        this.resetAfter = Math.max(1, entries);
+    }
+
+    /**
+     * Note a sighting of a path.
+     *
+     * @return True if the path was probably seen before.
+     */
+    boolean seen(String path) {
+        int h = path.hashCode();
+        int a = (h ^ (h >>> 16)) & mask;
+        int b = (h * 0x9E3779B9 >>> 7) & mask;
+        long bitA = 1L << a;
+        long bitB = 1L << b;
+        boolean result = (bits[a >>> 6] & bitA) != 0
+            && (bits[b >>> 6] & bitB) != 0;
+        if (!result) {
+            if (++additions >= resetAfter) {
+                additions = 0;
+                Arrays.fill(bits, 0);
+            }
+            bits[a >>> 6] |= bitA;
+            bits[b >>> 6] |= bitB;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,68 @@
+package com.danui.apiro;
+
+import java.util.Arrays;
+import java.util.regex.Matcher;
+
+/**
+ * Routes that an index could not cover, and must be matched by regex.
+ *
+ * An index that finds the best covered route for a path asks its Fallbacks to
+ * try the uncovered routes bound before it, so that the first matching route
+ * wins regardless of which kind it is.
+ */
+class Fallbacks {
+
+    private final Route[] routes;
+    private final int[] uncovered;
+
+    /**
+     * @param routes All routes of the index.
+     *
+     * @param covered Which routes the index covers.
+     */
+    Fallbacks(Route[] routes, boolean[] covered) {
+        this.routes = routes;
+        int[] uncovered = new int[routes.length];
+        int n = 0;
+        for (int i = 0; i < routes.length; ++i) {
+            if (!covered[i]) {
+                uncovered[n++] = i;
+            }
+        }
+        this.uncovered = Arrays.copyOf(uncovered, n);
+    }
+
+    /**
+     * Find the first matching route.
+     *
+     * @param best Lowest numbered covered route that matches path, or -1 if
+     *     none do.
+     *
+     * @param hasGroups True if match's group buffer holds the offsets of the
+     *     groups of best.
+     *
+     * @return True if a route matched.
+     */
+    boolean find(String path, int best, boolean hasGroups,
+        RouteMatch match) {
+        for (int i : uncovered) {
+            if (best >= 0 && i > best) {
+                break;
+            }
+            if (!path.startsWith(routes[i].prefix())) {
+                continue;
+            }
+            match.regexesRun += 1;
+            Matcher matcher = routes[i].match(path, match.limitedInput(path));
+            if (matcher != null) {
+                match.set(routes[i], path, matcher);
+                return true;
+            }
+        }
+        if (best < 0) {
+            return false;
+        }
+        match.set(routes[best], path, hasGroups);
+        return true;
+    }
+}
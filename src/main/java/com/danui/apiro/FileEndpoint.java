@@ -0,0 +1,368 @@
+package com.danui.apiro;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.regex.Matcher;
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Endpoint that serves files under a directory.
+ *
+ *     GET.on("/files/(.+)", new FileEndpoint(Paths.get("/srv/exports")));
+ *
+ * The file is named by a group of the route's regex, relative to the root
+ * directory. Names that lead outside the root, also by symbolic links, get
+ * 404 Not Found, as do names of missing files and directories.
+ *
+ * Responses carry Last-Modified and an ETag made of the file's size and
+ * modification time, and conditional requests are answered with 304 Not
+ * Modified. A single byte range may be asked for with a Range header, and
+ * is sent as 206 Partial Content. Other range requests get the whole file.
+ *
+ * Where the container supports Tomcat's sendfile, as told by the request
+ * attribute "org.apache.tomcat.sendfile.support", the file is handed to the
+ * container to send, without copying it through the heap. Otherwise it is
+ * copied in chunks through a pool of reused byte arrays, so that large
+ * downloads do not churn the heap. Mapped or direct buffers would not save
+ * that copy, as a servlet output stream only takes byte arrays. If the
+ * container's output stream is a WritableByteChannel, which is rare,
+ * FileChannel.transferTo() is used instead. CachingEndpoint and
+ * CoalescingEndpoint need the bytes, so under them files are always copied.
+ *
+ * @author Wong H'sien Jin
+ */
+public final class FileEndpoint implements Endpoint {
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final ArrayBlockingQueue<byte[]> CHUNKS =
+        new ArrayBlockingQueue<>(16);
+    // Range that cannot be satisfied.
+    private static final long[] NO_RANGE = new long[0];
+    private static final String SENDFILE = "org.apache.tomcat.sendfile.";
+    static final String SENDFILE_SUPPORT = SENDFILE + "support";
+
+    private final Path root;
+    private final int group;
+
+    /**
+     * Serve files named by group 1 of the route's regex.
+     *
+     * @param root Directory to serve files from.
+     */
+    public FileEndpoint(Path root) {
+        this(root, 1);
+    }
+
+    /**
+     * @param root Directory to serve files from.
+     *
+     * @param group Group of the route's regex that names the file.
+     */
+    public FileEndpoint(Path root, int group) {
+        if (root == null) {
+            throw new IllegalArgumentException("root is null");
+        }
+        if (!Files.isDirectory(root)) {
+            throw new IllegalArgumentException(
+                "Root '" + root + "' is not a directory");
+        }
+        try {
+            this.root = root.toRealPath();
+        } catch (IOException e) {
+            throw new IllegalArgumentException(
+                "Root '" + root + "' cannot be resolved", e);
+        }
+        this.group = group;
+    }
+
+    @Override
+    public void handle(HttpServletRequest req, HttpServletResponse res,
+        Matcher matcher) {
+
+        try {
+            serve(req, res, matcher);
+        } catch (NoSuchFileException e) {
+            // Deleted since it was found.
+            fail(res, HttpServletResponse.SC_NOT_FOUND);
+        } catch (IOException e) {
+            // Either the client has gone, or the file could not be read
+            // after all, in which case there is no better answer.
+            fail(res, HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+        }
+    }
+
+    private void serve(HttpServletRequest req, HttpServletResponse res,
+        Matcher matcher) throws IOException {
+
+        String method = req.getMethod();
+        boolean head = "HEAD".equals(method);
+        if (!head && !"GET".equals(method)) {
+            res.setHeader("Allow", "GET, HEAD");
+            res.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
+            return;
+        }
+        Path file = resolve(matcher.group(group));
+        if (file == null) {
+            res.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        BasicFileAttributes attributes = Files.readAttributes(file,
+            BasicFileAttributes.class);
+        long size = attributes.size();
+        long modified = attributes.lastModifiedTime().toMillis();
+        String etag = "\"" + Long.toHexString(size) + "-"
+            + Long.toHexString(modified) + "\"";
+        res.setHeader("ETag", etag);
+        res.setDateHeader("Last-Modified", modified);
+        res.setHeader("Accept-Ranges", "bytes");
+        if (isNotModified(req, etag, modified)) {
+            res.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+        long start = 0;
+        long count = size;
+        String range = req.getHeader("Range");
+        if (range != null && isCurrent(req, etag, modified)) {
+            long[] bounds = parseRange(range, size);
+            if (bounds == NO_RANGE) {
+                res.setHeader("Content-Range", "bytes */" + size);
+                res.sendError(
+                    HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                return;
+            }
+            if (bounds != null) {
+                start = bounds[0];
+                count = bounds[1] - bounds[0] + 1;
+                res.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                res.setHeader("Content-Range", "bytes " + bounds[0] + "-"
+                    + bounds[1] + "/" + size);
+            }
+        }
+        res.setContentType(contentType(req, file));
+        res.setContentLengthLong(count);
+        if (head || count == 0) {
+            return;
+        }
+        if (Boolean.TRUE.equals(req.getAttribute(SENDFILE_SUPPORT))) {
+            req.setAttribute(SENDFILE + "filename", file.toString());
+            req.setAttribute(SENDFILE + "start", start);
+            req.setAttribute(SENDFILE + "end", start + count);
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(file,
+            StandardOpenOption.READ)) {
+
+            OutputStream out = res.getOutputStream();
+            if (out instanceof WritableByteChannel) {
+                long sent = transfer(channel, start, count,
+                    (WritableByteChannel) out);
+                start += sent;
+                count -= sent;
+            }
+            copy(channel, start, count, out);
+        }
+    }
+
+    /**
+     * Resolve a name under the root.
+     *
+     * @return Regular file, or null if there is none or it is outside the
+     *     root.
+     */
+    private Path resolve(String name) throws IOException {
+        if (name == null || name.indexOf('\0') >= 0) {
+            return null;
+        }
+        while (name.startsWith("/")) {
+            name = name.substring(1);
+        }
+        Path result;
+        try {
+            result = root.resolve(name).normalize();
+        } catch (InvalidPathException e) {
+            return null;
+        }
+        if (!result.startsWith(root) || !Files.isRegularFile(result)) {
+            return null;
+        }
+        // Symbolic links may lead elsewhere.
+        result = result.toRealPath();
+        if (!result.startsWith(root)
+            || !Files.isRegularFile(result, LinkOption.NOFOLLOW_LINKS)) {
+            return null;
+        }
+        return result;
+    }
+
+    /**
+     * Send part of a file to a channel, such as a socket, without copying it
+     * through the heap.
+     *
+     * @return Number of bytes sent, which is short of count if the channel
+     *     stopped taking bytes.
+     */
+    private static long transfer(FileChannel channel, long start, long count,
+        WritableByteChannel out) throws IOException {
+
+        long sent = 0;
+        while (sent < count) {
+            long n = channel.transferTo(start + sent, count - sent, out);
+            if (n <= 0) {
+                break;
+            }
+            sent += n;
+        }
+        return sent;
+    }
+
+    /**
+     * Copy part of a file to a stream through a pooled buffer.
+     */
+    private static void copy(FileChannel channel, long start, long count,
+        OutputStream out) throws IOException {
+
+        if (count <= 0) {
+            return;
+        }
+        byte[] chunk = CHUNKS.poll();
+        if (chunk == null) {
+            chunk = new byte[CHUNK_SIZE];
+        }
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(chunk);
+            long position = start;
+            long end = start + count;
+            while (position < end) {
+                buffer.clear();
+                buffer.limit((int) Math.min(chunk.length, end - position));
+                int n = channel.read(buffer, position);
+                if (n < 0) {
+                    // The file shrank. The client sees a short body.
+                    break;
+                }
+                out.write(chunk, 0, n);
+                position += n;
+            }
+        } finally {
+            CHUNKS.offer(chunk);
+        }
+    }
+
+    /**
+     * Does the client have this version of the file?
+     */
+    private static boolean isNotModified(HttpServletRequest req, String etag,
+        long modified) {
+
+        if (req.getHeader("If-None-Match") != null) {
+            return CachingEndpoint.isNotModified(req, etag);
+        }
+        long since = dateHeader(req, "If-Modified-Since");
+        return since >= 0 && modified / 1000 <= since / 1000;
+    }
+
+    /**
+     * Does an If-Range header, if any, name this version of the file? Weak
+     * entity tags never do, as ranges must come from the very same bytes.
+     */
+    private static boolean isCurrent(HttpServletRequest req, String etag,
+        long modified) {
+
+        String ifRange = req.getHeader("If-Range");
+        if (ifRange == null) {
+            return true;
+        }
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            return ifRange.equals(etag);
+        }
+        return modified / 1000 == dateHeader(req, "If-Range") / 1000;
+    }
+
+    private static long dateHeader(HttpServletRequest req, String name) {
+        try {
+            return req.getDateHeader(name);
+        } catch (IllegalArgumentException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Parse a Range header of a single byte range.
+     *
+     * @return First and last byte, NO_RANGE if the range is past the end of
+     *     the file, or null if the whole file is to be sent.
+     */
+    static long[] parseRange(String range, long size) {
+        if (!range.startsWith("bytes=") || range.indexOf(',') >= 0) {
+            return null;
+        }
+        String spec = range.substring(6).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
+        long first;
+        long last;
+        try {
+            if (dash == 0) {
+                long suffix = Long.parseLong(spec.substring(1));
+                if (suffix <= 0) {
+                    return NO_RANGE;
+                }
+                first = Math.max(0, size - suffix);
+                last = size - 1;
+            } else {
+                first = Long.parseLong(spec.substring(0, dash));
+                last = (dash == spec.length() - 1) ? size - 1
+                    : Long.parseLong(spec.substring(dash + 1));
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        if (first < 0) {
+            return null;
+        }
+        if (first >= size) {
+            return NO_RANGE;
+        }
+        if (last < first) {
+            return null;
+        }
+        return new long[] {first, Math.min(last, size - 1)};
+    }
+
+    private static String contentType(HttpServletRequest req, Path file)
+        throws IOException {
+
+        String name = file.getFileName().toString();
+        ServletContext context = req.getServletContext();
+        String result = (context != null) ? context.getMimeType(name) : null;
+        if (result == null) {
+            result = Files.probeContentType(file);
+        }
+        return (result != null) ? result : "application/octet-stream";
+    }
+
+    private static void fail(HttpServletResponse res, int status) {
+        try {
+            if (!res.isCommitted()) {
+                res.sendError(status);
+            }
+        } catch (IOException | IllegalStateException e) {
+            // The client has gone. There is no one left to tell.
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.danui.apiro;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * Response to a HEAD request handled by a GET endpoint. Status and headers
+ * are passed on, and the body is dropped.
+ */
+class HeadResponse extends HttpServletResponseWrapper {
+
+    private ServletOutputStream out;
+    private PrintWriter writer;
+
+    HeadResponse(HttpServletResponse res) {
+        super(res);
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() {
+        if (out == null) {
+            out = new ServletOutputStream() {
+                @Override
+                public void write(int b) {
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                }
+
+                @Override
+                public boolean isReady() {
+                    return true;
+                }
+
+                @Override
+                public void setWriteListener(WriteListener listener) {
+                    try {
+                        listener.onWritePossible();
+                    } catch (IOException e) {
+                        listener.onError(e);
+                    }
+                }
+            };
+        }
+        return out;
+    }
+
+    @Override
+    public PrintWriter getWriter() {
+        if (writer == null) {
+            writer = new PrintWriter(new Writer() {
+                @Override
+                public void write(char[] cbuf, int off, int len) {
+                }
+
+                @Override
+                public void flush() {
+                }
+
+                @Override
+                public void close() {
+                }
+            });
+        }
+        return writer;
+    }
+}
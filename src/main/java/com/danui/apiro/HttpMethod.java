@@ -0,0 +1,41 @@
+package com.danui.apiro;
+
+/**
+ * HTTP methods that routes can be bound to.
+ *
+ * @author Wong H'sien Jin
+ */
+public enum HttpMethod {
+    GET, HEAD, POST, PUT, DELETE, OPTIONS, TRACE, PATCH;
+
+    /**
+     * Method named by a request, as given by getMethod().
+     *
+     * @return Method, or null if name is not a known method.
+     */
+    public static HttpMethod parse(String name) {
+        if (name == null) {
+            return null;
+        }
+        switch (name) {
+        case "GET":
+            return GET;
+        case "HEAD":
+            return HEAD;
+        case "POST":
+            return POST;
+        case "PUT":
+            return PUT;
+        case "DELETE":
+            return DELETE;
+        case "OPTIONS":
+            return OPTIONS;
+        case "TRACE":
+            return TRACE;
+        case "PATCH":
+            return PATCH;
+        default:
+            return null;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.danui.apiro;
+
+/**
+ * Latency histogram at some point in time.
+ *
+ * Latencies are counted in power of two buckets of nanoseconds, so
+ * percentiles are upper bounds that may be up to twice the true value.
+ *
+ * @author Wong H'sien Jin
+ */
+public final class Latency {
+
+    private final long[] counts;
+    private final long count;
+    private final long totalNanos;
+
+    Latency(long[] counts, long totalNanos) {
+        this.counts = counts;
+        long count = 0;
+        for (long i : counts) {
+            count += i;
+        }
+        this.count = count;
+        this.totalNanos = totalNanos;
+    }
+
+    /**
+     * Number of latencies recorded.
+     */
+    public long count() {
+        return count;
+    }
+
+    /**
+     * Sum of latencies recorded, in nanoseconds.
+     */
+    public long totalNanos() {
+        return totalNanos;
+    }
+
+    /**
+     * Mean latency in nanoseconds, or 0 if none were recorded.
+     */
+    public long meanNanos() {
+        return (count == 0) ? 0 : totalNanos / count;
+    }
+
+    /**
+     * Latency that a fraction of recorded latencies do not exceed.
+     *
+     * @param fraction Between 0 and 1, e.g. 0.99 for the 99th percentile.
+     *
+     * @return Upper bound in nanoseconds, or 0 if none were recorded.
+     */
+    public long percentileNanos(double fraction) {
+        if (fraction < 0 || fraction > 1) {
+            throw new IllegalArgumentException(
+                "fraction must be between 0 and 1");
+        }
+        long rank = (long) Math.ceil(fraction * count);
+        long seen = 0;
+        for (int i = 0; i < counts.length; ++i) {
+            seen += counts[i];
+            if (seen >= rank && seen > 0) {
+                return upperBound(i);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Upper bound of the longest recorded latency, in nanoseconds.
+     */
+    public long maxNanos() {
+        for (int i = counts.length - 1; i >= 0; --i) {
+            if (counts[i] > 0) {
+                return upperBound(i);
+            }
+        }
+        return 0;
+    }
+
+    private static long upperBound(int bucket) {
+        if (bucket == LatencyRecorder.BUCKETS - 1) {
+            return Long.MAX_VALUE;
+        }
+        return (bucket == 0) ? 0 : (1L << bucket) - 1;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("count=%d mean=%dns p50<=%dns p99<=%dns",
+            count, meanNanos(), percentileNanos(0.5), percentileNanos(0.99));
+    }
+}
@@ -0,0 +1,66 @@
+package com.danui.apiro;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Lock-free latency histogram of fixed size.
+ *
+ * Bucket 0 counts latencies of 0ns, and bucket i counts latencies in
+ * [2^(i-1), 2^i) nanoseconds. The last bucket also counts anything longer.
+ *
+ * Like StripedCounter, counts go to one histogram until two threads collide
+ * on it. From then on each thread counts into one of several histograms,
+ * chosen by thread id, and snapshots add them up. Uncontended recorders
+ * therefore stay small.
+ */
+class LatencyRecorder {
+
+    static final int BUCKETS = 40;
+    // Longs per stripe: the buckets, padded so that stripes do not share
+    // cache lines.
+    private static final int STRIDE = BUCKETS + 8;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicReference<AtomicLongArray> stripes =
+        new AtomicReference<>();
+    private final StripedCounter total = new StripedCounter();
+
+    void record(long nanos) {
+        if (nanos < 0) {
+            // System.nanoTime() is not guaranteed to be monotonic everywhere.
+            nanos = 0;
+        }
+        int bucket = Math.min(64 - Long.numberOfLeadingZeros(nanos),
+            BUCKETS - 1);
+        AtomicLongArray ss = stripes.get();
+        if (ss == null) {
+            long n = counts.get(bucket);
+            if (counts.compareAndSet(bucket, n, n + 1)) {
+                total.add(nanos);
+                return;
+            }
+            stripes.compareAndSet(null,
+                new AtomicLongArray(StripedCounter.CELLS * STRIDE));
+            ss = stripes.get();
+        }
+        ss.getAndIncrement(STRIDE * StripedCounter.cell() + bucket);
+        total.add(nanos);
+    }
+
+    Latency snapshot() {
+        long[] result = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; ++i) {
+            result[i] = counts.get(i);
+        }
+        AtomicLongArray ss = stripes.get();
+        if (ss != null) {
+            for (int cell = 0; cell < StripedCounter.CELLS; ++cell) {
+                for (int i = 0; i < BUCKETS; ++i) {
+                    result[i] += ss.get(STRIDE * cell + i);
+                }
+            }
+        }
+        return new Latency(result, total.sum());
+    }
+}
@@ -0,0 +1,78 @@
+package com.danui.apiro;
+
+/**
+ * Path for a Matcher that gives up after a number of character reads.
+ *
+ * A backtracking regex reads the same characters over and over, so bounding
+ * the reads bounds the time a match can take, however badly the regex
+ * backtracks. Reads also stop when the thread is interrupted.
+ *
+ * One input is shared by the routes tried for a path, so that trying routes
+ * does not allocate, and the reads of all their regexes count against one
+ * limit.
+ */
+class LimitedInput implements CharSequence {
+
+    private String path;
+    private long remaining;
+    private boolean limited;
+
+    /**
+     * @param maxReads Reads after which charAt() throws
+     *     MatchAbortedException.
+     */
+    LimitedInput(String path, long maxReads) {
+        reset(path, maxReads);
+    }
+
+    /**
+     * Start over on a path, as if newly created.
+     */
+    void reset(String path, long maxReads) {
+        this.path = path;
+        this.remaining = maxReads;
+        this.limited = true;
+    }
+
+    /**
+     * Go on to a path with the reads that remain.
+     */
+    void resume(String path) {
+        this.path = path;
+        this.limited = true;
+    }
+
+    /**
+     * Allow any number of reads, as by the Matcher's user after a match.
+     */
+    void unlimit() {
+        limited = false;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (limited) {
+            --remaining;
+            if (remaining < 0 || ((remaining & 0xfff) == 0
+                    && Thread.currentThread().isInterrupted())) {
+                throw new MatchAbortedException();
+            }
+        }
+        return path.charAt(index);
+    }
+
+    @Override
+    public int length() {
+        return path.length();
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return path.substring(start, end);
+    }
+
+    @Override
+    public String toString() {
+        return path;
+    }
+}
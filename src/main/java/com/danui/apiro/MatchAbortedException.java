@@ -0,0 +1,15 @@
+package com.danui.apiro;
+
+/**
+ * Thrown when a regex reads more of a path than its router allows, or when
+ * the matching thread is interrupted.
+ */
+class MatchAbortedException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    MatchAbortedException() {
+        // Thrown on hostile input, so skip the cost of a stack trace.
+        super(null, null, false, false);
+    }
+}
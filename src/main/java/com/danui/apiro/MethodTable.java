@@ -0,0 +1,138 @@
+package com.danui.apiro;
+
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Set;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Endpoints of one regex, by HTTP method.
+ *
+ * Tables are immutable. Binding another method makes a new table. HEAD
+ * requests go to the GET endpoint, without a body, unless HEAD is bound, as
+ * with HttpServlet.doHead().
+ */
+final class MethodTable {
+
+    private final EnumMap<HttpMethod, Route> routes;
+    // Value of the Allow header for methods that are not bound.
+    private final String allow;
+
+    MethodTable() {
+        this(new EnumMap<HttpMethod, Route>(HttpMethod.class));
+    }
+
+    private MethodTable(EnumMap<HttpMethod, Route> routes) {
+        this.routes = routes;
+        this.allow = allow(routes.keySet());
+    }
+
+    /**
+     * Table with a route bound to method.
+     *
+     * @throws IllegalArgumentException when method is already bound.
+     */
+    MethodTable with(HttpMethod method, Route route) {
+        if (routes.containsKey(method)) {
+            throw new IllegalArgumentException(method + " is already bound to "
+                + route.regex());
+        }
+        EnumMap<HttpMethod, Route> result = new EnumMap<>(routes);
+        result.put(method, route);
+        return new MethodTable(result);
+    }
+
+    /**
+     * Value of the Allow header, listing the bound methods.
+     */
+    String allow() {
+        return allow;
+    }
+
+    /**
+     * Methods bound explicitly.
+     */
+    Set<HttpMethod> methods() {
+        return routes.keySet();
+    }
+
+    /**
+     * Is there an endpoint for method, perhaps the GET endpoint for HEAD?
+     */
+    boolean accepts(HttpMethod method) {
+        return method != null && (routes.containsKey(method)
+            || (method == HttpMethod.HEAD
+                && routes.containsKey(HttpMethod.GET)));
+    }
+
+    /**
+     * Value of the Allow header for a path bound to methods. HEAD is listed
+     * with GET, and OPTIONS is always listed, as both are answered even when
+     * not bound.
+     */
+    static String allow(Set<HttpMethod> methods) {
+        EnumSet<HttpMethod> all = methods.isEmpty()
+            ? EnumSet.noneOf(HttpMethod.class) : EnumSet.copyOf(methods);
+        if (all.contains(HttpMethod.GET)) {
+            all.add(HttpMethod.HEAD);
+        }
+        all.add(HttpMethod.OPTIONS);
+        StringBuilder result = new StringBuilder();
+        for (HttpMethod i : all) {
+            if (result.length() > 0) {
+                result.append(", ");
+            }
+            result.append(i.name());
+        }
+        return result.toString();
+    }
+
+    /**
+     * Forward a matched request to the route bound to its method.
+     *
+     * Requests for other methods are answered as by reject().
+     */
+    void handle(HttpServletRequest req, HttpServletResponse res,
+        RouteMatch match, AsyncConfig async) {
+
+        HttpMethod method = HttpMethod.parse(req.getMethod());
+        Route route = (method == null) ? null : routes.get(method);
+        if (route != null) {
+            route.handle(req, res, match, async);
+        } else if (method == HttpMethod.HEAD
+            && (route = routes.get(HttpMethod.GET)) != null) {
+            route.handle(req, new HeadResponse(res), match, async);
+        } else {
+            reject(method, allow, res);
+        }
+    }
+
+    /**
+     * Answer a request whose method no endpoint of the path is bound to.
+     *
+     * Unbound methods get 405 Method Not Allowed, and unknown ones 501 Not
+     * Implemented, as HttpServlet does. OPTIONS, unless bound, lists the
+     * bound methods.
+     *
+     * @param method Method, or null if unknown.
+     *
+     * @param allow Value of the Allow header.
+     */
+    static void reject(HttpMethod method, String allow,
+        HttpServletResponse res) {
+
+        res.setHeader("Allow", allow);
+        if (method == HttpMethod.OPTIONS) {
+            return;
+        }
+        try {
+            res.sendError((method == null)
+                ? HttpServletResponse.SC_NOT_IMPLEMENTED
+                : HttpServletResponse.SC_METHOD_NOT_ALLOWED);
+        } catch (IOException e) {
+            // The client has gone. There is no one left to tell.
+        }
+    }
+}
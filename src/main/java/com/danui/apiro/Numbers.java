@@ -0,0 +1,66 @@
+package com.danui.apiro;
+
+/**
+ * Parses decimal integers straight from characters.
+ *
+ * Accepts what Long.parseLong accepts: an optional sign followed by one or
+ * more ASCII digits. Neither method allocates nor throws.
+ */
+class Numbers {
+
+    private Numbers() {
+    }
+
+    /**
+     * Is s[from,to) an integer within [min,max]?
+     */
+    static boolean isInteger(CharSequence s, int from, int to, long min,
+        long max) {
+
+        if (from >= to) {
+            return false;
+        }
+        boolean negative = false;
+        char first = s.charAt(from);
+        if (first == '-' || first == '+') {
+            negative = (first == '-');
+            from += 1;
+            if (from == to) {
+                return false;
+            }
+        }
+        // Accumulate negatively, as -Long.MIN_VALUE is not a long.
+        long limit = negative ? min : -max;
+        long multmin = limit / 10;
+        long result = 0;
+        for (int i = from; i < to; ++i) {
+            int digit = s.charAt(i) - '0';
+            if (digit < 0 || digit > 9 || result < multmin) {
+                return false;
+            }
+            result *= 10;
+            if (result < limit + digit) {
+                return false;
+            }
+            result -= digit;
+        }
+        return true;
+    }
+
+    /**
+     * Value of s[from,to), which must satisfy isInteger().
+     */
+    static long parse(CharSequence s, int from, int to) {
+        boolean negative = false;
+        char first = s.charAt(from);
+        if (first == '-' || first == '+') {
+            negative = (first == '-');
+            from += 1;
+        }
+        long result = 0;
+        for (int i = from; i < to; ++i) {
+            result = result * 10 - (s.charAt(i) - '0');
+        }
+        return negative ? result : -result;
+    }
+}
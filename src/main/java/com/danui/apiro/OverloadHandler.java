@@ -0,0 +1,23 @@
+package com.danui.apiro;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Answers requests to routes that are at their concurrency limit.
+ *
+ * @author Wong H'sien Jin
+ */
+public interface OverloadHandler {
+    /**
+     * Answer a request without calling its endpoint.
+     *
+     * @param req Request
+     *
+     * @param res Response
+     *
+     * @param regex Regular expression of the route the request matched.
+     */
+    public void handle(HttpServletRequest req, HttpServletResponse res,
+        String regex);
+}
@@ -0,0 +1,144 @@
+package com.danui.apiro;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded cache keyed on paths, or other strings such as query strings, safe
+ * for concurrent use without locks.
+ *
+ * The cache is set associative: a path hashes to a bucket of a few entries,
+ * and when a bucket is full the CLOCK algorithm picks which entry to evict.
+ * Racing writers may overwrite each other's entries. That only loses cached
+ * values, as each entry is published whole.
+ */
+class PathCache<V> {
+
+    /**
+     * Entries per bucket.
+     */
+    private static final int WAYS = 4;
+
+    /**
+     * Longest path that is cached by default, which bounds the memory used
+     * by keys.
+     */
+    static final int MAX_PATH_LENGTH = 256;
+
+    private final AtomicReferenceArray<Entry<V>> entries;
+    // CLOCK state. Updated without synchronization, which at worst evicts a
+    // recently used entry.
+    private final boolean[] referenced;
+    private final byte[] hands;
+    private final int mask;
+    private final Doorkeeper doorkeeper;
+    private final int maxKeyLength;
+
+    /**
+     * @param maxEntries Most entries to hold. Rounded down to a power of two,
+     *     but no fewer than a single bucket.
+     */
+    PathCache(int maxEntries) {
+        this(maxEntries, false);
+    }
+
+    /**
+     * @param maxEntries Most entries to hold. Rounded down to a power of two,
+     *     but no fewer than a single bucket.
+     *
+     * @param frequentOnly Only admit paths seen recently. See admits().
+     */
+    PathCache(int maxEntries, boolean frequentOnly) {
+        this(maxEntries, frequentOnly, MAX_PATH_LENGTH);
+    }
+
+    /**
+     * @param maxEntries Most entries to hold. Rounded down to a power of two,
+     *     but no fewer than a single bucket.
+     *
+     * @param frequentOnly Only admit paths seen recently. See admits().
+     *
+     * @param maxKeyLength Longest path to cache.
+     */
+    PathCache(int maxEntries, boolean frequentOnly, int maxKeyLength) {
+        this.maxKeyLength = maxKeyLength;
+        this.doorkeeper = frequentOnly ? new Doorkeeper(maxEntries) : null;
+        int buckets = Integer.highestOneBit(Math.max(1, maxEntries / WAYS));
+        this.entries = new AtomicReferenceArray<>(buckets * WAYS);
+        this.referenced = new boolean[buckets * WAYS];
+        this.hands = new byte[buckets];
+        this.mask = buckets - 1;
+    }
+
+    /**
+     * Cached value of a path.
+     *
+     * @return Value, or null if the path is not cached.
+     */
+    V get(String path) {
+        int base = WAYS * bucket(path);
+        for (int i = base; i < base + WAYS; ++i) {
+            Entry<V> entry = entries.get(i);
+            if (entry != null && entry.path.equals(path)) {
+                if (!referenced[i]) {
+                    referenced[i] = true;
+                }
+                return entry.value;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Should a path be cached?
+     *
+     * Caches that only admit frequent paths count each call as a sighting,
+     * and admit a path on its second recent sighting. Other caches admit
+     * every path.
+     */
+    boolean admits(String path) {
+        return doorkeeper == null || doorkeeper.seen(path);
+    }
+
+    /**
+     * Cache the value of a path. Paths longer than the cache's maximum key
+     * length are not cached.
+     */
+    void put(String path, V value) {
+        if (path.length() > maxKeyLength) {
+            return;
+        }
+        int bucket = bucket(path);
+        int base = WAYS * bucket;
+        Entry<V> entry = new Entry<>(path, value);
+        for (int i = base; i < base + WAYS; ++i) {
+            if (entries.get(i) == null) {
+                referenced[i] = false;
+                entries.set(i, entry);
+                return;
+            }
+        }
+        // Sweep the bucket, giving referenced entries a second chance.
+        int hand = hands[bucket];
+        for (int n = 0; n < WAYS && referenced[base + hand]; ++n) {
+            referenced[base + hand] = false;
+            hand = (hand + 1) % WAYS;
+        }
+        hands[bucket] = (byte) ((hand + 1) % WAYS);
+        entries.set(base + hand, entry);
+    }
+
+    private int bucket(String path) {
+        int h = path.hashCode();
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    private static final class Entry<V> {
+        final String path;
+        final V value;
+
+        Entry(String path, V value) {
+            this.path = path;
+            this.value = value;
+        }
+    }
+}
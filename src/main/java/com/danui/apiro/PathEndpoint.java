@@ -0,0 +1,26 @@
+package com.danui.apiro;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Handles matched requests, reading path parameters without allocating.
+ *
+ * @author Wong H'sien Jin
+ */
+public interface PathEndpoint {
+    /**
+     * Handle a request.
+     *
+     * @param req Request
+     *
+     * @param res Response
+     *
+     * @param params Path parameters, i.e. the groups of the regex that
+     *     matched req.getPathInfo(). The object is reused for later requests
+     *     on the same thread, so implementations must not keep references to
+     *     it, or to the values it returns, after handle() returns.
+     */
+    public void handle(HttpServletRequest req, HttpServletResponse res,
+        PathParams params);
+}
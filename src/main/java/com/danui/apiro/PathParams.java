@@ -0,0 +1,261 @@
+package com.danui.apiro;
+
+/**
+ * Path parameters of a matched request.
+ *
+ * Parameters are the capturing groups of the route's regex, numbered as by
+ * java.util.regex.Matcher, and may also be looked up by group name. Values are
+ * views over the request path, so reading them, even as numbers, allocates
+ * nothing. They are only valid until the endpoint returns.
+ *
+ * @author Wong H'sien Jin
+ */
+public final class PathParams {
+
+    private String path;
+    private int[] groups;
+    private String[] names;
+    private int groupCount;
+    private Slice[] slices = new Slice[0];
+
+    // Please use Router to obtain PathParams.
+    PathParams() {
+    }
+
+    void reset(String path, int[] groups, String[] names, int groupCount) {
+        this.path = path;
+        this.groups = groups;
+        this.names = names;
+        this.groupCount = groupCount;
+        if (slices.length <= groupCount) {
+            Slice[] grown = new Slice[groupCount + 1];
+            System.arraycopy(slices, 0, grown, 0, slices.length);
+            for (int i = slices.length; i < grown.length; ++i) {
+                grown[i] = new Slice();
+            }
+            slices = grown;
+        }
+    }
+
+    /**
+     * Number of capturing groups in the route's regex.
+     */
+    public int groupCount() {
+        return groupCount;
+    }
+
+    /**
+     * Did a group take part in the match?
+     *
+     * @param group Group number. Group 0 is the whole path.
+     */
+    public boolean has(int group) {
+        return groups[2 * check(group)] >= 0;
+    }
+
+    /**
+     * Did a named group take part in the match?
+     */
+    public boolean has(String name) {
+        return has(indexOf(name));
+    }
+
+    /**
+     * Get value of a group.
+     *
+     * @param group Group number. Group 0 is the whole path.
+     *
+     * @return View over the path, or null if the group did not take part in
+     *     the match.
+     */
+    public CharSequence get(int group) {
+        int start = groups[2 * check(group)];
+        if (start < 0) {
+            return null;
+        }
+        Slice slice = slices[group];
+        slice.set(path, start, groups[2 * group + 1]);
+        return slice;
+    }
+
+    /**
+     * Get value of a named group.
+     *
+     * @return View over the path, or null if the group did not take part in
+     *     the match.
+     */
+    public CharSequence get(String name) {
+        return get(indexOf(name));
+    }
+
+    /**
+     * Get value of a group as a string.
+     *
+     * @throws MissingParameterException when the group did not take part in
+     *     the match.
+     */
+    public String getString(int group) throws MissingParameterException {
+        return require(group, null).toString();
+    }
+
+    /**
+     * Get value of a named group as a string.
+     *
+     * @throws MissingParameterException when the group did not take part in
+     *     the match.
+     */
+    public String getString(String name) throws MissingParameterException {
+        return require(indexOf(name), name).toString();
+    }
+
+    /**
+     * Get value of a group as an integer.
+     *
+     * @throws MissingParameterException when the group did not take part in
+     *     the match.
+     *
+     * @throws WrongParameterTypeException when the value is not an Integer.
+     */
+    public int getInt(int group) throws MissingParameterException,
+        WrongParameterTypeException {
+
+        return (int) parse(group, null, Integer.MIN_VALUE, Integer.MAX_VALUE,
+            "an Integer");
+    }
+
+    /**
+     * Get value of a named group as an integer.
+     *
+     * @throws MissingParameterException when the group did not take part in
+     *     the match.
+     *
+     * @throws WrongParameterTypeException when the value is not an Integer.
+     */
+    public int getInt(String name) throws MissingParameterException,
+        WrongParameterTypeException {
+
+        return (int) parse(indexOf(name), name, Integer.MIN_VALUE,
+            Integer.MAX_VALUE, "an Integer");
+    }
+
+    /**
+     * Get value of a group as a long.
+     *
+     * @throws MissingParameterException when the group did not take part in
+     *     the match.
+     *
+     * @throws WrongParameterTypeException when the value is not a Long.
+     */
+    public long getLong(int group) throws MissingParameterException,
+        WrongParameterTypeException {
+
+        return parse(group, null, Long.MIN_VALUE, Long.MAX_VALUE, "a Long");
+    }
+
+    /**
+     * Get value of a named group as a long.
+     *
+     * @throws MissingParameterException when the group did not take part in
+     *     the match.
+     *
+     * @throws WrongParameterTypeException when the value is not a Long.
+     */
+    public long getLong(String name) throws MissingParameterException,
+        WrongParameterTypeException {
+
+        return parse(indexOf(name), name, Long.MIN_VALUE, Long.MAX_VALUE,
+            "a Long");
+    }
+
+    private long parse(int group, String name, long min, long max,
+        String type) throws MissingParameterException,
+        WrongParameterTypeException {
+
+        require(group, name);
+        int start = groups[2 * group];
+        int end = groups[2 * group + 1];
+        if (!Numbers.isInteger(path, start, end, min, max)) {
+            throw new WrongParameterTypeException(String.format(
+                "Value '%s' for path parameter '%s' is not %s",
+                path.substring(start, end), label(group, name), type));
+        }
+        return Numbers.parse(path, start, end);
+    }
+
+    private CharSequence require(int group, String name)
+        throws MissingParameterException {
+
+        CharSequence result = get(group);
+        if (result == null) {
+            throw new MissingParameterException(
+                "Path parameter '" + label(group, name) + "' is not set");
+        }
+        return result;
+    }
+
+    private static String label(int group, String name) {
+        return (name != null) ? name : String.valueOf(group);
+    }
+
+    private int check(int group) {
+        if (group < 0 || group > groupCount) {
+            throw new IndexOutOfBoundsException("No group " + group);
+        }
+        return group;
+    }
+
+    private int indexOf(String name) {
+        if (name == null) {
+            throw new IllegalArgumentException("name is null");
+        }
+        for (int i = 1; i < names.length; ++i) {
+            if (name.equals(names[i])) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException(
+            "No group with name <" + name + ">");
+    }
+
+    /**
+     * Part of the path.
+     */
+    private static final class Slice implements CharSequence {
+        private String s;
+        private int start;
+        private int end;
+
+        void set(String s, int start, int end) {
+            this.s = s;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public int length() {
+            return end - start;
+        }
+
+        @Override
+        public char charAt(int index) {
+            if (index < 0 || index >= end - start) {
+                throw new IndexOutOfBoundsException("index " + index);
+            }
+            return s.charAt(start + index);
+        }
+
+        @Override
+        public CharSequence subSequence(int from, int to) {
+            if (from < 0 || to > end - start || from > to) {
+                throw new IndexOutOfBoundsException(
+                    "from " + from + ", to " + to);
+            }
+            return s.substring(start + from, start + to);
+        }
+
+        @Override
+        public String toString() {
+            return s.substring(start, end);
+        }
+    }
+}
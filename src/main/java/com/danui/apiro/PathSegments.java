@@ -0,0 +1,87 @@
+package com.danui.apiro;
+
+import java.util.Arrays;
+
+/**
+ * A path split into segments, shared by all the routes tried for it.
+ *
+ * Segments are what lies between slashes, as in PathTemplate. Only their
+ * offsets are kept, and each RouteMatch reuses one PathSegments, so splitting
+ * a path does not allocate.
+ */
+class PathSegments {
+
+    private String path;
+    // Offset just past each segment.
+    private int[] ends = new int[16];
+    private int size;
+
+    /**
+     * Split a path.
+     */
+    void reset(String path) {
+        this.path = path;
+        size = 0;
+        int from = 0;
+        while (true) {
+            int slash = path.indexOf('/', from);
+            if (size == ends.length) {
+                ends = Arrays.copyOf(ends, 2 * size);
+            }
+            if (slash < 0) {
+                ends[size++] = path.length();
+                return;
+            }
+            ends[size++] = slash;
+            from = slash + 1;
+        }
+    }
+
+    /**
+     * Drop the reference to the path.
+     */
+    void clear() {
+        path = null;
+    }
+
+    /**
+     * Path that was split, or null after clear().
+     */
+    String path() {
+        return path;
+    }
+
+    /**
+     * Number of segments. Paths have at least one.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Offset of the start of segment i.
+     */
+    int start(int i) {
+        return (i == 0) ? 0 : ends[i - 1] + 1;
+    }
+
+    /**
+     * Offset just past segment i.
+     */
+    int end(int i) {
+        return ends[i];
+    }
+
+    boolean isEmpty(int i) {
+        return start(i) == ends[i];
+    }
+
+    /**
+     * Is segment i the same as a literal?
+     */
+    boolean equals(int i, String literal) {
+        int start = start(i);
+        return ends[i] - start == literal.length()
+            && path.regionMatches(start, literal, 0, literal.length());
+    }
+}
@@ -0,0 +1,203 @@
+package com.danui.apiro;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A route regex expressed as a sequence of path segments.
+ *
+ * Only regexes made of '/' separated literal segments and whole-segment
+ * parameters are templates. A parameter is "([^/]+)" or "(?<name>[^/]+)". The
+ * regex may end with "/?" to accept an optional trailing slash. For example
+ *
+ *     /doc/(?<id>[^/]+)/page/([^/]+)/?
+ *
+ * Segments are what lies between slashes, so "/doc" has segments "" and
+ * "doc", and "/doc/" has segments "", "doc", and "".
+ */
+class PathTemplate {
+
+    private static final String PARAM = "[^/]+)";
+    private static final String METACHARS = "\\^$.|?*+()[]{}";
+
+    /**
+     * Parse a regex.
+     *
+     * @return Template, or null if the regex is not a template.
+     */
+    static PathTemplate parse(String regex) {
+        List<String> segments = new ArrayList<>();
+        StringBuilder literal = new StringBuilder();
+        boolean param = false;
+        boolean trailingSlash = false;
+        int len = regex.length();
+        int i = 0;
+        while (i < len) {
+            char c = regex.charAt(i);
+            if (c == '/') {
+                if (i + 1 < len && regex.charAt(i + 1) == '?') {
+                    if (i + 2 != len) {
+                        return null;
+                    }
+                    trailingSlash = true;
+                    i += 2;
+                    break;
+                }
+                segments.add(param ? null : literal.toString());
+                literal.setLength(0);
+                param = false;
+                i += 1;
+            } else if (param) {
+                return null;
+            } else if (c == '(') {
+                if (literal.length() > 0) {
+                    return null;
+                }
+                int body = i + 1;
+                if (regex.startsWith("?<", body)) {
+                    int close = regex.indexOf('>', body);
+                    if (close < 0 || !isGroupName(regex, body + 2, close)) {
+                        return null;
+                    }
+                    body = close + 1;
+                }
+                if (!regex.startsWith(PARAM, body)) {
+                    return null;
+                }
+                param = true;
+                i = body + PARAM.length();
+            } else if (c == '\\') {
+                // An escaped slash would join two segments into one.
+                if (i + 1 >= len || regex.charAt(i + 1) == '/'
+                    || Character.isLetterOrDigit(regex.charAt(i + 1))) {
+                    return null;
+                }
+                literal.append(regex.charAt(i + 1));
+                i += 2;
+            } else if (METACHARS.indexOf(c) >= 0) {
+                return null;
+            } else {
+                literal.append(c);
+                i += 1;
+            }
+        }
+        segments.add(param ? null : literal.toString());
+        return new PathTemplate(
+            segments.toArray(new String[segments.size()]), trailingSlash);
+    }
+
+    private static boolean isGroupName(String regex, int from, int to) {
+        if (from >= to || !Character.isLetter(regex.charAt(from))) {
+            return false;
+        }
+        for (int i = from; i < to; ++i) {
+            if (!Character.isLetterOrDigit(regex.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private final String[] segments;
+    private final boolean trailingSlash;
+
+    private PathTemplate(String[] segments, boolean trailingSlash) {
+        this.segments = segments;
+        this.trailingSlash = trailingSlash;
+    }
+
+    /**
+     * Number of segments, not counting the optional trailing slash.
+     */
+    int size() {
+        return segments.length;
+    }
+
+    /**
+     * Literal text of a segment.
+     *
+     * @return Literal, or null if the segment is a parameter.
+     */
+    String segment(int i) {
+        return segments[i];
+    }
+
+    /**
+     * Does the template end with an optional trailing slash?
+     */
+    boolean hasTrailingSlash() {
+        return trailingSlash;
+    }
+
+    /**
+     * Could a path match both templates?
+     */
+    boolean overlaps(PathTemplate other) {
+        for (int a = 0; a <= (trailingSlash ? 1 : 0); ++a) {
+            for (int b = 0; b <= (other.trailingSlash ? 1 : 0); ++b) {
+                if (size() + a == other.size() + b
+                    && overlaps(other, size() + a)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Could a path of n segments match both templates? A trailing slash
+     * counts as a last, empty, segment.
+     */
+    private boolean overlaps(PathTemplate other, int n) {
+        for (int i = 0; i < n; ++i) {
+            String x = (i < size()) ? segments[i] : "";
+            String y = (i < other.size()) ? other.segments[i] : "";
+            if (x != null && y != null) {
+                if (!x.equals(y)) {
+                    return false;
+                }
+            } else if ("".equals(x) || "".equals(y)) {
+                // Parameters are never empty.
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Does the template match a path?
+     */
+    boolean matches(PathSegments path) {
+        int n = path.size();
+        if (trailingSlash && n == segments.length + 1 && path.isEmpty(n - 1)) {
+            n -= 1;
+        } else if (n != segments.length) {
+            return false;
+        }
+        for (int i = 0; i < n; ++i) {
+            String literal = segments[i];
+            if (literal == null ? path.isEmpty(i) : !path.equals(i, literal)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Find group offsets in a path that the template matches.
+     *
+     * @param groups Receives start and end offsets of group 0, the whole
+     *     path, followed by those of each parameter.
+     */
+    void groups(PathSegments path, int[] groups) {
+        groups[0] = 0;
+        groups[1] = path.path().length();
+        int n = 2;
+        for (int i = 0; i < segments.length; ++i) {
+            if (segments[i] == null) {
+                groups[n++] = path.start(i);
+                groups[n++] = path.end(i);
+            }
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package com.danui.apiro;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Routes indexed by their literal prefix, in a trie keyed on characters.
+ *
+ * Every path a route matches starts with its literal prefix, so only routes
+ * whose prefix is a prefix of the path need to be tried.
+ */
+class PrefixTrie {
+
+    private final Node root = new Node();
+    private final int depth;
+    private final ThreadLocal<Candidates> candidates =
+        new ThreadLocal<Candidates>() {
+            @Override
+            protected Candidates initialValue() {
+                return new Candidates(depth + 1);
+            }
+        };
+
+    PrefixTrie(Route[] routes) {
+        int depth = 0;
+        for (int i = 0; i < routes.length; ++i) {
+            String prefix = routes[i].prefix();
+            Node node = root;
+            for (int j = 0; j < prefix.length(); ++j) {
+                node = node.child(prefix.charAt(j));
+            }
+            node.add(i);
+            depth = Math.max(depth, prefix.length());
+        }
+        this.depth = depth;
+        root.freeze();
+    }
+
+    /**
+     * Routes whose prefix is a prefix of path.
+     *
+     * @return Cursor over the route numbers, in ascending order. It is reused
+     *     by the next call on the same thread.
+     */
+    Candidates candidates(String path) {
+        Candidates result = candidates.get();
+        result.numLists = 0;
+        Node node = root;
+        int i = 0;
+        while (node != null) {
+            if (node.routes.length > 0) {
+                result.cursors[result.numLists] = 0;
+                result.lists[result.numLists++] = node.routes;
+            }
+            if (i == path.length()) {
+                break;
+            }
+            node = node.child(path.charAt(i++));
+        }
+        return result;
+    }
+
+    /**
+     * Merges the route lists of the trie nodes along a path, each in
+     * ascending order.
+     */
+    static class Candidates {
+        private final int[][] lists;
+        private final int[] cursors;
+        private int numLists;
+
+        Candidates(int size) {
+            lists = new int[size][];
+            cursors = new int[size];
+        }
+
+        /**
+         * Next route number.
+         *
+         * @return Route, or -1 if there are no more.
+         */
+        int next() {
+            int next = -1;
+            int nextRoute = Integer.MAX_VALUE;
+            for (int j = 0; j < numLists; ++j) {
+                if (cursors[j] < lists[j].length
+                    && lists[j][cursors[j]] < nextRoute) {
+                    next = j;
+                    nextRoute = lists[j][cursors[j]];
+                }
+            }
+            if (next < 0) {
+                return -1;
+            }
+            cursors[next] += 1;
+            return nextRoute;
+        }
+    }
+
+    private static class Node {
+        private static final int[] EMPTY = new int[0];
+
+        private int[] routes = EMPTY;
+        private Map<Character,Node> building = new TreeMap<>();
+        private char[] keys;
+        private Node[] children;
+
+        void add(int route) {
+            routes = Arrays.copyOf(routes, routes.length + 1);
+            routes[routes.length - 1] = route;
+        }
+
+        Node child(char c) {
+            if (building != null) {
+                Node result = building.get(c);
+                if (result == null) {
+                    result = new Node();
+                    building.put(c, result);
+                }
+                return result;
+            }
+            int found = Arrays.binarySearch(keys, c);
+            return (found < 0) ? null : children[found];
+        }
+
+        /**
+         * Replace the build-time map with sorted arrays.
+         */
+        void freeze() {
+            keys = new char[building.size()];
+            children = new Node[building.size()];
+            int i = 0;
+            for (Map.Entry<Character,Node> entry : building.entrySet()) {
+                keys[i] = entry.getKey();
+                children[i] = entry.getValue();
+                entry.getValue().freeze();
+                i += 1;
+            }
+            building = null;
+        }
+    }
+}
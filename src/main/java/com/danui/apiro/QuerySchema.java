@@ -0,0 +1,532 @@
+package com.danui.apiro;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Declared query parameters, checked and read in a single pass.
+ *
+ * Build a schema once, listing each parameter's type and default, and the
+ * combinations of keys that may be given together. For example, instead of
+ * a chain of QueryString.cond() calls
+ *
+ *     static final QuerySchema SCHEMA = new QuerySchema.Builder()
+ *         .addLong("timestamp")
+ *         .addInt("year")
+ *         .addInt("month")
+ *         .addInt("day")
+ *         .addInt("limit", 20)
+ *         .addForm("timestamp")
+ *         .addForm("year", "month", "day")
+ *         .addForm()
+ *         .build();
+ *
+ *     QueryValues qs = SCHEMA.decode(req.getQueryString());
+ *     switch (qs.form()) {
+ *     case 0:
+ *         // process using qs.getLong("timestamp")
+ *     ...
+ *
+ * Decoding scans the query string once, finding each key in a table built
+ * with the schema, and converts values to numbers in place, without decoding
+ * them into strings. Schemas are immutable and may be shared by threads.
+ *
+ * @author Wong H'sien Jin
+ */
+public final class QuerySchema {
+
+    /**
+     * Most parameters a schema may declare.
+     */
+    public static final int MAX_PARAMS = 64;
+
+    enum Type {
+        STRING("a String"),
+        INT("an Integer"),
+        LONG("a Long"),
+        BOOLEAN("a Boolean"),
+        FLAG("a Boolean");
+
+        final String description;
+
+        Type(String description) {
+            this.description = description;
+        }
+    }
+
+    private final String[] keys;
+    private final Type[] types;
+    private final boolean[] hasDefault;
+    private final long[] numberDefaults;
+    private final String[] stringDefaults;
+    private final Map<String,Integer> indexes;
+    // Open addressing table of key hashes. Entries are parameter indexes plus
+    // one, so that 0 is empty.
+    private final int[] table;
+    private final int mask;
+    // Keys of each form, and keys named by any form, as bit masks of
+    // parameter indexes.
+    private final long[] forms;
+    private final long formKeys;
+    private final String formsDescription;
+    private final boolean rejectUnknown;
+
+    private QuerySchema(Builder builder) {
+        int n = builder.keys.size();
+        this.keys = builder.keys.toArray(new String[n]);
+        this.types = builder.types.toArray(new Type[n]);
+        this.hasDefault = new boolean[n];
+        this.numberDefaults = new long[n];
+        this.stringDefaults = new String[n];
+        this.indexes = new HashMap<>();
+        for (int i = 0; i < n; ++i) {
+            Object value = builder.defaults.get(i);
+            hasDefault[i] = (value != null) || types[i] == Type.FLAG;
+            if (value instanceof String) {
+                stringDefaults[i] = (String) value;
+            } else if (value instanceof Boolean) {
+                numberDefaults[i] = ((Boolean) value) ? 1 : 0;
+            } else if (value != null) {
+                numberDefaults[i] = ((Number) value).longValue();
+            }
+            indexes.put(keys[i], i);
+        }
+        int size = Integer.highestOneBit(Math.max(1, 2 * n - 1)) << 1;
+        this.table = new int[size];
+        this.mask = size - 1;
+        for (int i = 0; i < n; ++i) {
+            int slot = keys[i].hashCode() & mask;
+            while (table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = i + 1;
+        }
+        this.forms = new long[builder.forms.size()];
+        long formKeys = 0;
+        StringBuilder description = new StringBuilder();
+        for (int f = 0; f < forms.length; ++f) {
+            String[] form = builder.forms.get(f);
+            for (String key : form) {
+                forms[f] |= 1L << indexes.get(key);
+            }
+            formKeys |= forms[f];
+            description.append((f == 0) ? "" : " or ");
+            description.append(form.length == 0
+                ? "none" : "'" + join(form) + "'");
+        }
+        this.formKeys = formKeys;
+        this.formsDescription = description.toString();
+        this.rejectUnknown = builder.rejectUnknown;
+    }
+
+    private static String join(String[] keys) {
+        StringBuilder result = new StringBuilder();
+        for (String i : keys) {
+            if (result.length() > 0) {
+                result.append(',');
+            }
+            result.append(i);
+        }
+        return result.toString();
+    }
+
+    /**
+     * Number of declared parameters.
+     */
+    public int size() {
+        return keys.length;
+    }
+
+    /**
+     * Index of a parameter, for reading values without looking keys up.
+     *
+     * @return Index, in order of declaration, or -1 if key is not declared.
+     */
+    public int indexOf(String key) {
+        Integer result = indexes.get(key);
+        return (result == null) ? -1 : result;
+    }
+
+    /**
+     * Key of a parameter.
+     */
+    public String key(int param) {
+        return keys[param];
+    }
+
+    /**
+     * Check and read a query string.
+     *
+     * @param qs Query String (e.g. from req.getQueryString()), or null.
+     *
+     * @return Values of the declared parameters.
+     *
+     * @throws MissingParameterException when the keys given match none of
+     *     the forms.
+     *
+     * @throws WrongParameterTypeException when a value is not of its
+     *     parameter's type.
+     *
+     * @throws UnknownParameterException when a key is not declared, if the
+     *     schema rejects unknown keys.
+     *
+     * @throws IllegalArgumentException when the query string is malformed,
+     *     as QueryString.parse() does.
+     */
+    public QueryValues decode(String qs) throws MissingParameterException,
+        WrongParameterTypeException, UnknownParameterException {
+
+        return decode(qs, new QueryValues());
+    }
+
+    /**
+     * Check and read a query string into values that are reused, so that
+     * decoding allocates nothing unless values have escapes. See
+     * decode(String).
+     *
+     * @param result Receives the values. Its previous values are discarded.
+     *
+     * @return result.
+     */
+    public QueryValues decode(String qs, QueryValues result)
+        throws MissingParameterException, WrongParameterTypeException,
+        UnknownParameterException {
+
+        result.reset(this, qs);
+        if (qs != null) {
+            int len = qs.length();
+            int start = 0;
+            for (int i = 0; i <= len; ++i) {
+                if (i == len || qs.charAt(i) == '&') {
+                    add(qs, start, i, result);
+                    start = i + 1;
+                } else if (qs.charAt(i) == '%') {
+                    QueryString.checkEscape(qs, i);
+                    i += 2;
+                }
+            }
+        }
+        for (int i = 0; i < keys.length; ++i) {
+            convert(i, result);
+        }
+        if (forms.length > 0) {
+            long given = result.present & formKeys;
+            int form = -1;
+            for (int f = 0; f < forms.length && form < 0; ++f) {
+                if (given == forms[f]) {
+                    form = f;
+                }
+            }
+            if (form < 0) {
+                throw new MissingParameterException(
+                    "Query parameters must be " + formsDescription);
+            }
+            result.form = form;
+        }
+        return result;
+    }
+
+    /**
+     * Note the parameter at qs[start,end), if any. Of repeated keys, the last
+     * one wins.
+     */
+    private void add(String qs, int start, int end, QueryValues result)
+        throws UnknownParameterException {
+
+        if (start == end) {
+            return;
+        }
+        // "k=" and "k" both have a null value.
+        while (end > start && qs.charAt(end - 1) == '=') {
+            end -= 1;
+        }
+        int eq = find('=', qs, start, end);
+        if (end == start || (eq >= 0 && find('=', qs, eq + 1, end) >= 0)) {
+            throw new IllegalArgumentException("Bad query string: " + qs);
+        }
+        int keyEnd = (eq < 0) ? end : eq;
+        int param = lookUp(qs, start, keyEnd);
+        if (param < 0) {
+            if (rejectUnknown) {
+                throw new UnknownParameterException("Query parameter '"
+                    + UriDecoder.decode(qs, start, keyEnd)
+                    + "' is not allowed");
+            }
+            return;
+        }
+        result.present |= 1L << param;
+        if (eq < 0) {
+            result.offsets[2 * param] = -1;
+        } else {
+            result.offsets[2 * param] = eq + 1;
+            result.offsets[2 * param + 1] = end;
+        }
+    }
+
+    /**
+     * Find c in qs[start,end).
+     *
+     * @return Index of c, or -1.
+     */
+    private static int find(char c, String qs, int start, int end) {
+        int i = qs.indexOf(c, start);
+        return (i < end) ? i : -1;
+    }
+
+    /**
+     * Find the parameter whose key is qs[start,end), once decoded.
+     *
+     * @return Index, or -1 if the key is not declared.
+     */
+    private int lookUp(String qs, int start, int end) {
+        String decoded = null;
+        int h = 0;
+        if (needsDecoding(qs, start, end)) {
+            decoded = UriDecoder.decode(qs, start, end);
+            h = decoded.hashCode();
+        } else {
+            for (int i = start; i < end; ++i) {
+                h = 31 * h + qs.charAt(i);
+            }
+        }
+        for (int slot = h & mask; table[slot] != 0;
+                slot = (slot + 1) & mask) {
+            String key = keys[table[slot] - 1];
+            boolean equal = (decoded != null) ? key.equals(decoded)
+                : key.length() == end - start
+                    && qs.regionMatches(start, key, 0, key.length());
+            if (equal) {
+                return table[slot] - 1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Convert the value of parameter i, if any, or set its default.
+     */
+    private void convert(int i, QueryValues result)
+        throws WrongParameterTypeException {
+
+        int start = result.offsets[2 * i];
+        if (start < 0) {
+            if (types[i] == Type.FLAG && (result.present & (1L << i)) != 0) {
+                // A flag without a value is raised.
+                result.numbers[i] = 1;
+                result.valued |= 1L << i;
+            } else {
+                result.numbers[i] = numberDefaults[i];
+            }
+            return;
+        }
+        result.valued |= 1L << i;
+        if (types[i] == Type.STRING) {
+            return;
+        }
+        int end = result.offsets[2 * i + 1];
+        CharSequence value = result.raw;
+        if (needsDecoding(result.raw, start, end)) {
+            value = result.string(i);
+            start = 0;
+            end = value.length();
+        }
+        switch (types[i]) {
+        case INT:
+        case LONG:
+            long min = (types[i] == Type.INT)
+                ? Integer.MIN_VALUE : Long.MIN_VALUE;
+            long max = (types[i] == Type.INT)
+                ? Integer.MAX_VALUE : Long.MAX_VALUE;
+            if (!Numbers.isInteger(value, start, end, min, max)) {
+                throw wrongType(i, result);
+            }
+            result.numbers[i] = Numbers.parse(value, start, end);
+            break;
+        default:
+            if (isWord(value, start, end, "true")) {
+                result.numbers[i] = 1;
+            } else if (isWord(value, start, end, "false")) {
+                result.numbers[i] = 0;
+            } else {
+                throw wrongType(i, result);
+            }
+            break;
+        }
+    }
+
+    private WrongParameterTypeException wrongType(int i, QueryValues result) {
+        return new WrongParameterTypeException(String.format(
+            "Value '%s' for key '%s' is not %s",
+            result.string(i), keys[i], types[i].description));
+    }
+
+    private static boolean isWord(CharSequence s, int start, int end,
+        String word) {
+
+        if (end - start != word.length()) {
+            return false;
+        }
+        for (int i = 0; i < word.length(); ++i) {
+            if (Character.toLowerCase(s.charAt(start + i)) != word.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean needsDecoding(String s, int start, int end) {
+        for (int i = start; i < end; ++i) {
+            char c = s.charAt(i);
+            if (c == '%' || c == '+') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    Type type(int param) {
+        return types[param];
+    }
+
+    boolean hasDefault(int param) {
+        return hasDefault[param];
+    }
+
+    String stringDefault(int param) {
+        return stringDefaults[param];
+    }
+
+    /**
+     * Builds QuerySchemas.
+     */
+    public static final class Builder {
+        private final List<String> keys = new ArrayList<>();
+        private final List<Type> types = new ArrayList<>();
+        private final List<Object> defaults = new ArrayList<>();
+        private final List<String[]> forms = new ArrayList<>();
+        private boolean rejectUnknown;
+
+        /**
+         * Declare a string parameter.
+         */
+        public Builder addString(String key) {
+            return add(key, Type.STRING, null);
+        }
+
+        /**
+         * Declare a string parameter with a default value.
+         */
+        public Builder addString(String key, String defaultValue) {
+            if (defaultValue == null) {
+                throw new IllegalArgumentException("defaultValue is null");
+            }
+            return add(key, Type.STRING, defaultValue);
+        }
+
+        /**
+         * Declare an integer parameter.
+         */
+        public Builder addInt(String key) {
+            return add(key, Type.INT, null);
+        }
+
+        /**
+         * Declare an integer parameter with a default value.
+         */
+        public Builder addInt(String key, int defaultValue) {
+            return add(key, Type.INT, defaultValue);
+        }
+
+        /**
+         * Declare a long parameter.
+         */
+        public Builder addLong(String key) {
+            return add(key, Type.LONG, null);
+        }
+
+        /**
+         * Declare a long parameter with a default value.
+         */
+        public Builder addLong(String key, long defaultValue) {
+            return add(key, Type.LONG, defaultValue);
+        }
+
+        /**
+         * Declare a boolean parameter, whose value is "true" or "false" in
+         * any case.
+         */
+        public Builder addBoolean(String key) {
+            return add(key, Type.BOOLEAN, null);
+        }
+
+        /**
+         * Declare a boolean parameter with a default value.
+         */
+        public Builder addBoolean(String key, boolean defaultValue) {
+            return add(key, Type.BOOLEAN, defaultValue);
+        }
+
+        /**
+         * Declare a flag, as read by QueryString.getFlag(). Flags are raised
+         * when given without a value or with a true value.
+         */
+        public Builder addFlag(String key) {
+            return add(key, Type.FLAG, null);
+        }
+
+        /**
+         * Declare a combination of keys that may be given together, in the
+         * manner of QueryString.cond().
+         *
+         * Once any form is declared, a query string must match one: it must
+         * have every key of the form, and none of the keys of other forms
+         * that are not in this form. Keys that are in no form may always be
+         * given. Forms are numbered in order of declaration, and
+         * QueryValues.form() tells which one matched.
+         *
+         * @param keys Declared keys. None for a form of none of the keys.
+         */
+        public Builder addForm(String... keys) {
+            for (String i : keys) {
+                if (!this.keys.contains(i)) {
+                    throw new IllegalArgumentException(
+                        "Key '" + i + "' is not declared");
+                }
+            }
+            forms.add(keys.clone());
+            return this;
+        }
+
+        /**
+         * Fail decoding when a key is not declared, instead of ignoring it.
+         */
+        public Builder rejectUnknown() {
+            rejectUnknown = true;
+            return this;
+        }
+
+        public QuerySchema build() {
+            return new QuerySchema(this);
+        }
+
+        private Builder add(String key, Type type, Object defaultValue) {
+            if (key == null) {
+                throw new IllegalArgumentException("key is null");
+            }
+            if (keys.contains(key)) {
+                throw new IllegalArgumentException(
+                    "Key '" + key + "' is already declared");
+            }
+            if (keys.size() == MAX_PARAMS) {
+                throw new IllegalArgumentException(
+                    "More than " + MAX_PARAMS + " parameters");
+            }
+            keys.add(key);
+            types.add(type);
+            defaults.add(defaultValue);
+            return this;
+        }
+    }
+}
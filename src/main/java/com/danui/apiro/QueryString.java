@@ -1,55 +1,123 @@
 package com.danui.apiro;
 
-import java.io.UnsupportedEncodingException;
-import java.net.URLDecoder;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.NoSuchElementException;
 
 /**
  * HTTP Query String parser
  *
+ * QueryStrings are immutable, and safe to share between threads, for example
+ * through a QueryStringCache.
+ *
  * @author Wong H'sien Jin
  */
 public class QueryString {
 
+    private static final int[] NO_PARAMS = new int[0];
+
+    private static final QueryString EMPTY = new QueryString(null, NO_PARAMS,
+        0);
+
     /**
      * Parse a query string
      *
+     * Parsing only finds where keys and values lie in the query string. Each
+     * key and value is decoded the first time it is needed.
+     *
      * @param qs Query String (e.g. from req.getQueryString())
      *
      * @return QueryString object.
      */
     public static QueryString parse(String qs) {
-        QueryString result = new QueryString();
-        if (qs == null) {
-            return result;
-        }
-        if (qs.length() == 0) {
-            return result;
-        }
-        String[] parts = qs.split("[&]");
-        for (int i = 0; i < parts.length; ++i) {
-            if (parts[i].length() == 0) continue;
-            String[] kv = parts[i].split("[=]");
-            String k = decodeUriComponent(kv[0]);
-            if (kv.length == 2) {
-                String v = decodeUriComponent(kv[1]);
-                result.put(k,v);
-            } else if (kv.length == 1) {
-                result.put(k,null);
-            } else {
-                throw new IllegalArgumentException(
-                    "Bad query string: " + qs);
+        if (qs == null || qs.isEmpty()) {
+            return EMPTY;
+        }
+        int[] offsets = NO_PARAMS;
+        int size = 0;
+        int len = qs.length();
+        int start = 0;
+        for (int i = 0; i <= len; ++i) {
+            if (i == len || qs.charAt(i) == '&') {
+                if (4 * (size + 1) > offsets.length) {
+                    offsets = Arrays.copyOf(offsets,
+                        Math.max(16, offsets.length * 2));
+                }
+                if (add(qs, start, i, offsets, 4 * size)) {
+                    size += 1;
+                }
+                start = i + 1;
+            } else if (qs.charAt(i) == '%') {
+                checkEscape(qs, i);
+                i += 2;
             }
         }
-        return result;
+        return new QueryString(qs, offsets, size);
     }
 
-    private final Map<String,String> map = new HashMap<>();
+    static void checkEscape(String qs, int i) {
+        if (i + 2 >= qs.length()) {
+            throw new IllegalArgumentException(
+                "Incomplete trailing escape (%) pattern: " + qs);
+        }
+        if (Character.digit(qs.charAt(i + 1), 16) < 0
+            || Character.digit(qs.charAt(i + 2), 16) < 0) {
+            throw new IllegalArgumentException(
+                "Illegal hex characters in escape (%) pattern: " + qs);
+        }
+    }
+
+    /**
+     * Find the parameter at qs[start,end), if any, and store where its key
+     * and value lie at offsets[i,i+4).
+     *
+     * @return True if there is a parameter.
+     */
+    private static boolean add(String qs, int start, int end, int[] offsets,
+        int i) {
+
+        if (start == end) {
+            return false;
+        }
+        // "k=" and "k" both have a null value.
+        while (end > start && qs.charAt(end - 1) == '=') {
+            end -= 1;
+        }
+        int eq = find('=', qs, start, end);
+        if (end == start || (eq >= 0 && find('=', qs, eq + 1, end) >= 0)) {
+            throw new IllegalArgumentException("Bad query string: " + qs);
+        }
+        offsets[i] = start;
+        if (eq < 0) {
+            offsets[i + 1] = end;
+            offsets[i + 2] = -1;
+            offsets[i + 3] = -1;
+        } else {
+            offsets[i + 1] = eq;
+            offsets[i + 2] = eq + 1;
+            offsets[i + 3] = end;
+        }
+        return true;
+    }
+
+    private final String raw;
+
+    // Parameter i's key is raw[offsets[4i],offsets[4i+1]) and its value is
+    // raw[offsets[4i+2],offsets[4i+3]), or null if offsets[4i+2] is -1.
+    private final int[] offsets;
+    private final int size;
+
+    // Decoded keys and values, filled in as needed. Threads that race to
+    // fill them in may each decode the same string, and may lose each
+    // other's arrays, but Strings are immutable, so no thread ever sees a
+    // wrong one.
+    private volatile String[] keys;
+    private volatile String[] values;
 
     // Private constructor. Please use QueryString::parse.
-    private QueryString() {
+    private QueryString(String raw, int[] offsets, int size) {
+        this.raw = raw;
+        this.offsets = offsets;
+        this.size = size;
     }
 
     /**
@@ -58,7 +126,7 @@ public class QueryString {
      * @return True if there are no query parameters.
      */
     public boolean isEmpty() {
-        return map.isEmpty();
+        return size == 0;
     }
 
     /**
@@ -90,15 +158,10 @@ public class QueryString {
      * @return True when all key conditions evaluate to true.
      */
     public boolean cond(String... keys) {
-        for (String i : Arrays.asList(keys)) {
-            if (i.startsWith("!")) {
-                if (map.containsKey(i.substring(1))) {
-                    return false;
-                }
-            } else {
-                if (!map.containsKey(i)) {
-                    return false;
-                }
+        for (String i : keys) {
+            boolean negated = i.startsWith("!");
+            if (negated == (indexOf(i, negated ? 1 : 0) >= 0)) {
+                return false;
             }
         }
         return true;
@@ -112,7 +175,7 @@ public class QueryString {
      * @return True if 'key' exists.
      */
     public boolean has(String key) {
-        return map.containsKey(key);
+        return indexOf(key) >= 0;
     }
 
     /**
@@ -147,13 +210,7 @@ public class QueryString {
      *     not exist.
      */
     public boolean isInteger(String key) {
-        if (!has(key)) return false;
-        try {
-            Integer.valueOf(get(key));
-            return true;
-        } catch (Exception e) {
-            return false;
-        }
+        return isInteger(indexOf(key), Integer.MIN_VALUE, Integer.MAX_VALUE);
     }
 
     /**
@@ -165,13 +222,7 @@ public class QueryString {
      *     not exist.
      */
     public boolean isLong(String key) {
-        if (!has(key)) return false;
-        try {
-            Long.valueOf(get(key));
-            return true;
-        } catch (Exception e) {
-            return false;
-        }
+        return isInteger(indexOf(key), Long.MIN_VALUE, Long.MAX_VALUE);
     }
 
     /**
@@ -236,21 +287,8 @@ public class QueryString {
     public int getInteger(String key) throws MissingParameterException,
         WrongParameterTypeException {
 
-        if (key == null) {
-            throw new IllegalArgumentException("key is null");
-        }
-        String val = get(key);
-        if (val == null) {
-            throw new MissingParameterException(
-                "Query parameter '"+key+"' is not set");
-        }
-        try {
-            return Integer.valueOf(val);
-        } catch (Exception e) {
-            throw new WrongParameterTypeException(String.format(
-                "Value '%s' for key '%s' is not an Integer",
-                val, key));
-        }
+        return (int) parse(key, Integer.MIN_VALUE, Integer.MAX_VALUE,
+            "an Integer");
     }
 
     /**
@@ -269,21 +307,142 @@ public class QueryString {
     public long getLong(String key) throws MissingParameterException,
         WrongParameterTypeException {
 
-        if (key == null) {
-            throw new IllegalArgumentException("key is null");
+        return parse(key, Long.MIN_VALUE, Long.MAX_VALUE, "a Long");
+    }
+
+    /**
+     * Get value of a parameter as an integer, or a default.
+     *
+     * Never throws, so it is cheap to use on untrusted input.
+     *
+     * @param key Query string parameter key.
+     *
+     * @param defaultValue Returned when 'key' does not exist, has no value, or
+     *     its value is not an Integer.
+     *
+     * @return Integer value of key, or defaultValue.
+     */
+    public int getInt(String key, int defaultValue) {
+        int i = indexOf(key);
+        if (!isInteger(i, Integer.MIN_VALUE, Integer.MAX_VALUE)) {
+            return defaultValue;
         }
-        String val = get(key);
-        if (val == null) {
-            throw new MissingParameterException(
-                "Query parameter '"+key+"' is not set");
+        return (int) integerValue(i);
+    }
+
+    /**
+     * Get value of a parameter as a long, or a default.
+     *
+     * Never throws, so it is cheap to use on untrusted input.
+     *
+     * @param key Query string parameter key.
+     *
+     * @param defaultValue Returned when 'key' does not exist, has no value, or
+     *     its value is not a Long.
+     *
+     * @return Long value of key, or defaultValue.
+     */
+    public long getLong(String key, long defaultValue) {
+        int i = indexOf(key);
+        if (!isInteger(i, Long.MIN_VALUE, Long.MAX_VALUE)) {
+            return defaultValue;
         }
-        try {
-            return Long.valueOf(val);
-        } catch (Exception e) {
-            throw new WrongParameterTypeException(String.format(
-                "Value '%s' for key '%s' is not a Long",
-                val, key));
+        return integerValue(i);
+    }
+
+    /**
+     * Try to get value of a parameter as a long.
+     *
+     * Never throws, and allocates nothing when result is reused.
+     *
+     *     QueryString.LongResult limit = new QueryString.LongResult();
+     *     if (qs.tryGetLong("limit", limit).isPresent()) {
+     *         // use limit.getAsLong()
+     *     }
+     *
+     * @param key Query string parameter key.
+     *
+     * @param result Receives the value, or is emptied when 'key' does not
+     *     exist, has no value, or its value is not a Long.
+     *
+     * @return result.
+     */
+    public LongResult tryGetLong(String key, LongResult result) {
+        int i = indexOf(key);
+        if (isInteger(i, Long.MIN_VALUE, Long.MAX_VALUE)) {
+            result.set(integerValue(i));
+        } else {
+            result.clear();
+        }
+        return result;
+    }
+
+    /**
+     * Get all values of a repeated parameter, in order.
+     *
+     * Occurrences of 'key' without a value are left out.
+     *
+     * @param key Query string parameter key.
+     *
+     * @return Values of key. Empty if there are none.
+     */
+    public String[] getAll(String key) {
+        String[] result = new String[count(key)];
+        int n = 0;
+        for (int i = 0; n < result.length; ++i) {
+            if (offsets[4 * i + 2] >= 0 && keyEquals(i, key)) {
+                result[n++] = value(i);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Get all values of a repeated parameter as integers, in order.
+     *
+     * Occurrences of 'key' without a value are left out.
+     *
+     * @param key Query string parameter key.
+     *
+     * @return Integer values of key. Empty if there are none.
+     *
+     * @throws WrongParameterTypeException when a value at 'key' is not an
+     *     Integer.
+     */
+    public int[] getIntArray(String key) throws WrongParameterTypeException {
+        int[] result = new int[count(key)];
+        int n = 0;
+        for (int i = 0; n < result.length; ++i) {
+            if (offsets[4 * i + 2] >= 0 && keyEquals(i, key)) {
+                result[n++] = (int) parse(i, key, Integer.MIN_VALUE,
+                    Integer.MAX_VALUE, "an Integer");
+            }
         }
+        return result;
+    }
+
+    /**
+     * Get all values of a repeated parameter as longs, in order.
+     *
+     * Occurrences of 'key' without a value are left out.
+     *
+     * @param key Query string parameter key.
+     *
+     * @return Long values of key. Empty if there are none.
+     *
+     * @throws WrongParameterTypeException when a value at 'key' is not a
+     *     Long.
+     */
+    public long[] getLongArray(String key) throws WrongParameterTypeException {
+        long[] result = new long[count(key)];
+        int n = 0;
+        for (int i = 0; n < result.length; ++i) {
+            if (offsets[4 * i + 2] >= 0 && keyEquals(i, key)) {
+                result[n++] = parse(i, key, Long.MIN_VALUE, Long.MAX_VALUE,
+                    "a Long");
+            }
+        }
+        return result;
     }
 
     /**
@@ -348,19 +507,223 @@ public class QueryString {
         }
     }
 
-    private void put(String key, String val) {
-        map.put(key,  val);
+    /**
+     * Find c in qs[start,end).
+     *
+     * @return Index of c, or -1.
+     */
+    private static int find(char c, String qs, int start, int end) {
+        int i = qs.indexOf(c, start);
+        return (i < end) ? i : -1;
     }
 
     private String get(String key) {
-        return map.get(key);
+        return value(indexOf(key));
     }
 
-    private static String decodeUriComponent(String component) {
-        try {
-            return URLDecoder.decode(component, "UTF-8");
-        } catch (UnsupportedEncodingException e) {
-            throw new RuntimeException(e);
+    /**
+     * Decoded value of parameter i.
+     *
+     * @return Value, or null if i is -1 or the parameter has no value.
+     */
+    private String value(int i) {
+        if (i < 0 || offsets[4 * i + 2] < 0) {
+            return null;
+        }
+        String[] values = this.values;
+        if (values == null) {
+            values = new String[size];
+            this.values = values;
+        }
+        String result = values[i];
+        if (result == null) {
+            result = UriDecoder.decode(raw, offsets[4 * i + 2],
+                offsets[4 * i + 3]);
+            values[i] = result;
+        }
+        return result;
+    }
+
+    private long parse(String key, long min, long max, String type)
+        throws MissingParameterException, WrongParameterTypeException {
+
+        if (key == null) {
+            throw new IllegalArgumentException("key is null");
+        }
+        int i = indexOf(key);
+        if (i < 0 || offsets[4 * i + 2] < 0) {
+            throw new MissingParameterException(
+                "Query parameter '"+key+"' is not set");
+        }
+        return parse(i, key, min, max, type);
+    }
+
+    private long parse(int i, String key, long min, long max, String type)
+        throws WrongParameterTypeException {
+
+        if (!isInteger(i, min, max)) {
+            throw new WrongParameterTypeException(String.format(
+                "Value '%s' for key '%s' is not %s",
+                value(i), key, type));
+        }
+        return integerValue(i);
+    }
+
+    /**
+     * Is the value of parameter i an integer in [min,max]?
+     *
+     * Values without escapes are read in place, so that nothing is decoded
+     * or allocated.
+     *
+     * @return False if i is -1, the parameter has no value, or the value is
+     *     not an integer in range.
+     */
+    private boolean isInteger(int i, long min, long max) {
+        if (i < 0 || offsets[4 * i + 2] < 0) {
+            return false;
+        }
+        int start = offsets[4 * i + 2];
+        int end = offsets[4 * i + 3];
+        if (!needsDecoding(start, end)) {
+            return Numbers.isInteger(raw, start, end, min, max);
+        }
+        String val = value(i);
+        return Numbers.isInteger(val, 0, val.length(), min, max);
+    }
+
+    /**
+     * Value of parameter i, which isInteger has accepted.
+     */
+    private long integerValue(int i) {
+        int start = offsets[4 * i + 2];
+        int end = offsets[4 * i + 3];
+        if (!needsDecoding(start, end)) {
+            return Numbers.parse(raw, start, end);
+        }
+        String val = value(i);
+        return Numbers.parse(val, 0, val.length());
+    }
+
+    /**
+     * Number of parameters with a key and a value.
+     */
+    private int count(String key) {
+        if (key == null) {
+            throw new IllegalArgumentException("key is null");
+        }
+        int result = 0;
+        for (int i = 0; i < size; ++i) {
+            if (offsets[4 * i + 2] >= 0 && keyEquals(i, key)) {
+                result += 1;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Find the parameter with a key. If a key is repeated, the last one wins.
+     *
+     * @return Index of the parameter, or -1.
+     */
+    private int indexOf(String key) {
+        if (key == null) {
+            return -1;
+        }
+        return indexOf(key, 0);
+    }
+
+    /**
+     * Find the parameter whose key is key[from,...), without taking the
+     * substring.
+     */
+    private int indexOf(String key, int from) {
+        for (int i = size - 1; i >= 0; --i) {
+            if (keyEquals(i, key, from)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private boolean keyEquals(int i, String key) {
+        return keyEquals(i, key, 0);
+    }
+
+    private boolean keyEquals(int i, String key, int from) {
+        int len = key.length() - from;
+        String[] keys = this.keys;
+        String decoded = (keys == null) ? null : keys[i];
+        if (decoded == null) {
+            int start = offsets[4 * i];
+            int end = offsets[4 * i + 1];
+            if (!needsDecoding(start, end)) {
+                return end - start == len
+                    && raw.regionMatches(start, key, from, len);
+            }
+            if (keys == null) {
+                keys = new String[size];
+                this.keys = keys;
+            }
+            decoded = UriDecoder.decode(raw, start, end);
+            keys[i] = decoded;
+        }
+        return decoded.length() == len
+            && decoded.regionMatches(0, key, from, len);
+    }
+
+    private boolean needsDecoding(int start, int end) {
+        for (int i = start; i < end; ++i) {
+            char c = raw.charAt(i);
+            if (c == '%' || c == '+') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Primitive result of tryGetLong, in the manner of OptionalLong.
+     *
+     * Results are mutable so that one may be reused across calls.
+     */
+    public static final class LongResult {
+        private boolean present;
+        private long value;
+
+        /**
+         * Was a value found?
+         */
+        public boolean isPresent() {
+            return present;
+        }
+
+        /**
+         * Get the value.
+         *
+         * @throws java.util.NoSuchElementException when no value was found.
+         */
+        public long getAsLong() {
+            if (!present) {
+                throw new NoSuchElementException("No value present");
+            }
+            return value;
+        }
+
+        /**
+         * Get the value, or other if no value was found.
+         */
+        public long orElse(long other) {
+            return present ? value : other;
+        }
+
+        void set(long value) {
+            this.present = true;
+            this.value = value;
+        }
+
+        void clear() {
+            this.present = false;
+            this.value = 0;
         }
     }
 }
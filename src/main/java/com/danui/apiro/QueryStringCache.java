@@ -0,0 +1,98 @@
+package com.danui.apiro;
+
+/**
+ * Bounded cache of parsed query strings, safe for concurrent use.
+ *
+ * Many requests repeat the same query string, for example when clients page
+ * through a list. A cached QueryString is shared by every request with that
+ * query string, together with the keys and values it has decoded, so repeated
+ * query strings are neither parsed nor decoded again.
+ *
+ *     static final QueryStringCache QUERIES = new QueryStringCache(10000);
+ *
+ *     QueryString qs = QUERIES.parse(req.getQueryString());
+ *
+ * The cache keeps its memory bounded when flooded with unique query strings.
+ * It holds at most maxEntries query strings, evicting those not used lately.
+ * Only query strings seen twice recently are cached, so query strings that
+ * are never repeated do not push out ones that are. Query strings longer than
+ * maxLength are never cached.
+ *
+ * @author Wong H'sien Jin
+ */
+public final class QueryStringCache {
+
+    /**
+     * Longest query string cached, unless another length is given.
+     */
+    public static final int DEFAULT_MAX_LENGTH = 1024;
+
+    private final PathCache<QueryString> cache;
+    private final CacheConfig config;
+    private final int maxLength;
+
+    /**
+     * @param maxEntries Most query strings to hold.
+     */
+    public QueryStringCache(int maxEntries) {
+        this(maxEntries, DEFAULT_MAX_LENGTH);
+    }
+
+    /**
+     * @param maxEntries Most query strings to hold.
+     *
+     * @param maxLength Longest query string to cache.
+     */
+    public QueryStringCache(int maxEntries, int maxLength) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("maxEntries must be positive");
+        }
+        if (maxLength < 0) {
+            throw new IllegalArgumentException("maxLength is negative");
+        }
+        this.cache = new PathCache<>(maxEntries, true, maxLength);
+        this.config = new CacheConfig(maxEntries);
+        this.maxLength = maxLength;
+    }
+
+    /**
+     * Parse a query string, or get it from the cache.
+     *
+     * @param qs Query String (e.g. from req.getQueryString())
+     *
+     * @return QueryString object, which may be shared with other callers.
+     *
+     * @throws IllegalArgumentException when the query string is malformed,
+     *     as QueryString.parse() does. Malformed query strings are not
+     *     cached.
+     */
+    public QueryString parse(String qs) {
+        if (qs == null || qs.isEmpty()) {
+            return QueryString.parse(qs);
+        }
+        if (qs.length() > maxLength) {
+            // Not even remembered as seen, so floods of long query strings
+            // cannot crowd out short ones.
+            config.misses.increment();
+            return QueryString.parse(qs);
+        }
+        QueryString result = cache.get(qs);
+        if (result != null) {
+            config.hits.increment();
+            return result;
+        }
+        config.misses.increment();
+        result = QueryString.parse(qs);
+        if (cache.admits(qs)) {
+            cache.put(qs, result);
+        }
+        return result;
+    }
+
+    /**
+     * Get hits and misses so far. Empty query strings are not counted.
+     */
+    public CacheStats stats() {
+        return config.snapshot();
+    }
+}
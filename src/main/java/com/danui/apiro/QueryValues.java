@@ -0,0 +1,191 @@
+package com.danui.apiro;
+
+import java.util.Arrays;
+
+/**
+ * Values of the parameters declared by a QuerySchema, read from one query
+ * string.
+ *
+ * Parameters may be read by key, or by index as given by
+ * QuerySchema.indexOf(), which saves looking the key up. Numbers and booleans
+ * are held as primitives, and strings are decoded on first use. Values may be
+ * reused for decoding another query string, so they are not safe to share
+ * between threads.
+ *
+ * @author Wong H'sien Jin
+ */
+public final class QueryValues {
+
+    private static final long[] NO_NUMBERS = new long[0];
+    private static final int[] NO_OFFSETS = new int[0];
+
+    private QuerySchema schema;
+    String raw;
+    // Parameter i's value is raw[offsets[2i],offsets[2i+1]), or there is
+    // none if offsets[2i] is -1.
+    int[] offsets = NO_OFFSETS;
+    // Numeric values, with booleans as 0 or 1, or defaults.
+    long[] numbers = NO_NUMBERS;
+    private String[] strings;
+    // Bit masks of the parameters whose keys were given, and those with
+    // values.
+    long present;
+    long valued;
+    int form;
+
+    /**
+     * Create empty values, for QuerySchema.decode(String, QueryValues) to
+     * fill.
+     */
+    public QueryValues() {
+    }
+
+    void reset(QuerySchema schema, String raw) {
+        int size = schema.size();
+        if (numbers.length < size) {
+            numbers = new long[size];
+            offsets = new int[2 * size];
+            strings = new String[size];
+        } else if (strings != null) {
+            Arrays.fill(strings, null);
+        }
+        Arrays.fill(offsets, 0, 2 * size, -1);
+        this.schema = schema;
+        this.raw = raw;
+        this.present = 0;
+        this.valued = 0;
+        this.form = -1;
+    }
+
+    /**
+     * Number of the schema's form that the query string matched.
+     *
+     * @return Form, in order of declaration, or -1 if the schema declares no
+     *     forms.
+     */
+    public int form() {
+        return form;
+    }
+
+    /**
+     * Was a parameter's key given, with or without a value?
+     */
+    public boolean has(int param) {
+        return (present & (1L << param)) != 0;
+    }
+
+    /**
+     * Was a parameter's key given, with or without a value?
+     *
+     * @return False if key is not declared or was not given.
+     */
+    public boolean has(String key) {
+        int param = schema.indexOf(key);
+        return param >= 0 && has(param);
+    }
+
+    /**
+     * Was a parameter given a value? Raised flags count as having one.
+     */
+    public boolean hasValue(int param) {
+        return (valued & (1L << param)) != 0;
+    }
+
+    /**
+     * Get value of a string parameter, or its default.
+     *
+     * @throws MissingParameterException when the parameter has no value or
+     *     default.
+     */
+    public String getString(int param) throws MissingParameterException {
+        check(param, QuerySchema.Type.STRING, null);
+        if (!hasValue(param)) {
+            return schema.stringDefault(param);
+        }
+        return string(param);
+    }
+
+    public String getString(String key) throws MissingParameterException {
+        return getString(index(key));
+    }
+
+    /**
+     * Get value of an integer parameter, or its default.
+     *
+     * @throws MissingParameterException when the parameter has no value or
+     *     default.
+     */
+    public int getInt(int param) throws MissingParameterException {
+        check(param, QuerySchema.Type.INT, null);
+        return (int) numbers[param];
+    }
+
+    public int getInt(String key) throws MissingParameterException {
+        return getInt(index(key));
+    }
+
+    /**
+     * Get value of a long or integer parameter, or its default.
+     *
+     * @throws MissingParameterException when the parameter has no value or
+     *     default.
+     */
+    public long getLong(int param) throws MissingParameterException {
+        check(param, QuerySchema.Type.LONG, QuerySchema.Type.INT);
+        return numbers[param];
+    }
+
+    public long getLong(String key) throws MissingParameterException {
+        return getLong(index(key));
+    }
+
+    /**
+     * Get value of a boolean parameter or flag, or its default. Flags
+     * default to false.
+     *
+     * @throws MissingParameterException when the parameter has no value or
+     *     default.
+     */
+    public boolean getBoolean(int param) throws MissingParameterException {
+        check(param, QuerySchema.Type.BOOLEAN, QuerySchema.Type.FLAG);
+        return numbers[param] != 0;
+    }
+
+    public boolean getBoolean(String key) throws MissingParameterException {
+        return getBoolean(index(key));
+    }
+
+    /**
+     * Decoded value of parameter i, which has one.
+     */
+    String string(int i) {
+        if (strings[i] == null) {
+            strings[i] = UriDecoder.decode(raw, offsets[2 * i],
+                offsets[2 * i + 1]);
+        }
+        return strings[i];
+    }
+
+    private int index(String key) {
+        int result = schema.indexOf(key);
+        if (result < 0) {
+            throw new IllegalArgumentException(
+                "Query parameter '" + key + "' is not declared");
+        }
+        return result;
+    }
+
+    private void check(int param, QuerySchema.Type type,
+        QuerySchema.Type other) throws MissingParameterException {
+
+        QuerySchema.Type actual = schema.type(param);
+        if (actual != type && actual != other) {
+            throw new IllegalArgumentException("Query parameter '"
+                + schema.key(param) + "' is not " + type.description);
+        }
+        if (!hasValue(param) && !schema.hasDefault(param)) {
+            throw new MissingParameterException(
+                "Query parameter '" + schema.key(param) + "' is not set");
+        }
+    }
+}
@@ -0,0 +1,522 @@
+package com.danui.apiro;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Parses the subset of java.util.regex syntax that an Automaton can run.
+ *
+ * Supported are literals, escaped punctuation, control and hex escapes,
+ * the classes . \d \D \w \W \s \S, character classes with ranges, capturing,
+ * named, and non-capturing groups, alternation, and greedy or lazy
+ * quantifiers. Anything else, such as anchors, lookaround, back references,
+ * flags, or possessive quantifiers, is unsupported.
+ */
+class RegexParser {
+
+    /**
+     * Largest bound allowed in a {n,m} quantifier.
+     */
+    private static final int MAX_REPEAT = 1000;
+
+    /**
+     * Parse a regex.
+     *
+     * @return Syntax tree, or null if the regex uses unsupported syntax.
+     */
+    static Node parse(String regex) {
+        RegexParser parser = new RegexParser(regex);
+        try {
+            Node result = parser.alternation();
+            if (parser.pos != regex.length()) {
+                return null;
+            }
+            return result;
+        } catch (Unsupported e) {
+            return null;
+        }
+    }
+
+    /**
+     * Number of capturing groups in a regex returned by parse.
+     */
+    static int groupCount(Node node) {
+        if (node instanceof Group) {
+            Group group = (Group) node;
+            return Math.max(group.index, groupCount(group.body));
+        }
+        int result = 0;
+        if (node instanceof Concat) {
+            for (Node i : ((Concat) node).items) {
+                result = Math.max(result, groupCount(i));
+            }
+        } else if (node instanceof Alternation) {
+            for (Node i : ((Alternation) node).items) {
+                result = Math.max(result, groupCount(i));
+            }
+        } else if (node instanceof Repeat) {
+            result = groupCount(((Repeat) node).body);
+        }
+        return result;
+    }
+
+    /**
+     * Will an Automaton report the same group offsets as a Matcher?
+     *
+     * Both agree on whether a regex matches, but can disagree on groups in
+     * two cases. A Matcher lets a repetition end with an iteration that
+     * matched the empty string, whereas an Automaton never repeats without
+     * consuming input, which changes which way of matching is preferred. A
+     * Matcher may also keep the groups of an iteration it backtracked out of.
+     * So groups are only reported alike if no repeated body can match the
+     * empty string or contains a group.
+     */
+    static boolean groupsLikeMatcher(Node node) {
+        if (node instanceof Repeat) {
+            Repeat repeat = (Repeat) node;
+            if (repeat.max != 1 && (groupCount(repeat.body) > 0
+                    || matchesEmpty(repeat.body))) {
+                return false;
+            }
+            return groupsLikeMatcher(repeat.body);
+        }
+        if (node instanceof Group) {
+            return groupsLikeMatcher(((Group) node).body);
+        }
+        List<Node> items = null;
+        if (node instanceof Concat) {
+            items = ((Concat) node).items;
+        } else if (node instanceof Alternation) {
+            items = ((Alternation) node).items;
+        }
+        if (items != null) {
+            for (Node i : items) {
+                if (!groupsLikeMatcher(i)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Can a regex returned by parse match the empty string?
+     */
+    static boolean matchesEmpty(Node node) {
+        if (node instanceof CharSet) {
+            return false;
+        }
+        if (node instanceof Repeat) {
+            Repeat repeat = (Repeat) node;
+            return repeat.min == 0 || matchesEmpty(repeat.body);
+        }
+        if (node instanceof Group) {
+            return matchesEmpty(((Group) node).body);
+        }
+        if (node instanceof Concat) {
+            for (Node i : ((Concat) node).items) {
+                if (!matchesEmpty(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        for (Node i : ((Alternation) node).items) {
+            if (matchesEmpty(i)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Syntax tree node.
+     */
+    abstract static class Node {
+    }
+
+    /**
+     * Matches one code point. Ranges are sorted, disjoint, inclusive pairs.
+     */
+    static class CharSet extends Node {
+        final int[] ranges;
+        final boolean negated;
+
+        CharSet(int[] ranges, boolean negated) {
+            this.ranges = ranges;
+            this.negated = negated;
+        }
+
+        boolean contains(int c) {
+            for (int i = 0; i < ranges.length; i += 2) {
+                if (c < ranges[i]) {
+                    break;
+                }
+                if (c <= ranges[i + 1]) {
+                    return !negated;
+                }
+            }
+            return negated;
+        }
+    }
+
+    static class Concat extends Node {
+        final List<Node> items;
+
+        Concat(List<Node> items) {
+            this.items = items;
+        }
+    }
+
+    static class Alternation extends Node {
+        final List<Node> items;
+
+        Alternation(List<Node> items) {
+            this.items = items;
+        }
+    }
+
+    /**
+     * Repetition. A max of -1 means unbounded.
+     */
+    static class Repeat extends Node {
+        final Node body;
+        final int min;
+        final int max;
+        final boolean greedy;
+
+        Repeat(Node body, int min, int max, boolean greedy) {
+            this.body = body;
+            this.min = min;
+            this.max = max;
+            this.greedy = greedy;
+        }
+    }
+
+    static class Group extends Node {
+        final Node body;
+        final int index;
+
+        Group(Node body, int index) {
+            this.body = body;
+            this.index = index;
+        }
+    }
+
+    private static class Unsupported extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        Unsupported() {
+            super(null, null, false, false);
+        }
+    }
+
+    private static final int[] DIGIT = {'0', '9'};
+    private static final int[] WORD = {'0', '9', 'A', 'Z', '_', '_', 'a', 'z'};
+    private static final int[] SPACE = {'\t', '\r', ' ', ' '};
+    private static final int[] LINE_TERMINATORS = {
+        '\n', '\n', '\r', '\r', 0x85, 0x85, 0x2028, 0x2029};
+
+    private final String regex;
+    private int pos;
+    private int groups;
+
+    private RegexParser(String regex) {
+        this.regex = regex;
+    }
+
+    private boolean more() {
+        return pos < regex.length();
+    }
+
+    private int peek() {
+        return regex.codePointAt(pos);
+    }
+
+    private int next() {
+        int c = regex.codePointAt(pos);
+        pos += Character.charCount(c);
+        return c;
+    }
+
+    private boolean accept(String s) {
+        if (regex.startsWith(s, pos)) {
+            pos += s.length();
+            return true;
+        }
+        return false;
+    }
+
+    private Node alternation() {
+        List<Node> items = new ArrayList<>();
+        items.add(concat());
+        while (accept("|")) {
+            items.add(concat());
+        }
+        return (items.size() == 1) ? items.get(0) : new Alternation(items);
+    }
+
+    private Node concat() {
+        List<Node> items = new ArrayList<>();
+        while (more() && peek() != '|' && peek() != ')') {
+            items.add(repeat(atom()));
+        }
+        return (items.size() == 1) ? items.get(0) : new Concat(items);
+    }
+
+    private Node repeat(Node atom) {
+        int min;
+        int max;
+        if (accept("?")) {
+            min = 0;
+            max = 1;
+        } else if (accept("*")) {
+            min = 0;
+            max = -1;
+        } else if (accept("+")) {
+            min = 1;
+            max = -1;
+        } else if (accept("{")) {
+            min = number();
+            max = min;
+            if (accept(",")) {
+                max = (more() && peek() == '}') ? -1 : number();
+            }
+            if (!accept("}") || (max >= 0 && max < min)) {
+                throw new Unsupported();
+            }
+        } else {
+            return atom;
+        }
+        if (accept("+")) {
+            // Possessive quantifiers need backtracking control.
+            throw new Unsupported();
+        }
+        boolean greedy = !accept("?");
+        return new Repeat(atom, min, max, greedy);
+    }
+
+    private int number() {
+        int start = pos;
+        int result = 0;
+        while (more() && peek() >= '0' && peek() <= '9') {
+            result = result * 10 + (next() - '0');
+            if (result > MAX_REPEAT) {
+                throw new Unsupported();
+            }
+        }
+        if (pos == start) {
+            throw new Unsupported();
+        }
+        return result;
+    }
+
+    private Node atom() {
+        int c = next();
+        switch (c) {
+        case '(':
+            return group();
+        case '[':
+            return charClass();
+        case '.':
+            return new CharSet(LINE_TERMINATORS, true);
+        case '\\':
+            return escape();
+        case '^':
+        case '$':
+        case '*':
+        case '+':
+        case '?':
+        case '{':
+            throw new Unsupported();
+        default:
+            return literal(c);
+        }
+    }
+
+    private Node group() {
+        int index = 0;
+        if (accept("?:")) {
+            index = -1;
+        } else if (accept("?<")) {
+            if (!more() || !Character.isLetter(peek())) {
+                throw new Unsupported();
+            }
+            while (more() && Character.isLetterOrDigit(peek())) {
+                next();
+            }
+            if (!accept(">")) {
+                throw new Unsupported();
+            }
+        } else if (more() && peek() == '?') {
+            throw new Unsupported();
+        }
+        if (index == 0) {
+            index = ++groups;
+        }
+        Node body = alternation();
+        if (!accept(")")) {
+            throw new Unsupported();
+        }
+        return (index < 0) ? body : new Group(body, index);
+    }
+
+    private Node escape() {
+        if (!more()) {
+            throw new Unsupported();
+        }
+        int c = next();
+        switch (c) {
+        case 'd':
+            return new CharSet(DIGIT, false);
+        case 'D':
+            return new CharSet(DIGIT, true);
+        case 'w':
+            return new CharSet(WORD, false);
+        case 'W':
+            return new CharSet(WORD, true);
+        case 's':
+            return new CharSet(SPACE, false);
+        case 'S':
+            return new CharSet(SPACE, true);
+        default:
+            return literal(escapedChar(c));
+        }
+    }
+
+    /**
+     * Code point of a single character escape, following the backslash.
+     */
+    private int escapedChar(int c) {
+        switch (c) {
+        case 't':
+            return '\t';
+        case 'n':
+            return '\n';
+        case 'r':
+            return '\r';
+        case 'f':
+            return '\f';
+        case 'a':
+            return 0x07;
+        case 'e':
+            return 0x1B;
+        case 'x':
+            return hex(2);
+        case 'u':
+            return hex(4);
+        default:
+            if (c < 128 && Character.isLetterOrDigit(c)) {
+                throw new Unsupported();
+            }
+            return c;
+        }
+    }
+
+    private int hex(int digits) {
+        if (pos + digits > regex.length()) {
+            throw new Unsupported();
+        }
+        int result = 0;
+        for (int i = 0; i < digits; ++i) {
+            int d = Character.digit(regex.charAt(pos++), 16);
+            if (d < 0) {
+                throw new Unsupported();
+            }
+            result = result * 16 + d;
+        }
+        return result;
+    }
+
+    private static Node literal(int c) {
+        return new CharSet(new int[] {c, c}, false);
+    }
+
+    private Node charClass() {
+        boolean negated = accept("^");
+        List<int[]> ranges = new ArrayList<>();
+        boolean first = true;
+        while (true) {
+            if (!more()) {
+                throw new Unsupported();
+            }
+            int c = next();
+            if (c == ']' && !first) {
+                break;
+            }
+            first = false;
+            if (c == '[' || (c == '&' && more() && peek() == '&')) {
+                // Unions and intersections.
+                throw new Unsupported();
+            }
+            if (c == '\\') {
+                if (!more()) {
+                    throw new Unsupported();
+                }
+                int e = next();
+                if (e == 'd') {
+                    addRanges(ranges, DIGIT);
+                    continue;
+                } else if (e == 'w') {
+                    addRanges(ranges, WORD);
+                    continue;
+                } else if (e == 's') {
+                    addRanges(ranges, SPACE);
+                    continue;
+                }
+                c = escapedChar(e);
+            }
+            int hi = c;
+            if (regex.startsWith("-", pos) && pos + 1 < regex.length()
+                && regex.charAt(pos + 1) != ']') {
+                pos += 1;
+                hi = next();
+                if (hi == '\\') {
+                    if (!more()) {
+                        throw new Unsupported();
+                    }
+                    hi = escapedChar(next());
+                } else if (hi == '[') {
+                    throw new Unsupported();
+                }
+                if (hi < c) {
+                    throw new Unsupported();
+                }
+            }
+            ranges.add(new int[] {c, hi});
+        }
+        return new CharSet(normalize(ranges), negated);
+    }
+
+    private static void addRanges(List<int[]> ranges, int[] pairs) {
+        for (int i = 0; i < pairs.length; i += 2) {
+            ranges.add(new int[] {pairs[i], pairs[i + 1]});
+        }
+    }
+
+    /**
+     * Sort and merge ranges into a flat array of disjoint pairs.
+     */
+    private static int[] normalize(List<int[]> ranges) {
+        int[][] sorted = ranges.toArray(new int[ranges.size()][]);
+        Arrays.sort(sorted, new Comparator<int[]>() {
+            @Override
+            public int compare(int[] a, int[] b) {
+                return Integer.compare(a[0], b[0]);
+            }
+        });
+        int[] result = new int[sorted.length * 2];
+        int n = 0;
+        for (int[] range : sorted) {
+            if (n > 0 && range[0] <= result[n - 1] + 1) {
+                result[n - 1] = Math.max(result[n - 1], range[1]);
+            } else {
+                result[n++] = range[0];
+                result[n++] = range[1];
+            }
+        }
+        return Arrays.copyOf(result, n);
+    }
+}
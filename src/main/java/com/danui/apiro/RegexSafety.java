@@ -0,0 +1,295 @@
+package com.danui.apiro;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Spots regexes that may backtrack catastrophically.
+ *
+ * A backtracking matcher takes exponential time when a repetition can split
+ * the same text into iterations in many ways, and the rest of the regex then
+ * fails. That happens when the repeated part itself repeats something a
+ * varying number of times, as in "(a+)+" or "(\w+\s?)*", unless some part
+ * that every iteration must match cannot be matched by the inner repetition,
+ * as the slash in "(/[^/]+)*". It also happens when the repeated part is an
+ * alternation whose alternatives can start with the same character, as in
+ * "(a|ab)*".
+ *
+ * The check is a heuristic, and may flag some regexes that are safe. Anchors
+ * at either end are ignored, as routes match whole paths anyway. Regexes
+ * that RegexParser cannot parse, such as those with back references,
+ * lookaround or inline flags, cannot be checked, and are reported as risky.
+ */
+final class RegexSafety {
+
+    /**
+     * Repetitions of at most this many iterations are too small to matter.
+     * An ambiguous body repeated n times can take time of the path's length
+     * to the power n.
+     */
+    private static final int SMALL_REPEAT = 3;
+
+    private RegexSafety() {
+    }
+
+    /**
+     * Check a regex.
+     *
+     * @return Description of the risk, or null if none was found.
+     */
+    static String check(String regex) {
+        RegexParser.Node node = RegexParser.parse(stripAnchors(regex));
+        return (node == null) ? "syntax the check does not understand"
+            : check(node);
+    }
+
+    /**
+     * Drop a leading '^' and a trailing unescaped '$'.
+     */
+    private static String stripAnchors(String regex) {
+        int start = regex.startsWith("^") ? 1 : 0;
+        int end = regex.length();
+        if (end > start && regex.charAt(end - 1) == '$') {
+            int backslashes = 0;
+            while (end - 2 - backslashes >= start
+                && regex.charAt(end - 2 - backslashes) == '\\') {
+                backslashes += 1;
+            }
+            if (backslashes % 2 == 0) {
+                end -= 1;
+            }
+        }
+        return regex.substring(start, end);
+    }
+
+    private static String check(RegexParser.Node node) {
+        if (node instanceof RegexParser.Repeat) {
+            RegexParser.Repeat repeat = (RegexParser.Repeat) node;
+            if (repeat.max < 0 || repeat.max > SMALL_REPEAT) {
+                String result = checkRepeated(repeat.body);
+                if (result != null) {
+                    return result;
+                }
+            }
+            return check(repeat.body);
+        }
+        if (node instanceof RegexParser.Group) {
+            return check(((RegexParser.Group) node).body);
+        }
+        for (RegexParser.Node i : children(node)) {
+            String result = check(i);
+            if (result != null) {
+                return result;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Check the body of a repetition.
+     */
+    private static String checkRepeated(RegexParser.Node body) {
+        body = unwrap(body);
+        if (body instanceof RegexParser.Alternation) {
+            List<RegexParser.Node> items =
+                ((RegexParser.Alternation) body).items;
+            List<List<RegexParser.CharSet>> firsts = new ArrayList<>();
+            for (RegexParser.Node i : items) {
+                List<RegexParser.CharSet> first = new ArrayList<>();
+                firstChars(i, first);
+                for (List<RegexParser.CharSet> j : firsts) {
+                    if (intersects(first, j)) {
+                        return "repeated alternatives can start alike";
+                    }
+                }
+                firsts.add(first);
+                String result = checkRepeated(i);
+                if (result != null) {
+                    return result;
+                }
+            }
+            return null;
+        }
+        List<RegexParser.Repeat> inner = new ArrayList<>();
+        variableRepeats(body, inner);
+        List<RegexParser.Node> items = (body instanceof RegexParser.Concat)
+            ? ((RegexParser.Concat) body).items
+            : Collections.singletonList(body);
+        for (RegexParser.Repeat i : inner) {
+            List<RegexParser.CharSet> chars = new ArrayList<>();
+            allChars(i.body, chars);
+            if (!isSeparated(items, chars)) {
+                return "nested repetition";
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Must every iteration match something that chars cannot?
+     */
+    private static boolean isSeparated(List<RegexParser.Node> items,
+        List<RegexParser.CharSet> chars) {
+
+        for (RegexParser.Node i : items) {
+            if (RegexParser.matchesEmpty(i)) {
+                continue;
+            }
+            List<RegexParser.CharSet> itemChars = new ArrayList<>();
+            allChars(i, itemChars);
+            if (!intersects(itemChars, chars)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Collect repetitions that may match a varying number of times.
+     */
+    private static void variableRepeats(RegexParser.Node node,
+        List<RegexParser.Repeat> result) {
+
+        if (node instanceof RegexParser.Repeat) {
+            RegexParser.Repeat repeat = (RegexParser.Repeat) node;
+            if (repeat.max < 0 || repeat.max > repeat.min) {
+                result.add(repeat);
+            }
+            variableRepeats(repeat.body, result);
+        } else if (node instanceof RegexParser.Group) {
+            variableRepeats(((RegexParser.Group) node).body, result);
+        } else {
+            for (RegexParser.Node i : children(node)) {
+                variableRepeats(i, result);
+            }
+        }
+    }
+
+    /**
+     * Collect the sets of characters that may start a match of node.
+     */
+    private static void firstChars(RegexParser.Node node,
+        List<RegexParser.CharSet> result) {
+
+        if (node instanceof RegexParser.CharSet) {
+            result.add((RegexParser.CharSet) node);
+        } else if (node instanceof RegexParser.Repeat) {
+            if (((RegexParser.Repeat) node).max != 0) {
+                firstChars(((RegexParser.Repeat) node).body, result);
+            }
+        } else if (node instanceof RegexParser.Group) {
+            firstChars(((RegexParser.Group) node).body, result);
+        } else if (node instanceof RegexParser.Concat) {
+            for (RegexParser.Node i : ((RegexParser.Concat) node).items) {
+                firstChars(i, result);
+                if (!RegexParser.matchesEmpty(i)) {
+                    break;
+                }
+            }
+        } else {
+            for (RegexParser.Node i : children(node)) {
+                firstChars(i, result);
+            }
+        }
+    }
+
+    /**
+     * Collect the sets of characters that a match of node may contain.
+     */
+    private static void allChars(RegexParser.Node node,
+        List<RegexParser.CharSet> result) {
+
+        if (node instanceof RegexParser.CharSet) {
+            result.add((RegexParser.CharSet) node);
+        } else if (node instanceof RegexParser.Repeat) {
+            allChars(((RegexParser.Repeat) node).body, result);
+        } else if (node instanceof RegexParser.Group) {
+            allChars(((RegexParser.Group) node).body, result);
+        } else {
+            for (RegexParser.Node i : children(node)) {
+                allChars(i, result);
+            }
+        }
+    }
+
+    private static RegexParser.Node unwrap(RegexParser.Node node) {
+        while (node instanceof RegexParser.Group) {
+            node = ((RegexParser.Group) node).body;
+        }
+        return node;
+    }
+
+    private static List<RegexParser.Node> children(RegexParser.Node node) {
+        if (node instanceof RegexParser.Concat) {
+            return ((RegexParser.Concat) node).items;
+        }
+        if (node instanceof RegexParser.Alternation) {
+            return ((RegexParser.Alternation) node).items;
+        }
+        return Collections.emptyList();
+    }
+
+    private static boolean intersects(List<RegexParser.CharSet> a,
+        List<RegexParser.CharSet> b) {
+
+        for (RegexParser.CharSet i : a) {
+            for (RegexParser.CharSet j : b) {
+                if (intersects(i, j)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean intersects(RegexParser.CharSet a,
+        RegexParser.CharSet b) {
+
+        if (a.negated && b.negated) {
+            // Both leave out only a few of the many code points.
+            return true;
+        }
+        if (a.negated) {
+            return !covers(a.ranges, b.ranges);
+        }
+        if (b.negated) {
+            return !covers(b.ranges, a.ranges);
+        }
+        int i = 0;
+        int j = 0;
+        while (i < a.ranges.length && j < b.ranges.length) {
+            if (a.ranges[i + 1] < b.ranges[j]) {
+                i += 2;
+            } else if (b.ranges[j + 1] < a.ranges[i]) {
+                j += 2;
+            } else {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Is every code point of inner's ranges also in outer's?
+     */
+    private static boolean covers(int[] outer, int[] inner) {
+        for (int j = 0; j < inner.length; j += 2) {
+            int c = inner[j];
+            while (c <= inner[j + 1]) {
+                int end = -1;
+                for (int i = 0; i < outer.length; i += 2) {
+                    if (outer[i] <= c && c <= outer[i + 1]) {
+                        end = outer[i + 1];
+                        break;
+                    }
+                }
+                if (end < 0) {
+                    return false;
+                }
+                c = end + 1;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,161 @@
+package com.danui.apiro;
+
+/**
+ * Static analysis of route regexes.
+ */
+class RegexSyntax {
+
+    private static final String METACHARS = "\\^$.|?*+()[]{}";
+
+    private RegexSyntax() {
+    }
+
+    /**
+     * Literal text that every string matched by a regex must start with.
+     *
+     * For example "/doc/" for "/doc/([^/]+)/?", and "/do" for "/doc?". The
+     * prefix may be shorter than the longest possible one, but never longer.
+     *
+     * @return Literal prefix, possibly empty.
+     */
+    static String literalPrefix(String regex) {
+        if (hasTopLevelAlternation(regex)) {
+            return "";
+        }
+        StringBuilder prefix = new StringBuilder();
+        int len = regex.length();
+        int i = 0;
+        while (i < len) {
+            char c = regex.charAt(i);
+            if (c == '\\') {
+                if (i + 1 >= len || Character.isLetterOrDigit(
+                        regex.charAt(i + 1))) {
+                    break;
+                }
+                prefix.append(regex.charAt(i + 1));
+                i += 2;
+            } else if (METACHARS.indexOf(c) >= 0) {
+                if (c == '?' || c == '*' || c == '{') {
+                    // The last literal is optional.
+                    dropLastCodePoint(prefix);
+                }
+                break;
+            } else {
+                prefix.append(c);
+                i += 1;
+            }
+        }
+        return prefix.toString();
+    }
+
+    private static void dropLastCodePoint(StringBuilder sb) {
+        int len = sb.length();
+        if (len == 0) {
+            return;
+        }
+        if (len > 1 && Character.isLowSurrogate(sb.charAt(len - 1))
+            && Character.isHighSurrogate(sb.charAt(len - 2))) {
+            sb.setLength(len - 2);
+        } else {
+            sb.setLength(len - 1);
+        }
+    }
+
+    /**
+     * Names of a regex's capturing groups.
+     *
+     * @return Array indexed by group number, with null for group 0 and for
+     *     unnamed groups.
+     */
+    static String[] groupNames(String regex, int groupCount) {
+        String[] names = new String[groupCount + 1];
+        int group = 0;
+        int classDepth = 0;
+        int len = regex.length();
+        for (int i = 0; i < len; ++i) {
+            char c = regex.charAt(i);
+            if (c == '\\') {
+                if (i + 1 < len && regex.charAt(i + 1) == 'Q') {
+                    int end = regex.indexOf("\\E", i + 2);
+                    if (end < 0) {
+                        break;
+                    }
+                    i = end + 1;
+                } else {
+                    i += 1;
+                }
+            } else if (classDepth > 0) {
+                if (c == '[') {
+                    classDepth += 1;
+                } else if (c == ']') {
+                    classDepth -= 1;
+                }
+            } else if (c == '[') {
+                classDepth = 1;
+                if (i + 1 < len && regex.charAt(i + 1) == '^') {
+                    i += 1;
+                }
+                if (i + 1 < len && regex.charAt(i + 1) == ']') {
+                    i += 1;
+                }
+            } else if (c == '(') {
+                if (!regex.startsWith("?", i + 1)) {
+                    group += 1;
+                } else if (regex.startsWith("?<", i + 1) && i + 3 < len
+                    && Character.isLetter(regex.charAt(i + 3))) {
+                    group += 1;
+                    int close = regex.indexOf('>', i + 3);
+                    if (group < names.length && close > 0) {
+                        names[group] = regex.substring(i + 3, close);
+                    }
+                }
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Does the regex contain a '|' outside of any group or character class?
+     */
+    static boolean hasTopLevelAlternation(String regex) {
+        int depth = 0;
+        int classDepth = 0;
+        int len = regex.length();
+        for (int i = 0; i < len; ++i) {
+            char c = regex.charAt(i);
+            if (c == '\\') {
+                if (i + 1 < len && regex.charAt(i + 1) == 'Q') {
+                    int end = regex.indexOf("\\E", i + 2);
+                    if (end < 0) {
+                        return false;
+                    }
+                    i = end + 1;
+                } else {
+                    i += 1;
+                }
+            } else if (classDepth > 0) {
+                if (c == '[') {
+                    classDepth += 1;
+                } else if (c == ']') {
+                    classDepth -= 1;
+                }
+            } else if (c == '[') {
+                classDepth = 1;
+                // A ']' straight after '[' or '[^' is a literal.
+                if (i + 1 < len && regex.charAt(i + 1) == '^') {
+                    i += 1;
+                }
+                if (i + 1 < len && regex.charAt(i + 1) == ']') {
+                    i += 1;
+                }
+            } else if (c == '(') {
+                depth += 1;
+            } else if (c == ')') {
+                depth -= 1;
+            } else if (c == '|' && depth == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,87 @@
+package com.danui.apiro;
+
+import java.util.regex.Matcher;
+
+/**
+ * Keys that tell apart requests an endpoint answers the same way.
+ *
+ * A key is made of the route's regex, the path parameters and the values of
+ * chosen query parameters. Each value is written with its length, so that
+ * different values never make the same key.
+ */
+final class RequestKey {
+
+    private RequestKey() {
+    }
+
+    /**
+     * Key of a request.
+     *
+     * @param params Path parameters, from params().
+     *
+     * @param qs Query string, or null.
+     *
+     * @param queryKeys Query parameters that are part of the key.
+     *
+     * @return Key, or null if the query string is malformed, in which case
+     *     the request is best left to the endpoint.
+     */
+    static String of(Matcher matcher, String params, String qs,
+        String[] queryKeys) {
+
+        StringBuilder result = new StringBuilder();
+        result.append(matcher.pattern().pattern()).append('\n');
+        result.append(params);
+        if (queryKeys.length > 0) {
+            try {
+                QueryString query = QueryString.parse(qs);
+                for (String i : queryKeys) {
+                    result.append('\n');
+                    if (query.has(i)) {
+                        for (String value : query.getAll(i)) {
+                            append(result, value);
+                        }
+                    } else {
+                        result.append('-');
+                    }
+                }
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+        return result.toString();
+    }
+
+    /**
+     * Path parameters of a match, as part of a key.
+     */
+    static String params(Matcher matcher) {
+        String[] values = new String[matcher.groupCount()];
+        for (int i = 0; i < values.length; ++i) {
+            values[i] = matcher.group(i + 1);
+        }
+        return params(values);
+    }
+
+    /**
+     * Path parameters, in group order, as part of a key.
+     */
+    static String params(String[] values) {
+        StringBuilder result = new StringBuilder();
+        for (String i : values) {
+            append(result, i);
+        }
+        return result.toString();
+    }
+
+    /**
+     * Append a value so that it cannot run into the next one.
+     */
+    private static void append(StringBuilder sb, String value) {
+        if (value == null) {
+            sb.append('-');
+        } else {
+            sb.append(value.length()).append(':').append(value);
+        }
+    }
+}
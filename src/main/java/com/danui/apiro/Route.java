@@ -7,27 +7,213 @@ import javax.servlet.http.HttpServletResponse;
 
 class Route {
 
+    private final String regex;
     private final Pattern pattern;
     private final Endpoint endpoint;
+    private final PathEndpoint pathEndpoint;
+    private final AsyncEndpoint asyncEndpoint;
+    private final MethodTable methods;
+    private final PathTemplate template;
+    private final String prefix;
+    private final int groupCount;
+    private final String[] groupNames;
+    // Why the regex may backtrack catastrophically, or null.
+    private final String risk;
+    private final ThreadLocal<Matcher> matchers = new ThreadLocal<>();
+
+    // Metrics, if the router collects them.
+    RouteStats stats;
+    // Concurrency limit, if the router limits routes.
+    ConcurrencyLimit limit;
 
     Route(String regex, Endpoint endpoint) {
+        this(regex, endpoint, null, null, null);
+    }
+
+    Route(String regex, PathEndpoint endpoint) {
+        this(regex, null, endpoint, null, null);
+    }
+
+    Route(String regex, AsyncEndpoint endpoint) {
+        this(regex, null, null, endpoint, null);
+    }
+
+    /**
+     * Route that picks an endpoint by HTTP method.
+     */
+    Route(String regex, MethodTable methods) {
+        this(regex, null, null, null, methods);
+    }
+
+    private Route(String regex, Endpoint endpoint,
+        PathEndpoint pathEndpoint, AsyncEndpoint asyncEndpoint,
+        MethodTable methods) {
+
+        this.regex = regex;
         this.pattern = Pattern.compile(regex);
         this.endpoint = endpoint;
+        this.pathEndpoint = pathEndpoint;
+        this.asyncEndpoint = asyncEndpoint;
+        this.methods = methods;
+        this.template = PathTemplate.parse(regex);
+        this.prefix = RegexSyntax.literalPrefix(regex);
+        this.groupCount = pattern.matcher("").groupCount();
+        this.groupNames = RegexSyntax.groupNames(regex, groupCount);
+        this.risk = RegexSafety.check(regex);
+    }
+
+    /**
+     * Route with the same regex and endpoint as other, but its own metrics.
+     */
+    Route(Route other) {
+        this.regex = other.regex;
+        this.pattern = other.pattern;
+        this.endpoint = other.endpoint;
+        this.pathEndpoint = other.pathEndpoint;
+        this.asyncEndpoint = other.asyncEndpoint;
+        this.methods = other.methods;
+        this.template = other.template;
+        this.prefix = other.prefix;
+        this.groupCount = other.groupCount;
+        this.groupNames = other.groupNames;
+        this.risk = other.risk;
+    }
+
+    String regex() {
+        return regex;
     }
 
     /**
-     * Handle request if it matches the regex.
+     * Endpoints by HTTP method.
      *
-     * On a match, forwards request, response, and matched matcher to endpoint.
+     * @return Table, or null if the route has one endpoint for all methods.
+     */
+    MethodTable methods() {
+        return methods;
+    }
+
+    /**
+     * Path template equivalent of the regex.
      *
-     * @return True if request was matched and handled.
+     * @return Template, or null if the regex cannot be expressed as one.
      */
-    boolean handle(HttpServletRequest req, HttpServletResponse res) {
-        Matcher matcher = pattern.matcher(req.getPathInfo());
-        if (matcher.matches()) {
-            endpoint.handle(req, res, matcher);
+    PathTemplate template() {
+        return template;
+    }
+
+    int groupCount() {
+        return groupCount;
+    }
+
+    /**
+     * Group names, indexed by group number.
+     */
+    String[] groupNames() {
+        return groupNames;
+    }
+
+    /**
+     * Why the regex may backtrack catastrophically on some paths.
+     *
+     * @return Description of the risk, or null if none was found.
+     */
+    String risk() {
+        return risk;
+    }
+
+    /**
+     * Literal text that every path matched by the regex starts with.
+     */
+    String prefix() {
+        return prefix;
+    }
+
+    /**
+     * Is it certain that no path matches both routes?
+     *
+     * Only routes whose literal prefixes differ, or that are both templates
+     * that cannot match the same path, are known to be disjoint.
+     */
+    boolean isDisjoint(Route other) {
+        if (!prefix.startsWith(other.prefix)
+            && !other.prefix.startsWith(prefix)) {
             return true;
         }
-        return false;
+        return template != null && other.template != null
+            && !template.overlaps(other.template);
+    }
+
+    /**
+     * Match path against the regex.
+     *
+     * Each thread reuses one matcher while paths do not match. A matched
+     * matcher belongs to the caller, and the next match on this thread creates
+     * a new one, unless the caller gives it back with release(). So endpoints
+     * may keep their matcher, or dispatch again from within handle().
+     *
+     * @return Matched matcher, or null if path does not match.
+     */
+    Matcher match(String path) {
+        return match(path, null);
+    }
+
+    /**
+     * Match path against the regex, as match(String) does, reading it
+     * through input.
+     *
+     * @param input Path limited to some number of reads, or null for no
+     *     limit. It is left unlimited if the path matches, since the returned
+     *     matcher reads it.
+     *
+     * @throws MatchAbortedException when the regex reads more, or the thread
+     *     is interrupted.
+     */
+    Matcher match(String path, LimitedInput input) {
+        CharSequence text = (input == null) ? path : input;
+        Matcher matcher = matchers.get();
+        if (matcher == null) {
+            matcher = pattern.matcher(text);
+            if (!matcher.matches()) {
+                matchers.set(matcher);
+                return null;
+            }
+        } else {
+            matcher.reset(text);
+            if (!matcher.matches()) {
+                return null;
+            }
+            matchers.set(null);
+        }
+        if (input != null) {
+            input.unlimit();
+        }
+        return matcher;
+    }
+
+    /**
+     * Give back a matcher returned by match() for reuse on this thread.
+     */
+    void release(Matcher matcher) {
+        matchers.set(matcher);
+    }
+
+    /**
+     * Forward request, response, and match to endpoint.
+     *
+     * @param async How to run an AsyncEndpoint.
+     */
+    void handle(HttpServletRequest req, HttpServletResponse res,
+        RouteMatch match, AsyncConfig async) {
+
+        if (endpoint != null) {
+            endpoint.handle(req, res, match.matcher());
+        } else if (pathEndpoint != null) {
+            pathEndpoint.handle(req, res, match.params());
+        } else if (methods != null) {
+            methods.handle(req, res, match, async);
+        } else {
+            AsyncDispatch.start(req, res, asyncEndpoint, match.copyParams(),
+                async, match.takePermit());
+        }
     }
 }
@@ -0,0 +1,20 @@
+package com.danui.apiro;
+
+/**
+ * Finds the first route, in registration order, that matches a path.
+ *
+ * Implementations are built from a fixed array of routes and are not modified
+ * afterwards.
+ */
+interface RouteIndex {
+    /**
+     * Find the first matching route.
+     *
+     * @param path Path to match, i.e. req.getPathInfo().
+     *
+     * @param match Receives the matched route and matcher.
+     *
+     * @return True if a route matched.
+     */
+    boolean find(String path, RouteMatch match);
+}
@@ -0,0 +1,55 @@
+package com.danui.apiro;
+
+/**
+ * Concurrency limit of a route at some point in time.
+ *
+ * @author Wong H'sien Jin
+ */
+public final class RouteLimit {
+
+    private final String regex;
+    private final int limit;
+    private final int inFlight;
+    private final long rejected;
+
+    RouteLimit(String regex, int limit, int inFlight, long rejected) {
+        this.regex = regex;
+        this.limit = limit;
+        this.inFlight = inFlight;
+        this.rejected = rejected;
+    }
+
+    /**
+     * Regular expression the route was bound with.
+     */
+    public String regex() {
+        return regex;
+    }
+
+    /**
+     * Most requests the route may handle at once.
+     */
+    public int limit() {
+        return limit;
+    }
+
+    /**
+     * Number of requests being handled.
+     */
+    public int inFlight() {
+        return inFlight;
+    }
+
+    /**
+     * Number of requests turned away because the route was at its limit.
+     */
+    public long rejected() {
+        return rejected;
+    }
+
+    @Override
+    public String toString() {
+        return regex + ": limit=" + limit + " inFlight=" + inFlight
+            + " rejected=" + rejected;
+    }
+}
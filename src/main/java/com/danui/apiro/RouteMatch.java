@@ -0,0 +1,224 @@
+package com.danui.apiro;
+
+import java.util.Arrays;
+import java.util.regex.Matcher;
+
+/**
+ * Result of looking up a path in a RouteIndex.
+ *
+ * Indexes that do not run the route's regex leave the matcher unset. It is
+ * then only created if the endpoint needs one. Router reuses one RouteMatch
+ * per thread.
+ */
+class RouteMatch {
+    Route route;
+    String path;
+    private Matcher matcher;
+    private boolean matcherKept;
+    private int[] groups = new int[2];
+    private boolean hasGroups;
+    private final PathParams params = new PathParams();
+    private final PathSegments segments = new PathSegments();
+    boolean inUse;
+
+    // Number of route regexes run by the index while finding the route.
+    int regexesRun;
+    // Most characters route regexes may read in all, or 0 for no limit.
+    long regexLimit;
+    private LimitedInput input;
+    // Concurrency limit whose slot the request holds, and since when.
+    ConcurrencyLimit heldLimit;
+    long heldSince;
+    // Has the input's reads been reset since clear()?
+    private boolean inputStarted;
+
+    /**
+     * Set a route that matched by regex.
+     */
+    void set(Route route, String path, Matcher matcher) {
+        this.route = route;
+        this.path = path;
+        this.matcher = matcher;
+        this.matcherKept = false;
+        this.hasGroups = false;
+    }
+
+    /**
+     * Set a route that is known to match without having run its regex.
+     *
+     * @param hasGroups True if groupBuffer() already holds the route's group
+     *     offsets.
+     */
+    void set(Route route, String path, boolean hasGroups) {
+        this.route = route;
+        this.path = path;
+        this.matcher = null;
+        this.matcherKept = false;
+        this.hasGroups = hasGroups;
+    }
+
+    /**
+     * Give back the matcher of the route found, before finding another.
+     */
+    void drop() {
+        if (matcher != null && !matcherKept) {
+            route.release(matcher);
+        }
+        route = null;
+        matcher = null;
+    }
+
+    /**
+     * Drop references to the request, and give the matcher back to the route
+     * unless an endpoint may have kept it.
+     */
+    void clear() {
+        if (matcher != null && !matcherKept) {
+            route.release(matcher);
+        }
+        if (matcherKept) {
+            // The endpoint's matcher may still read the input.
+            input = null;
+        }
+        inputStarted = false;
+        heldLimit = null;
+        route = null;
+        path = null;
+        matcher = null;
+        segments.clear();
+        regexesRun = 0;
+    }
+
+    /**
+     * Take over the request's concurrency limit slot, to release when an
+     * async request completes rather than when dispatch returns.
+     *
+     * @return Permit, or null if the route is not limited.
+     */
+    ConcurrencyLimit.Permit takePermit() {
+        if (heldLimit == null) {
+            return null;
+        }
+        ConcurrencyLimit.Permit result = new ConcurrencyLimit.Permit(
+            heldLimit, heldSince);
+        heldLimit = null;
+        return result;
+    }
+
+    /**
+     * Path split into segments. The path is split once, however many routes
+     * look at its segments, until clear().
+     */
+    PathSegments segments(String path) {
+        if (segments.path() != path) {
+            segments.reset(path);
+        }
+        return segments;
+    }
+
+    /**
+     * Path to run a route regex on while looking for the route. All regexes
+     * run until clear() share regexLimit reads.
+     *
+     * @return Input, or null if regexes are not limited.
+     */
+    LimitedInput limitedInput(String path) {
+        if (regexLimit <= 0) {
+            return null;
+        }
+        if (input == null) {
+            input = new LimitedInput(path, regexLimit);
+        } else if (!inputStarted) {
+            input.reset(path, regexLimit);
+        } else {
+            input.resume(path);
+        }
+        inputStarted = true;
+        return input;
+    }
+
+    /**
+     * Buffer for group offsets, as laid out by Automaton.match.
+     *
+     * @param groupCount Number of groups the buffer must hold.
+     */
+    int[] groupBuffer(int groupCount) {
+        if (groups.length < 2 * (groupCount + 1)) {
+            groups = new int[2 * (groupCount + 1)];
+        }
+        return groups;
+    }
+
+    /**
+     * Matched matcher for an endpoint to keep, running the route's regex if
+     * no index did.
+     */
+    Matcher matcher() {
+        Matcher result = lookAtMatcher();
+        matcherKept = true;
+        return result;
+    }
+
+    /**
+     * Matched matcher, for use until clear(). A regex run here is not
+     * limited, since the route is already known to match.
+     */
+    private Matcher lookAtMatcher() {
+        if (matcher == null) {
+            matcher = route.match(path);
+        }
+        return matcher;
+    }
+
+    /**
+     * Set a route found in a cache.
+     *
+     * @param groups Offsets of the route's groups for path.
+     */
+    void set(Route route, String path, int[] groups) {
+        System.arraycopy(groups, 0, groupBuffer(route.groupCount()), 0,
+            groups.length);
+        set(route, path, true);
+    }
+
+    /**
+     * Group offsets of the matched route, finding them if no index did.
+     */
+    int[] groups() {
+        int groupCount = route.groupCount();
+        int[] buffer = groupBuffer(groupCount);
+        if (!hasGroups) {
+            if (matcher == null && route.template() != null) {
+                route.template().groups(segments(path), buffer);
+            } else {
+                Matcher m = lookAtMatcher();
+                for (int i = 0; i <= groupCount; ++i) {
+                    buffer[2 * i] = m.start(i);
+                    buffer[2 * i + 1] = m.end(i);
+                }
+            }
+            hasGroups = true;
+        }
+        return buffer;
+    }
+
+    /**
+     * Path parameters that stay valid after clear(), for use on another
+     * thread.
+     */
+    PathParams copyParams() {
+        int groupCount = route.groupCount();
+        PathParams result = new PathParams();
+        result.reset(path, Arrays.copyOf(groups(), 2 * (groupCount + 1)),
+            route.groupNames(), groupCount);
+        return result;
+    }
+
+    /**
+     * Path parameters, finding group offsets if no index did.
+     */
+    PathParams params() {
+        params.reset(path, groups(), route.groupNames(), route.groupCount());
+        return params;
+    }
+}
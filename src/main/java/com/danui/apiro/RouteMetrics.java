@@ -0,0 +1,57 @@
+package com.danui.apiro;
+
+/**
+ * Metrics of a route at some point in time.
+ *
+ * @author Wong H'sien Jin
+ */
+public final class RouteMetrics {
+
+    private final String regex;
+    private final long hits;
+    private final Latency matchTime;
+    private final Latency handleTime;
+
+    RouteMetrics(String regex, long hits, Latency matchTime,
+        Latency handleTime) {
+
+        this.regex = regex;
+        this.hits = hits;
+        this.matchTime = matchTime;
+        this.handleTime = handleTime;
+    }
+
+    /**
+     * Regular expression the route was bound with.
+     */
+    public String regex() {
+        return regex;
+    }
+
+    /**
+     * Number of requests dispatched to the route.
+     */
+    public long hits() {
+        return hits;
+    }
+
+    /**
+     * Time taken to find the route, for requests dispatched to it.
+     */
+    public Latency matchTime() {
+        return matchTime;
+    }
+
+    /**
+     * Time taken by the route's endpoint.
+     */
+    public Latency handleTime() {
+        return handleTime;
+    }
+
+    @Override
+    public String toString() {
+        return regex + ": hits=" + hits + " match[" + matchTime + "] handle["
+            + handleTime + "]";
+    }
+}
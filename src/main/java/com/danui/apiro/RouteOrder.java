@@ -0,0 +1,100 @@
+package com.danui.apiro;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+/**
+ * Orders routes by hits without changing which route a path goes to.
+ *
+ * A route may only move ahead of a route bound before it if the two are
+ * disjoint, so that whatever the order, the first route that matches a path
+ * is the one bound first.
+ */
+class RouteOrder {
+
+    /**
+     * Most pairs of routes, per route, that may match the same paths. Beyond
+     * that routes are left in binding order, rather than keep a large graph.
+     */
+    private static final int MAX_OVERLAPS_PER_ROUTE = 16;
+
+    private final int size;
+
+    // later[i] lists the routes bound after route i that may match the same
+    // paths as it, and earlier[i] counts those bound before route i. Null if
+    // there are too many.
+    private final int[][] later;
+    private final int[] earlier;
+
+    RouteOrder(Route[] routes) {
+        this.size = routes.length;
+        int[][] later = new int[routes.length][];
+        int[] earlier = new int[routes.length];
+        long overlaps = 0;
+        int[] buffer = new int[16];
+        for (int i = 0; i < routes.length && later != null; ++i) {
+            int n = 0;
+            for (int j = i + 1; j < routes.length; ++j) {
+                if (!routes[i].isDisjoint(routes[j])) {
+                    if (n == buffer.length) {
+                        buffer = Arrays.copyOf(buffer, n * 2);
+                    }
+                    buffer[n++] = j;
+                    earlier[j] += 1;
+                }
+            }
+            later[i] = Arrays.copyOf(buffer, n);
+            overlaps += n;
+            if (overlaps > (long) MAX_OVERLAPS_PER_ROUTE * routes.length) {
+                later = null;
+            }
+        }
+        this.later = later;
+        this.earlier = (later == null) ? null : earlier;
+    }
+
+    /**
+     * Order routes so that the most hit come first, as far as allowed.
+     *
+     * @param hits Hits of each route, by binding order.
+     *
+     * @return Route numbers, in the order they should be tried.
+     */
+    int[] order(final long[] hits) {
+        int[] result = new int[size];
+        if (later == null) {
+            for (int i = 0; i < size; ++i) {
+                result[i] = i;
+            }
+            return result;
+        }
+        // Kahn's algorithm, taking the most hit of the routes that have no
+        // overlapping route bound before them left to place.
+        PriorityQueue<Integer> ready = new PriorityQueue<>(
+            Math.max(1, size), new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    int byHits = Long.compare(hits[b], hits[a]);
+                    return (byHits != 0) ? byHits : Integer.compare(a, b);
+                }
+            });
+        int[] waiting = earlier.clone();
+        for (int i = 0; i < size; ++i) {
+            if (waiting[i] == 0) {
+                ready.add(i);
+            }
+        }
+        int n = 0;
+        while (!ready.isEmpty()) {
+            int i = ready.poll();
+            result[n++] = i;
+            for (int j : later[i]) {
+                if (--waiting[j] == 0) {
+                    ready.add(j);
+                }
+            }
+        }
+        return result;
+    }
+}
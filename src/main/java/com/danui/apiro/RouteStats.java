@@ -0,0 +1,15 @@
+package com.danui.apiro;
+
+/**
+ * Live metrics of a route.
+ */
+class RouteStats {
+    final StripedCounter hits = new StripedCounter();
+    final LatencyRecorder matchTime = new LatencyRecorder();
+    final LatencyRecorder handleTime = new LatencyRecorder();
+
+    RouteMetrics snapshot(String regex) {
+        return new RouteMetrics(regex, hits.sum(), matchTime.snapshot(),
+            handleTime.snapshot());
+    }
+}
@@ -0,0 +1,233 @@
+package com.danui.apiro;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Immutable snapshot of a router's routes.
+ *
+ * Routers publish a new table whenever routes change, so a dispatch sees
+ * either the whole of a change or none of it. The table's index, and the
+ * indexes of the routes for each method, are built by the first dispatch
+ * that needs them. Threads that race to build it each build
+ * their own and one of them is kept, so dispatch never waits on a lock.
+ *
+ * Caches of lookup results also belong to the table, so that they are
+ * discarded along with it when routes change.
+ */
+final class RouteTable {
+
+    private final Router.Mode mode;
+    private final Route[] routes;
+    // Routes, by number in binding order, in the order they are tried. Null
+    // for binding order.
+    private final int[] order;
+    private volatile RouteIndex index;
+    // Indexes of the routes that accept a method, by method ordinal, then
+    // of the routes bound to no method.
+    private final AtomicReferenceArray<RouteIndex> methodIndexes =
+        new AtomicReferenceArray<>(HttpMethod.values().length + 1);
+    private volatile EnumSet<HttpMethod> boundMethods;
+    private volatile PathCache<Boolean> misses;
+    private volatile PathCache<CachedMatch> matches;
+    // Built by the router, under its lock, when reordering.
+    private RouteOrder routeOrder;
+
+    RouteTable(Router.Mode mode, Route[] routes) {
+        this(mode, routes, null, null);
+    }
+
+    private RouteTable(Router.Mode mode, Route[] routes, int[] order,
+        RouteOrder routeOrder) {
+
+        this.mode = mode;
+        this.routes = routes;
+        this.order = order;
+        this.routeOrder = routeOrder;
+    }
+
+    /**
+     * Number of routes.
+     */
+    int size() {
+        return routes.length;
+    }
+
+    /**
+     * Route by binding order.
+     */
+    Route route(int i) {
+        return routes[i];
+    }
+
+    /**
+     * Table with a route bound after the others.
+     */
+    RouteTable with(Route route) {
+        Route[] result = Arrays.copyOf(routes, routes.length + 1);
+        result[routes.length] = route;
+        return new RouteTable(mode, result);
+    }
+
+    /**
+     * Table with the route at binding position i replaced, keeping the order
+     * routes are tried in.
+     */
+    RouteTable with(int i, Route route) {
+        Route[] result = routes.clone();
+        result[i] = route;
+        return new RouteTable(mode, result, order, routeOrder);
+    }
+
+    /**
+     * Table without the routes bound with a regex.
+     *
+     * @return Table, or this if no route was bound with regex.
+     */
+    RouteTable without(String regex) {
+        Route[] result = new Route[routes.length];
+        int n = 0;
+        for (Route i : routes) {
+            if (!i.regex().equals(regex)) {
+                result[n++] = i;
+            }
+        }
+        if (n == routes.length) {
+            return this;
+        }
+        return new RouteTable(mode, Arrays.copyOf(result, n));
+    }
+
+    /**
+     * Table with routes ordered by hits.
+     *
+     * @return Table, or this if the order does not change.
+     */
+    RouteTable reordered(long[] hits) {
+        if (routeOrder == null) {
+            routeOrder = new RouteOrder(routes);
+        }
+        int[] next = routeOrder.order(hits);
+        boolean same = (order == null)
+            ? isBindingOrder(next) : Arrays.equals(next, order);
+        if (same) {
+            return this;
+        }
+        return new RouteTable(mode, routes, next, routeOrder);
+    }
+
+    private static boolean isBindingOrder(int[] order) {
+        for (int i = 0; i < order.length; ++i) {
+            if (order[i] != i) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    RouteIndex index() {
+        RouteIndex result = index;
+        if (result == null) {
+            result = newIndex();
+            index = result;
+        }
+        return result;
+    }
+
+    /**
+     * Index of the routes that accept a method, as if each method had a
+     * router of its own.
+     *
+     * @param method Method, or null for the routes bound to no method.
+     */
+    RouteIndex index(HttpMethod method) {
+        int slot = (method == null)
+            ? methodIndexes.length() - 1 : method.ordinal();
+        RouteIndex result = methodIndexes.get(slot);
+        if (result == null) {
+            List<Route> accepting = new ArrayList<>();
+            for (Route i : ordered()) {
+                if (i.methods() == null || i.methods().accepts(method)) {
+                    accepting.add(i);
+                }
+            }
+            result = newIndex(
+                accepting.toArray(new Route[accepting.size()]));
+            methodIndexes.set(slot, result);
+        }
+        return result;
+    }
+
+    /**
+     * Methods bound to some route with on(HttpMethod, ...). Do not modify.
+     */
+    EnumSet<HttpMethod> boundMethods() {
+        EnumSet<HttpMethod> result = boundMethods;
+        if (result == null) {
+            result = EnumSet.noneOf(HttpMethod.class);
+            for (Route i : routes) {
+                if (i.methods() != null) {
+                    result.addAll(i.methods().methods());
+                }
+            }
+            boundMethods = result;
+        }
+        return result;
+    }
+
+    /**
+     * Cache of paths that match no route, made on first use.
+     */
+    PathCache<Boolean> missCache(int maxEntries) {
+        PathCache<Boolean> result = misses;
+        if (result == null) {
+            result = new PathCache<>(maxEntries);
+            misses = result;
+        }
+        return result;
+    }
+
+    /**
+     * Cache of routes that paths match, made on first use.
+     */
+    PathCache<CachedMatch> matchCache(int maxEntries) {
+        PathCache<CachedMatch> result = matches;
+        if (result == null) {
+            result = new PathCache<>(maxEntries, true);
+            matches = result;
+        }
+        return result;
+    }
+
+    private RouteIndex newIndex() {
+        return newIndex(ordered());
+    }
+
+    /**
+     * Routes in the order they are tried.
+     */
+    private Route[] ordered() {
+        if (order == null) {
+            return routes;
+        }
+        Route[] result = new Route[routes.length];
+        for (int i = 0; i < result.length; ++i) {
+            result[i] = routes[order[i]];
+        }
+        return result;
+    }
+
+    private RouteIndex newIndex(Route[] array) {
+        switch (mode) {
+        case TREE:
+            return new TreeIndex(array);
+        case AUTOMATON:
+            return new AutomatonIndex(array);
+        default:
+            return new ScanIndex(array);
+        }
+    }
+}
@@ -1,6 +1,14 @@
 package com.danui.apiro;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
@@ -8,10 +16,101 @@ import javax.servlet.http.HttpServletResponse;
  * Routers route incoming HTTP Servlet request-response pairs to a destination
  * endpoint, if any so matches.
  *
+ * Routes may be bound, unbound, or replaced while requests are dispatched.
+ * Each change publishes a new immutable route table, so dispatch never locks
+ * and never sees a half made change.
+ *
  * @author Wong H'sien Jin
  */
 public class Router {
-    private final ArrayList<Route> routes = new ArrayList<>();
+
+    /**
+     * How a Router searches its routes.
+     *
+     * Every mode dispatches to the first route, in order of binding, whose
+     * regex matches the path.
+     */
+    public enum Mode {
+        /**
+         * Try each route in turn, skipping routes whose regex starts with
+         * literal text that the path does not start with. Routes that TREE
+         * would store are matched segment by segment, without their regex.
+         */
+        SCAN,
+
+        /**
+         * Look up routes in a radix tree of path segments. Only routes whose
+         * regexes are made of literal segments and "([^/]+)" or
+         * "(?&lt;name&gt;[^/]+)" parameters, optionally ending with "/?", are
+         * stored in the tree. Other routes are matched by regex.
+         */
+        TREE,
+
+        /**
+         * Match all routes at once with a single automaton compiled from
+         * their regexes, scanning the path once. Routes whose regexes use
+         * anchors, lookaround, back references, flags, possessive
+         * quantifiers, or nested character classes are matched by regex.
+         */
+        AUTOMATON
+    }
+
+    private static final OverloadHandler SERVICE_UNAVAILABLE =
+        new OverloadHandler() {
+            @Override
+            public void handle(HttpServletRequest req,
+                HttpServletResponse res, String regex) {
+
+                res.setHeader("Retry-After", "1");
+                try {
+                    res.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                } catch (IOException e) {
+                    // The client has gone. There is no one left to tell.
+                }
+            }
+        };
+
+    private final Mode mode;
+    // Changed only while holding the router's lock, by replacing the table.
+    private volatile RouteTable table;
+    private volatile RouterStats stats;
+    private volatile CacheConfig missCache;
+    private volatile CacheConfig matchCache;
+    private volatile AsyncConfig async = AsyncConfig.DEFAULT;
+    private volatile long regexLimit;
+    private volatile boolean rejectUnsafe;
+    // Initial and highest concurrency limits of routes, or null if routes
+    // are not limited.
+    private volatile int[] limits;
+    private volatile OverloadHandler overloadHandler = SERVICE_UNAVAILABLE;
+    private final StripedCounter abortedMatches = new StripedCounter();
+    private final ThreadLocal<RouteMatch> matches =
+        new ThreadLocal<RouteMatch>() {
+            @Override
+            protected RouteMatch initialValue() {
+                return new RouteMatch();
+            }
+        };
+
+    /**
+     * Create a router in SCAN mode.
+     */
+    public Router() {
+        this(Mode.SCAN);
+    }
+
+    /**
+     * Create a router.
+     *
+     * @param mode How routes are searched.
+     */
+    public Router(Mode mode) {
+        if (mode == null) {
+            throw new IllegalArgumentException("mode is null");
+        }
+        this.mode = mode;
+        this.table = new RouteTable(mode, new Route[0]);
+    }
 
     /**
      * Bind endpoint to router.
@@ -24,7 +123,490 @@ public class Router {
      *
      */
     public void on(String regex, Endpoint endpoint) {
-        routes.add(new Route(regex, endpoint));
+        add(new Route(regex, endpoint));
+    }
+
+    /**
+     * Bind endpoint that reads path parameters through PathParams.
+     *
+     * @param regex Regular expression that would be used to match requests for
+     *     'endpoint'.
+     *
+     * @param endpoint Endpoint to route request when the regular expression
+     *     matches.
+     */
+    public void on(String regex, PathEndpoint endpoint) {
+        add(new Route(regex, endpoint));
+    }
+
+    /**
+     * Bind endpoint that runs asynchronously.
+     *
+     * Requests are put into async mode and handed to the async executor, so
+     * the container's thread is free to serve other requests while the
+     * endpoint runs.
+     *
+     * @param regex Regular expression that would be used to match requests for
+     *     'endpoint'.
+     *
+     * @param endpoint Endpoint to route request when the regular expression
+     *     matches.
+     */
+    public void on(String regex, AsyncEndpoint endpoint) {
+        add(new Route(regex, endpoint));
+    }
+
+    /**
+     * Bind endpoint to router, for requests of one HTTP method.
+     *
+     * Endpoints bound to the same regex for different methods share one
+     * route, so the path is matched once and the method picks the endpoint.
+     * Requests whose path first matches a route that is not bound to their
+     * method get 405 Method Not Allowed, with an Allow header listing the
+     * methods that are bound. Unless bound, OPTIONS requests get just the
+     * Allow header.
+     *
+     * @param method HTTP method of requests for 'endpoint'.
+     *
+     * @param regex Regular expression that would be used to match requests for
+     *     'endpoint'.
+     *
+     * @param endpoint Endpoint to route request when the regular expression
+     *     matches.
+     *
+     * @throws IllegalArgumentException when method is already bound to regex.
+     */
+    public void on(HttpMethod method, String regex, Endpoint endpoint) {
+        add(method, new Route(regex, endpoint));
+    }
+
+    /**
+     * Bind endpoint that reads path parameters through PathParams, for
+     * requests of one HTTP method. See on(HttpMethod, String, Endpoint).
+     */
+    public void on(HttpMethod method, String regex, PathEndpoint endpoint) {
+        add(method, new Route(regex, endpoint));
+    }
+
+    /**
+     * Bind endpoint that runs asynchronously, for requests of one HTTP
+     * method. See on(HttpMethod, String, Endpoint).
+     */
+    public void on(HttpMethod method, String regex, AsyncEndpoint endpoint) {
+        add(method, new Route(regex, endpoint));
+    }
+
+    /**
+     * Set the executor that runs AsyncEndpoints.
+     *
+     * See AsyncExecutors for bounded pools and virtual threads.
+     *
+     * @param executor Executor, or null to run endpoints on the container's
+     *     threads through AsyncContext.start(), which is the default.
+     */
+    public synchronized void setAsyncExecutor(Executor executor) {
+        async = new AsyncConfig(executor, async.timeout);
+    }
+
+    /**
+     * Set how long AsyncEndpoints may take before their requests fail with
+     * 503 Service Unavailable. By default the container's timeout applies.
+     *
+     * @param millis Timeout in milliseconds, or 0 for none.
+     */
+    public synchronized void setAsyncTimeout(long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("millis is negative");
+        }
+        async = new AsyncConfig(async.executor, millis);
+    }
+
+    /**
+     * Bound the work route regexes may do on one path.
+     *
+     * Regexes that repeat repetitions, such as "(a+)+", can take exponential
+     * time on crafted paths, pinning a thread for seconds. With a limit,
+     * looking for a path's route is aborted once the regexes tried have read
+     * more than maxReads characters of it in all, and the path is treated as
+     * matching no route. Matching is also aborted
+     * when the thread is interrupted. Regexes that do not backtrack read each
+     * character a few times, whereas a limit of 100000 reads still bounds a
+     * match to well under a millisecond.
+     *
+     * Regexes run by AUTOMATON mode's automaton, and routes that SCAN and
+     * TREE mode match segment by segment, never backtrack. Once a route has
+     * been found, running its regex for the endpoint's Matcher is not
+     * limited.
+     *
+     * @param maxReads Most characters regexes may read per path, or 0 for
+     *     no limit, which is the default.
+     */
+    public void setRegexLimit(long maxReads) {
+        if (maxReads < 0) {
+            throw new IllegalArgumentException("maxReads is negative");
+        }
+        regexLimit = maxReads;
+    }
+
+    /**
+     * Number of matches aborted for exceeding the regex limit, or because
+     * the thread was interrupted.
+     */
+    public long abortedMatches() {
+        return abortedMatches.sum();
+    }
+
+    /**
+     * Refuse to bind regexes that may backtrack catastrophically.
+     *
+     * From now on, binding such a regex, or replacing routes with routes that
+     * have one, throws IllegalArgumentException. Regexes are judged by a
+     * heuristic that looks for repetitions that can split the same text in
+     * many ways, as "(a+)+", "(\w+\s?)*" and "(a|ab)*" can, and may also
+     * reject some that are safe. Regexes with syntax the heuristic cannot
+     * follow, such as back references, lookaround or inline flags, are
+     * rejected too. See unsafeRegexes().
+     */
+    public void rejectUnsafeRegexes() {
+        rejectUnsafe = true;
+    }
+
+    /**
+     * Get the bound regexes that may backtrack catastrophically, as judged
+     * when binding them. See rejectUnsafeRegexes().
+     *
+     * @return Regexes, in binding order.
+     */
+    public List<String> unsafeRegexes() {
+        RouteTable table = this.table;
+        List<String> result = new ArrayList<>();
+        for (int i = 0; i < table.size(); ++i) {
+            Route route = table.route(i);
+            if (route.risk() != null) {
+                result.add(route.regex());
+            }
+        }
+        return result;
+    }
+
+    private void checkSafety(Route route) {
+        if (rejectUnsafe && route.risk() != null) {
+            throw new IllegalArgumentException("Regex " + route.regex()
+                + " may backtrack catastrophically: " + route.risk());
+        }
+    }
+
+    private synchronized void add(Route route) {
+        checkSafety(route);
+        if (stats != null) {
+            route.stats = new RouteStats();
+        }
+        route.limit = newLimit();
+        table = table.with(route);
+    }
+
+    private synchronized void add(HttpMethod method, Route route) {
+        if (method == null) {
+            throw new IllegalArgumentException("method is null");
+        }
+        checkSafety(route);
+        for (int i = 0; i < table.size(); ++i) {
+            Route bound = table.route(i);
+            if (bound.methods() != null
+                && bound.regex().equals(route.regex())) {
+
+                Route next = new Route(route.regex(),
+                    bound.methods().with(method, route));
+                next.stats = bound.stats;
+                next.limit = bound.limit;
+                table = table.with(i, next);
+                return;
+            }
+        }
+        add(new Route(route.regex(), new MethodTable().with(method, route)));
+    }
+
+    /**
+     * Unbind the endpoints bound with a regex.
+     *
+     * Safe to call while requests are being dispatched. Dispatches that have
+     * already started may still use the removed routes.
+     *
+     * @param regex Regular expression that the endpoints were bound with.
+     *
+     * @return True if any endpoint was unbound.
+     */
+    public synchronized boolean remove(String regex) {
+        RouteTable next = table.without(regex);
+        if (next == table) {
+            return false;
+        }
+        table = next;
+        return true;
+    }
+
+    /**
+     * Replace all routes with those of another router, at once.
+     *
+     * Dispatches see either the old routes or the new ones, never a mix. The
+     * other router is left unchanged. For example
+     *
+     *     Router next = new Router();
+     *     next.on("/doc/?", new ListDocs());
+     *     next.on("/doc/"+DOCID+"/?", new GetDoc());
+     *     GET.replaceRoutes(next);
+     *
+     * @param other Router whose routes to take, in binding order.
+     */
+    public void replaceRoutes(Router other) {
+        RouteTable source = other.table;
+        Route[] routes = new Route[source.size()];
+        for (int i = 0; i < routes.length; ++i) {
+            routes[i] = new Route(source.route(i));
+            checkSafety(routes[i]);
+        }
+        synchronized (this) {
+            for (Route i : routes) {
+                if (stats != null) {
+                    i.stats = new RouteStats();
+                }
+                i.limit = newLimit();
+            }
+            table = new RouteTable(mode, routes);
+        }
+    }
+
+    /**
+     * Start collecting metrics.
+     *
+     * Metrics cost a few clock reads and counter updates per dispatch, so
+     * they are off by default. Calling this again has no effect.
+     */
+    public synchronized void enableMetrics() {
+        if (stats != null) {
+            return;
+        }
+        RouteTable table = this.table;
+        for (int i = 0; i < table.size(); ++i) {
+            table.route(i).stats = new RouteStats();
+        }
+        stats = new RouterStats();
+    }
+
+    /**
+     * Limit how many requests each route handles at once.
+     *
+     * Each route's limit adapts to its endpoint's latency. It grows while
+     * the route is busy and fast, and shrinks when the average latency rises
+     * well above its low of late, which is a sign that requests are queueing
+     * for something. Requests to a route at its limit are answered by the
+     * overload handler instead of the endpoint, so a slow endpoint cannot tie
+     * up every container thread. Requests to AsyncEndpoints hold their slot
+     * until they complete, time out or fail, so their latency counts.
+     *
+     * @param initialLimit Limit each route starts with.
+     *
+     * @param maxLimit Highest a route's limit may grow to.
+     */
+    public synchronized void enableConcurrencyLimits(int initialLimit,
+        int maxLimit) {
+
+        if (initialLimit <= 0) {
+            throw new IllegalArgumentException(
+                "initialLimit must be positive");
+        }
+        if (maxLimit < initialLimit) {
+            throw new IllegalArgumentException(
+                "maxLimit is less than initialLimit");
+        }
+        limits = new int[] {initialLimit, maxLimit};
+        RouteTable table = this.table;
+        for (int i = 0; i < table.size(); ++i) {
+            table.route(i).limit = newLimit();
+        }
+        // Republish the table, so dispatching threads see the limits.
+        this.table = table;
+    }
+
+    /**
+     * Set how requests to routes at their concurrency limit are answered.
+     * By default they get 503 Service Unavailable, with Retry-After.
+     */
+    public void setOverloadHandler(OverloadHandler handler) {
+        if (handler == null) {
+            throw new IllegalArgumentException("handler is null");
+        }
+        overloadHandler = handler;
+    }
+
+    /**
+     * Get the concurrency limit of each route, in order of binding.
+     *
+     * @return Limits, or null if concurrency limits are not enabled.
+     */
+    public List<RouteLimit> concurrencyLimits() {
+        if (limits == null) {
+            return null;
+        }
+        RouteTable table = this.table;
+        List<RouteLimit> result = new ArrayList<>(table.size());
+        for (int i = 0; i < table.size(); ++i) {
+            Route route = table.route(i);
+            ConcurrencyLimit limit = route.limit;
+            if (limit != null) {
+                result.add(new RouteLimit(route.regex(), limit.limit(),
+                    limit.inFlight(), limit.rejected.sum()));
+            }
+        }
+        return result;
+    }
+
+    private ConcurrencyLimit newLimit() {
+        int[] limits = this.limits;
+        return (limits == null) ? null
+            : new ConcurrencyLimit(limits[0], limits[1]);
+    }
+
+    /**
+     * Remember paths that match no route.
+     *
+     * Requests for remembered paths are turned away without trying any
+     * route, which keeps floods of requests for unknown paths cheap. The
+     * cache is emptied whenever routes change. Paths longer than 256
+     * characters are not remembered. Calling this again has no effect.
+     *
+     * @param maxEntries Most paths to remember.
+     */
+    public synchronized void enableMissCache(int maxEntries) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("maxEntries must be positive");
+        }
+        if (missCache == null) {
+            missCache = new CacheConfig(maxEntries);
+        }
+    }
+
+    /**
+     * Get hits and misses of the miss cache since enableMissCache().
+     *
+     * @return Stats, or null if the miss cache is not enabled.
+     */
+    public CacheStats missCacheStats() {
+        CacheConfig missCache = this.missCache;
+        return (missCache == null) ? null : missCache.snapshot();
+    }
+
+    /**
+     * Remember which route paths match.
+     *
+     * Requests for remembered paths go straight to their route, without
+     * trying other routes. Only PathEndpoints and AsyncEndpoints also skip
+     * the route's regex, as they read parameters from the cached group
+     * offsets. A plain Endpoint takes a java.util.regex.Matcher, which can
+     * only be filled in by running the regex, so its route's regex still
+     * runs once per request.
+     *
+     * Paths are remembered the second time they are seen recently, so paths
+     * that are requested once, such as ones with unique ids, do not push out
+     * ones that repeat. The cache is emptied whenever routes change. Paths
+     * longer than 256 characters are not remembered. Calling this again has
+     * no effect.
+     *
+     * @param maxEntries Most paths to remember.
+     */
+    public synchronized void enableMatchCache(int maxEntries) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("maxEntries must be positive");
+        }
+        if (matchCache == null) {
+            matchCache = new CacheConfig(maxEntries);
+        }
+    }
+
+    /**
+     * Get hits and misses of the match cache since enableMatchCache().
+     *
+     * @return Stats, or null if the match cache is not enabled.
+     */
+    public CacheStats matchCacheStats() {
+        CacheConfig matchCache = this.matchCache;
+        return (matchCache == null) ? null : matchCache.snapshot();
+    }
+
+    /**
+     * Reorder routes by hits, on a background thread.
+     *
+     * Enables metrics, and every period moves the most hit routes ahead of
+     * less hit ones bound before them, as long as no path can match both.
+     * So a path still goes to the first bound route that matches it, but
+     * takes fewer tries to get there. This mainly helps in SCAN mode.
+     *
+     * @param executor Runs the reordering. Cancel the returned future, or
+     *     shut down the executor, to stop.
+     *
+     * @param period Time between reorderings.
+     *
+     * @param unit Unit of period.
+     */
+    public ScheduledFuture<?> enableAdaptiveOrder(
+        ScheduledExecutorService executor, long period, TimeUnit unit) {
+
+        enableMetrics();
+        return executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                reorder();
+            }
+        }, period, period, unit);
+    }
+
+    /**
+     * Reorder routes by hits so far, as enableAdaptiveOrder() does
+     * periodically.
+     *
+     * Only routes that are certainly disjoint are reordered: those whose
+     * regexes start with different literal text, and those made of
+     * different literal and "([^/]+)" segments. The new order is used by
+     * dispatches that start after this returns.
+     *
+     * @throws IllegalStateException when metrics are not enabled.
+     */
+    public synchronized void reorder() {
+        if (stats == null) {
+            throw new IllegalStateException("Metrics are not enabled");
+        }
+        long[] hits = new long[table.size()];
+        for (int i = 0; i < hits.length; ++i) {
+            hits[i] = table.route(i).stats.hits.sum();
+        }
+        RouteTable next = table.reordered(hits);
+        if (next != table) {
+            // Build the index here rather than on a request thread.
+            next.index();
+            table = next;
+        }
+    }
+
+    /**
+     * Get metrics collected since enableMetrics().
+     *
+     * Reading metrics does not block dispatching.
+     *
+     * @return Metrics, or null if metrics are not enabled.
+     */
+    public RouterMetrics metrics() {
+        RouterStats stats = this.stats;
+        if (stats == null) {
+            return null;
+        }
+        RouteTable table = this.table;
+        List<RouteMetrics> result = new ArrayList<>(table.size());
+        for (int i = 0; i < table.size(); ++i) {
+            Route route = table.route(i);
+            result.add(route.stats.snapshot(route.regex()));
+        }
+        return new RouterMetrics(stats.dispatches.sum(), stats.misses.sum(),
+            stats.regexesRun.sum(), stats.missTime.snapshot(), result);
     }
 
     /**
@@ -37,10 +619,188 @@ public class Router {
      * @return True if the request was handled.
      */
     public boolean dispatch(HttpServletRequest req, HttpServletResponse res) {
-        for (Route route : routes) {
-            if (route.handle(req, res)) {
+        RouteMatch match = matches.get();
+        if (match.inUse) {
+            // An endpoint is dispatching again on this thread.
+            match = new RouteMatch();
+        }
+        match.inUse = true;
+        match.regexLimit = regexLimit;
+        RouterStats stats = this.stats;
+        try {
+            if (stats != null) {
+                return dispatch(req, res, match, stats);
+            }
+            if (!find(req.getPathInfo(), match)) {
+                return false;
+            }
+            if (routeByMethod(req, res, match)) {
+                handle(req, res, match);
+            }
+            return true;
+        } catch (MatchAbortedException e) {
+            abortedMatches.increment();
+            return false;
+        } finally {
+            match.clear();
+            match.inUse = false;
+        }
+    }
+
+    private boolean dispatch(HttpServletRequest req, HttpServletResponse res,
+        RouteMatch match, RouterStats stats) {
+
+        stats.dispatches.increment();
+        long start = System.nanoTime();
+        boolean found = find(req.getPathInfo(), match);
+        if (!found) {
+            stats.regexesRun.add(match.regexesRun);
+            stats.misses.increment();
+            stats.missTime.record(System.nanoTime() - start);
+            return false;
+        }
+        found = routeByMethod(req, res, match);
+        long matched = System.nanoTime();
+        stats.regexesRun.add(match.regexesRun);
+        if (!found) {
+            // Answered 405, which is no route's hit.
+            return true;
+        }
+        RouteStats routeStats = match.route.stats;
+        if (routeStats == null) {
+            // Route removed before metrics were enabled.
+            handle(req, res, match);
+            return true;
+        }
+        routeStats.hits.increment();
+        routeStats.matchTime.record(matched - start);
+        try {
+            handle(req, res, match);
+        } finally {
+            routeStats.handleTime.record(System.nanoTime() - matched);
+        }
+        return true;
+    }
+
+    private void handle(HttpServletRequest req, HttpServletResponse res,
+        RouteMatch match) {
+
+        Route route = match.route;
+        ConcurrencyLimit limit = route.limit;
+        if (limit == null) {
+            route.handle(req, res, match, async);
+            return;
+        }
+        if (!limit.tryAcquire()) {
+            overloadHandler.handle(req, res, route.regex());
+            return;
+        }
+        long start = System.nanoTime();
+        match.heldLimit = limit;
+        match.heldSince = start;
+        try {
+            route.handle(req, res, match, async);
+        } finally {
+            // Unless an async request took the slot along.
+            if (match.heldLimit != null) {
+                match.heldLimit = null;
+                limit.release(System.nanoTime() - start);
+            }
+        }
+    }
+
+    /**
+     * Make sure match holds a route for the request's method.
+     *
+     * @return True if it does. Otherwise the request has been answered.
+     */
+    private boolean routeByMethod(HttpServletRequest req,
+        HttpServletResponse res, RouteMatch match) {
+
+        MethodTable methods = match.route.methods();
+        if (methods == null) {
+            return true;
+        }
+        HttpMethod method = HttpMethod.parse(req.getMethod());
+        if (methods.accepts(method)) {
+            return true;
+        }
+        return rerouteByMethod(method, res, match);
+    }
+
+    /**
+     * Find a route for the request's method, when the first route that
+     * matched the path is bound to other methods. The lookup goes through
+     * the index of the routes that accept the method, as if each method had
+     * a router of its own.
+     *
+     * @return True if match now holds a route for the method. Otherwise the
+     *     request has been answered, with the methods of every route that
+     *     matched the path in the Allow header.
+     */
+    private boolean rerouteByMethod(HttpMethod method,
+        HttpServletResponse res, RouteMatch match) {
+
+        RouteTable table = this.table;
+        String path = match.path;
+        EnumSet<HttpMethod> allowed = EnumSet.copyOf(
+            match.route.methods().methods());
+        match.drop();
+        if (table.index(method).find(path, match)) {
+            return true;
+        }
+        for (HttpMethod i : table.boundMethods()) {
+            if (allowed.contains(i)) {
+                continue;
+            }
+            match.drop();
+            if (table.index(i).find(path, match)) {
+                allowed.add(i);
+            }
+        }
+        match.drop();
+        MethodTable.reject(method, MethodTable.allow(allowed), res);
+        return false;
+    }
+
+    private boolean find(String path, RouteMatch match) {
+        RouteTable table = this.table;
+        CacheConfig missCache = this.missCache;
+        CacheConfig matchCache = this.matchCache;
+        if (path == null || (missCache == null && matchCache == null)) {
+            return table.index().find(path, match);
+        }
+        PathCache<CachedMatch> matches = null;
+        if (matchCache != null) {
+            matches = table.matchCache(matchCache.maxEntries);
+            CachedMatch cached = matches.get(path);
+            if (cached != null) {
+                matchCache.hits.increment();
+                match.set(cached.route, path, cached.groups);
                 return true;
             }
+            matchCache.misses.increment();
+        }
+        PathCache<Boolean> misses = null;
+        if (missCache != null) {
+            misses = table.missCache(missCache.maxEntries);
+            if (misses.get(path) != null) {
+                missCache.hits.increment();
+                return false;
+            }
+            missCache.misses.increment();
+        }
+        if (table.index().find(path, match)) {
+            if (matches != null && matches.admits(path)) {
+                Route route = match.route;
+                int[] groups = Arrays.copyOf(match.groups(),
+                    2 * (route.groupCount() + 1));
+                matches.put(path, new CachedMatch(route, groups));
+            }
+            return true;
+        }
+        if (misses != null) {
+            misses.put(path, Boolean.TRUE);
         }
         return false;
     }
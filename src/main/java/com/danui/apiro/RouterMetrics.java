@@ -0,0 +1,87 @@
+package com.danui.apiro;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Metrics of a router at some point in time.
+ *
+ * Counters are read one at a time while requests are being dispatched, so
+ * they may disagree slightly with each other.
+ *
+ * @author Wong H'sien Jin
+ */
+public final class RouterMetrics {
+
+    private final long dispatches;
+    private final long misses;
+    private final long regexesRun;
+    private final Latency missTime;
+    private final List<RouteMetrics> routes;
+
+    RouterMetrics(long dispatches, long misses, long regexesRun,
+        Latency missTime, List<RouteMetrics> routes) {
+
+        this.dispatches = dispatches;
+        this.misses = misses;
+        this.regexesRun = regexesRun;
+        this.missTime = missTime;
+        this.routes = Collections.unmodifiableList(routes);
+    }
+
+    /**
+     * Number of requests dispatched.
+     */
+    public long dispatches() {
+        return dispatches;
+    }
+
+    /**
+     * Number of requests that matched no route.
+     */
+    public long misses() {
+        return misses;
+    }
+
+    /**
+     * Number of route regexes run while looking for routes. Routes found
+     * through a tree or automaton do not run their regex.
+     */
+    public long regexesRun() {
+        return regexesRun;
+    }
+
+    /**
+     * Mean number of route regexes run per request.
+     */
+    public double regexesRunPerDispatch() {
+        return (dispatches == 0) ? 0 : (double) regexesRun / dispatches;
+    }
+
+    /**
+     * Time taken to find that no route matches, for requests that missed.
+     */
+    public Latency missTime() {
+        return missTime;
+    }
+
+    /**
+     * Metrics of each route, in order of binding.
+     */
+    public List<RouteMetrics> routes() {
+        return routes;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("dispatches=").append(dispatches)
+            .append(" misses=").append(misses)
+            .append(" regexesRun=").append(regexesRun)
+            .append(" miss[").append(missTime).append("]");
+        for (RouteMetrics i : routes) {
+            sb.append('\n').append(i);
+        }
+        return sb.toString();
+    }
+}
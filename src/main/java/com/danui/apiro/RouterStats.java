@@ -0,0 +1,11 @@
+package com.danui.apiro;
+
+/**
+ * Live metrics of a router, apart from those of its routes.
+ */
+class RouterStats {
+    final StripedCounter dispatches = new StripedCounter();
+    final StripedCounter misses = new StripedCounter();
+    final StripedCounter regexesRun = new StripedCounter();
+    final LatencyRecorder missTime = new LatencyRecorder();
+}
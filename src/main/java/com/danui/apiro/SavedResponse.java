@@ -0,0 +1,95 @@
+package com.danui.apiro;
+
+import java.io.IOException;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Status, headers and body of a response, as recorded by a BufferedResponse,
+ * for sending again. Saved responses are immutable.
+ */
+final class SavedResponse {
+
+    final int status;
+    final String contentType;
+    // Alternating names and values, with the values of a name together.
+    final String[] headers;
+    final byte[] body;
+
+    SavedResponse(int status, String contentType, String[] headers,
+        byte[] body) {
+
+        this.status = status;
+        this.contentType = contentType;
+        this.headers = headers;
+        this.body = body;
+    }
+
+    /**
+     * Copy with a header set after the others.
+     */
+    SavedResponse withHeader(String name, String value) {
+        String[] result = new String[headers.length + 2];
+        System.arraycopy(headers, 0, result, 0, headers.length);
+        result[headers.length] = name;
+        result[headers.length + 1] = value;
+        return new SavedResponse(status, contentType, result, body);
+    }
+
+    /**
+     * First value of a header.
+     *
+     * @return Value, or null if the header was not set.
+     */
+    String header(String name) {
+        for (int i = 0; i < headers.length; i += 2) {
+            if (headers[i].equalsIgnoreCase(name)) {
+                return headers[i + 1];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Send the status and headers.
+     */
+    void sendHeaders(HttpServletResponse res) {
+        if (status != HttpServletResponse.SC_OK) {
+            res.setStatus(status);
+        }
+        for (int i = 0; i < headers.length; i += 2) {
+            if (i > 0 && headers[i].equals(headers[i - 2])) {
+                res.addHeader(headers[i], headers[i + 1]);
+            } else {
+                res.setHeader(headers[i], headers[i + 1]);
+            }
+        }
+    }
+
+    /**
+     * Send the content type and body, having sent the headers.
+     *
+     * @param withBody False to send only the length, as for HEAD requests.
+     */
+    void sendBody(HttpServletResponse res, boolean withBody) {
+        if (contentType != null) {
+            res.setContentType(contentType);
+        }
+        if (withBody) {
+            write(res, body);
+        } else {
+            res.setContentLength(body.length);
+        }
+    }
+
+    /**
+     * Write a body, with its length.
+     */
+    static void write(HttpServletResponse res, byte[] body) {
+        res.setContentLength(body.length);
+        try {
+            res.getOutputStream().write(body);
+        } catch (IOException e) {
+            // The client has gone, and there is no one left to tell.
+        }
+    }
+}
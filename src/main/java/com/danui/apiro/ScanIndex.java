@@ -0,0 +1,52 @@
+package com.danui.apiro;
+
+import java.util.regex.Matcher;
+
+/**
+ * Tries routes in registration order.
+ *
+ * Only routes whose literal prefix is a prefix of the path are tried. Routes
+ * whose regex is a PathTemplate are matched by comparing the path's segments
+ * with the template's, so that most are turned away on the number of
+ * segments alone, and their regexes are never run. Other routes are matched
+ * by regex.
+ */
+class ScanIndex implements RouteIndex {
+
+    private final Route[] routes;
+    private final PrefixTrie trie;
+
+    ScanIndex(Route[] routes) {
+        this.routes = routes;
+        this.trie = new PrefixTrie(routes);
+    }
+
+    @Override
+    public boolean find(String path, RouteMatch match) {
+        PrefixTrie.Candidates candidates = trie.candidates(path);
+        for (int i = candidates.next(); i >= 0; i = candidates.next()) {
+            if (tryRoute(i, path, match)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean tryRoute(int i, String path, RouteMatch match) {
+        PathTemplate template = routes[i].template();
+        if (template != null) {
+            if (!template.matches(match.segments(path))) {
+                return false;
+            }
+            match.set(routes[i], path, false);
+            return true;
+        }
+        match.regexesRun += 1;
+        Matcher matcher = routes[i].match(path, match.limitedInput(path));
+        if (matcher != null) {
+            match.set(routes[i], path, matcher);
+            return true;
+        }
+        return false;
+    }
+}
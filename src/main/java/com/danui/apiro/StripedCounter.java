@@ -0,0 +1,74 @@
+package com.danui.apiro;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Lock-free counter for values updated by many threads, in the manner of
+ * LongAdder.
+ *
+ * Updates go to a single base value until two threads collide on it. From
+ * then on each thread adds to one of several cells, each on its own cache
+ * line, chosen by thread id. Uncontended counters therefore stay small.
+ */
+class StripedCounter {
+
+    // Longs per cell, so that cells do not share cache lines.
+    private static final int STRIDE = 8;
+    static final int CELLS = cells();
+
+    private final AtomicLong base = new AtomicLong();
+    private final AtomicReference<AtomicLongArray> cells =
+        new AtomicReference<>();
+
+    private static int cells() {
+        int n = Runtime.getRuntime().availableProcessors();
+        int result = 1;
+        while (result < n && result < 64) {
+            result *= 2;
+        }
+        return result;
+    }
+
+    void increment() {
+        add(1);
+    }
+
+    void add(long x) {
+        AtomicLongArray cs = cells.get();
+        if (cs == null) {
+            long b = base.get();
+            if (base.compareAndSet(b, b + x)) {
+                return;
+            }
+            cells.compareAndSet(null, new AtomicLongArray(CELLS * STRIDE));
+            cs = cells.get();
+        }
+        cs.getAndAdd(STRIDE * cell(), x);
+    }
+
+    /**
+     * Current total. Not a snapshot: concurrent updates may or may not be
+     * included.
+     */
+    long sum() {
+        long result = base.get();
+        AtomicLongArray cs = cells.get();
+        if (cs != null) {
+            for (int i = 0; i < CELLS; ++i) {
+                result += cs.get(STRIDE * i);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Cell of the current thread, in [0, CELLS).
+     */
+    static int cell() {
+        // Thread ids are sequential, so spread them with a multiplicative hash.
+        long h = Thread.currentThread().getId() * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 32) & (CELLS - 1);
+    }
+}
@@ -0,0 +1,153 @@
+package com.danui.apiro;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Radix tree of path segments.
+ *
+ * Routes whose regex is a PathTemplate are stored in a tree where literal
+ * segments are exact-match edges and parameters are wildcard edges. Looking up
+ * a path costs time proportional to its depth rather than to the number of
+ * routes. Other routes fall back to regex matching, and are only tried if they
+ * were registered before the best route found in the tree.
+ */
+class TreeIndex implements RouteIndex {
+
+    private static final int NONE = Integer.MAX_VALUE;
+
+    private final Node root = new Node();
+    private final Fallbacks fallbacks;
+
+    TreeIndex(Route[] routes) {
+        boolean[] covered = new boolean[routes.length];
+        for (int i = 0; i < routes.length; ++i) {
+            PathTemplate template = routes[i].template();
+            if (template != null) {
+                insert(template, i);
+                covered[i] = true;
+            }
+        }
+        this.fallbacks = new Fallbacks(routes, covered);
+        root.freeze();
+    }
+
+    private void insert(PathTemplate template, int route) {
+        Node node = root;
+        for (int i = 0; i < template.size(); ++i) {
+            String segment = template.segment(i);
+            node = (segment == null) ? node.param() : node.child(segment);
+        }
+        node.terminate(route);
+        if (template.hasTrailingSlash()) {
+            node.child("").terminate(route);
+        }
+    }
+
+    @Override
+    public boolean find(String path, RouteMatch match) {
+        int best = search(root, match.segments(path), 0);
+        return fallbacks.find(path, (best == NONE) ? -1 : best, false, match);
+    }
+
+    /**
+     * Find the lowest numbered route that matches the rest of the path.
+     *
+     * @param i Number of the next segment of path.
+     */
+    private static int search(Node node, PathSegments path, int i) {
+        if (i == path.size()) {
+            return node.route;
+        }
+        int from = path.start(i);
+        int to = path.end(i);
+        int best = NONE;
+        Node child = node.child(path.path(), from, to);
+        if (child != null) {
+            best = search(child, path, i + 1);
+        }
+        if (node.param != null && to > from) {
+            best = Math.min(best, search(node.param, path, i + 1));
+        }
+        return best;
+    }
+
+    private static class Node {
+        private int route = NONE;
+        private Node param;
+        private Map<String,Node> building = new TreeMap<>();
+        private String[] keys;
+        private Node[] children;
+
+        void terminate(int route) {
+            // Routes are inserted in order, so the first one wins.
+            if (this.route == NONE) {
+                this.route = route;
+            }
+        }
+
+        Node param() {
+            if (param == null) {
+                param = new Node();
+            }
+            return param;
+        }
+
+        Node child(String segment) {
+            Node result = building.get(segment);
+            if (result == null) {
+                result = new Node();
+                building.put(segment, result);
+            }
+            return result;
+        }
+
+        /**
+         * Replace the build-time map with sorted arrays.
+         */
+        void freeze() {
+            keys = building.keySet().toArray(new String[building.size()]);
+            children = building.values().toArray(new Node[building.size()]);
+            building = null;
+            for (Node child : children) {
+                child.freeze();
+            }
+            if (param != null) {
+                param.freeze();
+            }
+        }
+
+        /**
+         * Binary search for the child keyed on path[from,to).
+         */
+        Node child(String path, int from, int to) {
+            int lo = 0;
+            int hi = keys.length - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                int cmp = compare(keys[mid], path, from, to);
+                if (cmp < 0) {
+                    lo = mid + 1;
+                } else if (cmp > 0) {
+                    hi = mid - 1;
+                } else {
+                    return children[mid];
+                }
+            }
+            return null;
+        }
+
+        private static int compare(String key, String path, int from,
+            int to) {
+
+            int len = Math.min(key.length(), to - from);
+            for (int i = 0; i < len; ++i) {
+                int diff = key.charAt(i) - path.charAt(from + i);
+                if (diff != 0) {
+                    return diff;
+                }
+            }
+            return key.length() - (to - from);
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package com.danui.apiro;
+
+public class UnknownParameterException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    public UnknownParameterException() {
+        super();
+    }
+    public UnknownParameterException(String message) {
+        super(message);
+    }
+    public UnknownParameterException(String message, Throwable cause) {
+        super(message, cause);
+    }
+    public UnknownParameterException(Throwable cause) {
+        super(cause);
+    }
+}
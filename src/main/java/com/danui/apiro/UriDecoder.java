@@ -0,0 +1,169 @@
+package com.danui.apiro;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Decodes application/x-www-form-urlencoded text as UTF-8.
+ *
+ * Gives the same results as URLDecoder.decode(s, "UTF-8"), but returns text
+ * without escapes as is, and decodes the rest in a single pass through per
+ * thread buffers.
+ */
+class UriDecoder {
+
+    private static final ThreadLocal<Buffers> BUFFERS =
+        new ThreadLocal<Buffers>() {
+            @Override
+            protected Buffers initialValue() {
+                return new Buffers();
+            }
+        };
+
+    private UriDecoder() {
+    }
+
+    /**
+     * Decode s[start,end).
+     *
+     * @throws IllegalArgumentException when a '%' is not followed by two hex
+     *     digits.
+     */
+    static String decode(String s, int start, int end) {
+        int i = start;
+        while (i < end) {
+            char c = s.charAt(i);
+            if (c == '%' || c == '+') {
+                break;
+            }
+            i += 1;
+        }
+        if (i == end) {
+            return (start == 0 && end == s.length())
+                ? s : s.substring(start, end);
+        }
+        Buffers buffers = BUFFERS.get();
+        char[] out = buffers.chars(end - start);
+        int n = 0;
+        for (int j = start; j < i; ++j) {
+            out[n++] = s.charAt(j);
+        }
+        while (i < end) {
+            char c = s.charAt(i);
+            if (c == '+') {
+                out[n++] = ' ';
+                i += 1;
+            } else if (c == '%') {
+                // Gather the run of escaped bytes, then decode them together.
+                byte[] bytes = buffers.bytes((end - i) / 3);
+                int numBytes = 0;
+                while (i < end && s.charAt(i) == '%') {
+                    bytes[numBytes++] = (byte) hexByte(s, i, end);
+                    i += 3;
+                }
+                n = decodeUtf8(bytes, numBytes, out, n);
+            } else {
+                out[n++] = c;
+                i += 1;
+            }
+        }
+        return new String(out, 0, n);
+    }
+
+    private static int hexByte(String s, int i, int end) {
+        if (i + 2 >= end) {
+            throw new IllegalArgumentException(
+                "Incomplete trailing escape (%) pattern");
+        }
+        int hi = Character.digit(s.charAt(i + 1), 16);
+        int lo = Character.digit(s.charAt(i + 2), 16);
+        if (hi < 0 || lo < 0) {
+            throw new IllegalArgumentException(
+                "Illegal hex characters in escape (%) pattern");
+        }
+        return (hi << 4) | lo;
+    }
+
+    /**
+     * Decode UTF-8 bytes into out at n.
+     *
+     * Well-formed input is decoded here. Malformed input is left to the
+     * platform decoder, so that it is replaced exactly as URLDecoder would.
+     *
+     * @return New length of out.
+     */
+    private static int decodeUtf8(byte[] bytes, int len, char[] out, int n) {
+        int start = n;
+        int i = 0;
+        while (i < len) {
+            int b = bytes[i] & 0xFF;
+            int cp;
+            int count;
+            int min;
+            if (b < 0x80) {
+                out[n++] = (char) b;
+                i += 1;
+                continue;
+            } else if (b >= 0xC2 && b <= 0xDF) {
+                cp = b & 0x1F;
+                count = 1;
+                min = 0x80;
+            } else if (b >= 0xE0 && b <= 0xEF) {
+                cp = b & 0x0F;
+                count = 2;
+                min = 0x800;
+            } else if (b >= 0xF0 && b <= 0xF4) {
+                cp = b & 0x07;
+                count = 3;
+                min = 0x10000;
+            } else {
+                return fallback(bytes, len, out, start);
+            }
+            if (i + count >= len) {
+                return fallback(bytes, len, out, start);
+            }
+            for (int k = 1; k <= count; ++k) {
+                int cont = bytes[i + k] & 0xFF;
+                if ((cont & 0xC0) != 0x80) {
+                    return fallback(bytes, len, out, start);
+                }
+                cp = (cp << 6) | (cont & 0x3F);
+            }
+            if (cp < min || cp > Character.MAX_CODE_POINT
+                || (cp >= Character.MIN_SURROGATE
+                    && cp <= Character.MAX_SURROGATE)) {
+                return fallback(bytes, len, out, start);
+            }
+            n += Character.toChars(cp, out, n);
+            i += count + 1;
+        }
+        return n;
+    }
+
+    private static int fallback(byte[] bytes, int len, char[] out, int n) {
+        String decoded = new String(bytes, 0, len, StandardCharsets.UTF_8);
+        decoded.getChars(0, decoded.length(), out, n);
+        return n + decoded.length();
+    }
+
+    /**
+     * Per thread decoding buffers.
+     */
+    private static class Buffers {
+        private char[] chars = new char[256];
+        private byte[] bytes = new byte[256];
+
+        char[] chars(int size) {
+            if (chars.length < size) {
+                chars = new char[Math.max(size, chars.length * 2)];
+            }
+            return chars;
+        }
+
+        byte[] bytes(int size) {
+            if (bytes.length < size) {
+                bytes = new byte[Math.max(size, bytes.length * 2)];
+            }
+            return bytes;
+        }
+    }
+}
@@ -37,6 +37,29 @@ public class ApiroTest {
         }
     }
 
+    private static class PathEp implements PathEndpoint {
+        public String id;
+        public int pg = -1;
+        public long big = -1;
+        public boolean hasBig;
+        @Override
+        public void handle(HttpServletRequest req, HttpServletResponse res,
+            PathParams params) {
+
+            try {
+                id = params.get("id").toString();
+                pg = params.getInt("pg");
+                int last = params.groupCount();
+                hasBig = (last > 2) && params.has(last);
+                if (hasBig) {
+                    big = params.getLong(last);
+                }
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
     @Test
     public void testReturnFalseWhenNoRoutes() {
         Router router = new Router();
@@ -93,4 +116,1598 @@ public class ApiroTest {
         assertEquals("42", epDoc.matcher.group("pg"));
     }
 
+    /**
+     * Tree mode should route the same way as scan mode.
+     */
+    @Test
+    public void testTreeRoutesToMatchedEndpoint() {
+        Router router = new Router(Router.Mode.TREE);
+        Ep epList = new Ep();
+        Ep epDoc = new Ep();
+        Ep epPage = new Ep();
+        router.on("/doc/?", epList);
+        router.on("/doc/([^/]+)/?", epDoc);
+        router.on("/doc/(?<id>[^/]+)/page/(?<pg>[^/]+)", epPage);
+        assertTrue(router.dispatch(newRequest("/doc/"), newResponse()));
+        assertTrue(epList.wasCalled());
+        assertTrue(router.dispatch(newRequest("/doc/S1"), newResponse()));
+        assertEquals("S1", epDoc.matcher.group(1));
+        assertTrue(router.dispatch(newRequest("/doc/S1/page/42"),
+            newResponse()));
+        assertEquals("S1", epPage.matcher.group("id"));
+        assertEquals("42", epPage.matcher.group("pg"));
+        assertFalse(router.dispatch(newRequest("/doc//"), newResponse()));
+        assertFalse(router.dispatch(newRequest("/doc/S1/page/42/"),
+            newResponse()));
+        assertFalse(router.dispatch(newRequest("/docs"), newResponse()));
+    }
+
+    /**
+     * Tree mode should dispatch to the first bound route that matches, whether
+     * or not it is stored in the tree.
+     */
+    @Test
+    public void testTreeKeepsBindingOrder() {
+        Router router = new Router(Router.Mode.TREE);
+        Ep epParam = new Ep();
+        Ep epRegex = new Ep();
+        Ep epLiteral = new Ep();
+        Ep epLate = new Ep();
+        router.on("/doc/([^/]+)", epParam);
+        router.on("/doc/[0-9]+", epRegex);
+        router.on("/doc/new", epLiteral);
+        router.on("/user/[a-z]+", epRegex);
+        router.on("/user/bob", epLate);
+        assertTrue(router.dispatch(newRequest("/doc/new"), newResponse()));
+        assertTrue(epParam.wasCalled());
+        assertFalse(epLiteral.wasCalled());
+        assertTrue(router.dispatch(newRequest("/user/bob"), newResponse()));
+        assertTrue(epRegex.wasCalled());
+        assertFalse(epLate.wasCalled());
+    }
+
+    /**
+     * Routes are dispatched in binding order even when they have different
+     * literal prefixes.
+     */
+    @Test
+    public void testPrefixesKeepBindingOrder() {
+        Router router = new Router();
+        Ep epShort = new Ep();
+        Ep epLong = new Ep();
+        Ep epOptional = new Ep();
+        Ep epAlternate = new Ep();
+        router.on("/do.*", epShort);
+        router.on("/doc/x", epLong);
+        router.on("/ab?", epOptional);
+        router.on("/x|/y", epAlternate);
+        assertTrue(router.dispatch(newRequest("/doc/x"), newResponse()));
+        assertTrue(epShort.wasCalled());
+        assertFalse(epLong.wasCalled());
+        assertTrue(router.dispatch(newRequest("/a"), newResponse()));
+        assertTrue(epOptional.wasCalled());
+        assertTrue(router.dispatch(newRequest("/y"), newResponse()));
+        assertTrue(epAlternate.wasCalled());
+        assertFalse(router.dispatch(newRequest("/z"), newResponse()));
+    }
+
+    @Test
+    public void testLiteralPrefix() {
+        assertEquals("/doc/", RegexSyntax.literalPrefix("/doc/([^/]+)/?"));
+        assertEquals("/doc", RegexSyntax.literalPrefix("/doc/?"));
+        assertEquals("/a.b", RegexSyntax.literalPrefix("/a\\.b+"));
+        assertEquals("/v", RegexSyntax.literalPrefix("/v\\d"));
+        assertEquals("", RegexSyntax.literalPrefix("/a/(b|c)|/d"));
+        assertEquals("/a/", RegexSyntax.literalPrefix("/a/(b|c)"));
+        assertEquals("/a", RegexSyntax.literalPrefix("/a[|]"));
+        assertEquals("", RegexSyntax.literalPrefix("(?i)/doc"));
+    }
+
+    /**
+     * Automaton mode should dispatch to the first bound route that matches,
+     * whether or not the automaton supports its regex.
+     */
+    @Test
+    public void testAutomatonKeepsBindingOrder() {
+        Router router = new Router(Router.Mode.AUTOMATON);
+        Ep epList = new Ep();
+        Ep epAnchored = new Ep();
+        Ep epPage = new Ep();
+        Ep epLate = new Ep();
+        router.on("/doc/?", epList);
+        router.on("^/doc/new$", epAnchored);
+        router.on("/doc/(?<id>[^/]+)/page/(?<pg>[0-9]{1,})/?", epPage);
+        router.on("/doc/([^/]+)", epLate);
+        assertTrue(router.dispatch(newRequest("/doc"), newResponse()));
+        assertTrue(epList.wasCalled());
+        assertTrue(router.dispatch(newRequest("/doc/new"), newResponse()));
+        assertTrue(epAnchored.wasCalled());
+        assertTrue(router.dispatch(newRequest("/doc/S1/page/42"),
+            newResponse()));
+        assertEquals("S1", epPage.matcher.group("id"));
+        assertEquals("42", epPage.matcher.group("pg"));
+        assertFalse(epLate.wasCalled());
+        assertFalse(router.dispatch(newRequest("/doc/S1/page/x"),
+            newResponse()));
+    }
+
+    /**
+     * PathEndpoints should receive the same groups in every mode, whether or
+     * not the route's regex is run.
+     */
+    @Test
+    public void testPathEndpoint() {
+        String[] regexes = {
+            "/doc/(?<id>[^/]+)/page/(?<pg>[^/]+)/?",
+            "/doc/(?<id>S[0-9]+)/page/(?<pg>-?[0-9]+)(/([0-9]+))?",
+            "^/doc/(?<id>[^/]+)/page/(?<pg>[^/]+)(?:/(\\d+))?$",
+        };
+        for (Router.Mode mode : Router.Mode.values()) {
+            for (String regex : regexes) {
+                Router router = new Router(mode);
+                PathEp ep = new PathEp();
+                router.on(regex, ep);
+                assertTrue(router.dispatch(newRequest("/doc/S123/page/-42"),
+                    newResponse()));
+                assertEquals("S123", ep.id);
+                assertEquals(-42, ep.pg);
+            }
+            Router router = new Router(mode);
+            PathEp ep = new PathEp();
+            router.on(regexes[1], ep);
+            assertTrue(router.dispatch(
+                newRequest("/doc/S1/page/7/21474836470"), newResponse()));
+            assertTrue(ep.hasBig);
+            assertEquals(21474836470L, ep.big);
+            router.dispatch(newRequest("/doc/S1/page/7"), newResponse());
+            assertFalse(ep.hasBig);
+        }
+    }
+
+    @Test
+    public void testPathParamsWrongType() {
+        final Exception[] caught = new Exception[1];
+        Router router = new Router(Router.Mode.TREE);
+        router.on("/doc/(?<id>[^/]+)", new PathEndpoint() {
+            @Override
+            public void handle(HttpServletRequest req,
+                HttpServletResponse res, PathParams params) {
+
+                try {
+                    params.getInt("id");
+                } catch (Exception e) {
+                    caught[0] = e;
+                }
+            }
+        });
+        assertTrue(router.dispatch(newRequest("/doc/2147483648"),
+            newResponse()));
+        assertTrue(caught[0] instanceof WrongParameterTypeException);
+    }
+
+    /**
+     * An endpoint may dispatch again without disturbing its own parameters.
+     */
+    @Test
+    public void testReentrantDispatch() {
+        final Router router = new Router();
+        final Ep inner = new Ep();
+        final String[] outer = new String[1];
+        router.on("/inner/([^/]+)", inner);
+        router.on("/outer/([^/]+)", new PathEndpoint() {
+            @Override
+            public void handle(HttpServletRequest req,
+                HttpServletResponse res, PathParams params) {
+
+                CharSequence before = params.get(1);
+                router.dispatch(newRequest("/inner/x"), res);
+                outer[0] = before.toString() + params.get(1);
+            }
+        });
+        assertTrue(router.dispatch(newRequest("/outer/y"), newResponse()));
+        assertEquals("x", inner.matcher.group(1));
+        assertEquals("yy", outer[0]);
+    }
+
+    @Test
+    public void testNumbers() {
+        assertTrue(Numbers.isInteger("-2147483648", 0, 11, Integer.MIN_VALUE,
+            Integer.MAX_VALUE));
+        assertFalse(Numbers.isInteger("2147483648", 0, 10, Integer.MIN_VALUE,
+            Integer.MAX_VALUE));
+        assertFalse(Numbers.isInteger("-", 0, 1, Long.MIN_VALUE,
+            Long.MAX_VALUE));
+        assertFalse(Numbers.isInteger("1.5", 0, 3, Long.MIN_VALUE,
+            Long.MAX_VALUE));
+        assertEquals(Long.MIN_VALUE, Numbers.parse("-9223372036854775808",
+            0, 20));
+        assertEquals(42L, Numbers.parse("x+42", 1, 4));
+    }
+
+    /**
+     * Endpoints may keep their matcher after later requests reuse the
+     * route's matchers.
+     */
+    @Test
+    public void testKeptMatcherStaysValid() {
+        Router router = new Router();
+        Ep ep = new Ep();
+        router.on("/doc/([^/]+)", ep);
+        assertTrue(router.dispatch(newRequest("/doc/a"), newResponse()));
+        Matcher kept = ep.matcher;
+        assertFalse(router.dispatch(newRequest("/x"), newResponse()));
+        assertTrue(router.dispatch(newRequest("/doc/b"), newResponse()));
+        assertNotSame(kept, ep.matcher);
+        assertEquals("a", kept.group(1));
+        assertEquals("b", ep.matcher.group(1));
+    }
+
+    @Test
+    public void testMatcherReuse() {
+        Route route = new Route("/doc/([^/]+)", new Ep());
+        assertNull(route.match("/x"));
+        Matcher first = route.match("/doc/a");
+        assertNotNull(first);
+        Matcher second = route.match("/doc/b");
+        assertNotSame(first, second);
+        route.release(second);
+        assertNull(route.match("/y"));
+        assertSame(second, route.match("/doc/c"));
+        assertEquals("a", first.group(1));
+    }
+
+    @Test
+    public void testMetrics() {
+        Router router = new Router();
+        assertNull(router.metrics());
+        router.on("/doc/(\\w+)", new Ep());
+        router.enableMetrics();
+        router.on("/doc/(\\w+)/(\\w+)", new Ep());
+        router.dispatch(newRequest("/doc/a"), newResponse());
+        router.dispatch(newRequest("/doc/a/b"), newResponse());
+        router.dispatch(newRequest("/doc/a/b"), newResponse());
+        router.dispatch(newRequest("/x"), newResponse());
+        RouterMetrics metrics = router.metrics();
+        assertEquals(4, metrics.dispatches());
+        assertEquals(1, metrics.misses());
+        assertEquals(1, metrics.missTime().count());
+        // "/doc/a/b" tries both routes, "/x" tries none.
+        assertEquals(5, metrics.regexesRun());
+        assertEquals(2, metrics.routes().size());
+        RouteMetrics first = metrics.routes().get(0);
+        assertEquals("/doc/(\\w+)", first.regex());
+        assertEquals(1, first.hits());
+        assertEquals(1, first.handleTime().count());
+        RouteMetrics second = metrics.routes().get(1);
+        assertEquals(2, second.hits());
+        assertEquals(2, second.matchTime().count());
+        assertTrue(second.matchTime().percentileNanos(1)
+            >= second.matchTime().meanNanos());
+    }
+
+    @Test
+    public void testReorderKeepsFirstMatch() {
+        Router router = new Router();
+        Ep[] eps = new Ep[5];
+        String[] regexes = {"/a/([^/]+)", "/a/([^/]+)/b", "/c/(.*)",
+            "/a/([^/]+)/c", "/a/(.*)"};
+        for (int i = 0; i < eps.length; ++i) {
+            eps[i] = new Ep();
+            router.on(regexes[i], eps[i]);
+        }
+        router.enableMetrics();
+        for (int i = 0; i < 10; ++i) {
+            router.dispatch(newRequest("/a/x/c"), newResponse());
+            router.dispatch(newRequest("/a/x/y/z"), newResponse());
+        }
+        router.reorder();
+        long before = router.metrics().regexesRun();
+        assertTrue(router.dispatch(newRequest("/a/x/c"), newResponse()));
+        // Route 3 is disjoint from routes 0 and 1, so it is now tried first,
+        // and as a template it is matched without running its regex.
+        assertEquals(before, router.metrics().regexesRun());
+        for (String path : new String[] {"/a/x", "/a/x/b", "/a/x/y/z"}) {
+            for (Ep ep : eps) {
+                ep.req = null;
+            }
+            assertTrue(router.dispatch(newRequest(path), newResponse()));
+            int called = -1;
+            for (int i = 0; i < eps.length; ++i) {
+                if (eps[i].wasCalled()) {
+                    called = i;
+                }
+            }
+            for (int i = 0; i < regexes.length; ++i) {
+                if (path.matches(regexes[i])) {
+                    assertEquals(path, i, called);
+                    break;
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testDisjointRoutes() {
+        Endpoint ep = new Ep();
+        Route a = new Route("/doc/([^/]+)/?", ep);
+        assertTrue(a.isDisjoint(new Route("/doc/([^/]+)/([^/]+)", ep)));
+        assertTrue(a.isDisjoint(new Route("/img/(.*)", ep)));
+        assertTrue(a.isDisjoint(new Route("/doc/", ep)));
+        assertFalse(a.isDisjoint(new Route("/doc/x/", ep)));
+        assertFalse(a.isDisjoint(new Route("/doc/(?<id>[^/]+)", ep)));
+        assertFalse(a.isDisjoint(new Route("/doc/.*", ep)));
+    }
+
+    @Test
+    public void testRemoveAndReplaceRoutes() {
+        Router router = new Router(Router.Mode.TREE);
+        Ep a = new Ep();
+        Ep b = new Ep();
+        router.on("/a/([^/]+)", a);
+        router.on("/b/([^/]+)", b);
+        assertTrue(router.dispatch(newRequest("/a/1"), newResponse()));
+        assertTrue(router.remove("/a/([^/]+)"));
+        assertFalse(router.remove("/a/([^/]+)"));
+        assertFalse(router.dispatch(newRequest("/a/1"), newResponse()));
+        assertTrue(router.dispatch(newRequest("/b/1"), newResponse()));
+
+        Router next = new Router();
+        Ep c = new Ep();
+        next.on("/c/([^/]+)", c);
+        router.enableMetrics();
+        router.replaceRoutes(next);
+        assertFalse(router.dispatch(newRequest("/b/1"), newResponse()));
+        assertTrue(router.dispatch(newRequest("/c/1"), newResponse()));
+        assertEquals("1", c.matcher.group(1));
+        assertEquals(1, router.metrics().routes().size());
+        assertEquals(1, router.metrics().routes().get(0).hits());
+        assertTrue(next.dispatch(newRequest("/c/2"), newResponse()));
+    }
+
+    /**
+     * Binding and unbinding while other threads dispatch never loses routes
+     * that stay bound.
+     */
+    @Test
+    public void testConcurrentBinding() throws Exception {
+        for (final Router.Mode mode : Router.Mode.values()) {
+            final Router router = new Router(mode);
+            final Ep stable = new Ep();
+            router.on("/stable/([^/]+)", stable);
+            final HttpServletRequest req = newRequest("/stable/1");
+            final HttpServletResponse res = newResponse();
+            final java.util.concurrent.atomic.AtomicInteger failures =
+                new java.util.concurrent.atomic.AtomicInteger();
+            final java.util.concurrent.atomic.AtomicBoolean done =
+                new java.util.concurrent.atomic.AtomicBoolean();
+            Thread[] threads = new Thread[3];
+            for (int i = 0; i < threads.length; ++i) {
+                threads[i] = new Thread() {
+                    @Override
+                    public void run() {
+                        while (!done.get()) {
+                            if (!router.dispatch(req, res)) {
+                                failures.incrementAndGet();
+                            }
+                        }
+                    }
+                };
+                threads[i].start();
+            }
+            for (int i = 0; i < 200; ++i) {
+                router.on("/r" + i + "/([^/]+)", new Ep());
+                if (i % 2 == 0) {
+                    router.remove("/r" + (i / 2) + "/([^/]+)");
+                }
+            }
+            done.set(true);
+            for (Thread i : threads) {
+                i.join();
+            }
+            assertEquals(mode.toString(), 0, failures.get());
+        }
+    }
+
+    @Test
+    public void testMissCache() {
+        Router router = new Router();
+        assertNull(router.missCacheStats());
+        router.enableMissCache(1024);
+        router.on("/doc/([^/]+)", new Ep());
+        assertFalse(router.dispatch(newRequest("/.env"), newResponse()));
+        assertFalse(router.dispatch(newRequest("/.env"), newResponse()));
+        assertEquals(1, router.missCacheStats().hits());
+        assertEquals(1, router.missCacheStats().misses());
+        assertTrue(router.dispatch(newRequest("/doc/a"), newResponse()));
+        // Binding a route that matches forgets the miss.
+        Ep env = new Ep();
+        router.on("/\\.env", env);
+        assertTrue(router.dispatch(newRequest("/.env"), newResponse()));
+        assertTrue(env.wasCalled());
+    }
+
+    @Test
+    public void testMatchCache() {
+        for (Router.Mode mode : Router.Mode.values()) {
+            Router router = new Router(mode);
+            router.enableMatchCache(1024);
+            Ep doc = new Ep();
+            PathEp page = new PathEp();
+            router.on("/doc/(\\w+)", doc);
+            router.on("/doc/(?<id>[^/]+)/(?<pg>[^/]+)", page);
+            for (int i = 0; i < 3; ++i) {
+                assertTrue(router.dispatch(newRequest("/doc/a"),
+                    newResponse()));
+                assertEquals("a", doc.matcher.group(1));
+                assertTrue(router.dispatch(newRequest("/doc/b/7"),
+                    newResponse()));
+                assertEquals("b", page.id);
+                assertEquals(7, page.pg);
+            }
+            // Cached from the second time on.
+            assertEquals(mode.toString(), 2,
+                router.matchCacheStats().hits());
+            Ep first = new Ep();
+            router.replaceRoutes(new Router());
+            router.on("/doc/(.*)", first);
+            assertTrue(router.dispatch(newRequest("/doc/b/7"),
+                newResponse()));
+            assertEquals("b/7", first.matcher.group(1));
+        }
+    }
+
+    @Test
+    public void testDoorkeeper() {
+        Doorkeeper doorkeeper = new Doorkeeper(100);
+        assertFalse(doorkeeper.seen("/a"));
+        assertTrue(doorkeeper.seen("/a"));
+        int falsePositives = 0;
+        for (int i = 0; i < 50; ++i) {
+            if (doorkeeper.seen("/b" + i)) {
+                falsePositives += 1;
+            }
+        }
+        assertTrue(falsePositives < 5);
+    }
+
+    @Test
+    public void testAsyncEndpoint() throws Exception {
+        final java.util.List<Runnable> tasks = new java.util.ArrayList<>();
+        Router router = new Router();
+        router.setAsyncExecutor(new java.util.concurrent.Executor() {
+            @Override
+            public void execute(Runnable task) {
+                tasks.add(task);
+            }
+        });
+        final String[] id = new String[1];
+        router.on("/doc/(?<id>[^/]+)", new AsyncEndpoint() {
+            @Override
+            public void handle(HttpServletRequest req,
+                HttpServletResponse res, PathParams params) throws Exception {
+
+                if (params.getString("id").equals("bad")) {
+                    throw new Exception("bad");
+                }
+                id[0] = params.getString("id");
+            }
+        });
+        HttpServletRequest req = newRequest("/doc/a");
+        HttpServletResponse res = newResponse();
+        javax.servlet.AsyncContext context =
+            mock(javax.servlet.AsyncContext.class);
+        when(req.isAsyncSupported()).thenReturn(true);
+        when(req.startAsync(req, res)).thenReturn(context);
+        assertTrue(router.dispatch(req, res));
+        // Params outlive the dispatch. Requests without async support run
+        // inline.
+        router.dispatch(newRequest("/doc/other"), newResponse());
+        assertEquals("other", id[0]);
+        assertEquals(1, tasks.size());
+        tasks.get(0).run();
+        assertEquals("a", id[0]);
+        verify(context, times(1)).complete();
+
+        req = newRequest("/doc/bad");
+        res = newResponse();
+        context = mock(javax.servlet.AsyncContext.class);
+        when(req.isAsyncSupported()).thenReturn(true);
+        when(req.startAsync(req, res)).thenReturn(context);
+        router.dispatch(req, res);
+        tasks.get(1).run();
+        verify(res).sendError(500);
+        verify(context, times(1)).complete();
+    }
+
+    @Test
+    public void testAsyncEndpointTimedOutOrFailed() throws Exception {
+        final java.util.List<Runnable> tasks = new java.util.ArrayList<>();
+        Router router = new Router();
+        router.setAsyncExecutor(new java.util.concurrent.Executor() {
+            @Override
+            public void execute(Runnable task) {
+                tasks.add(task);
+            }
+        });
+        final int[] calls = new int[1];
+        router.on("/doc/([^/]+)", new AsyncEndpoint() {
+            @Override
+            public void handle(HttpServletRequest req,
+                HttpServletResponse res, PathParams params) throws Exception {
+
+                calls[0] += 1;
+                if (params.getString(1).equals("error")) {
+                    throw new AssertionError("error");
+                }
+            }
+        });
+        HttpServletRequest req = newRequest("/doc/a");
+        HttpServletResponse res = newResponse();
+        javax.servlet.AsyncContext context =
+            mock(javax.servlet.AsyncContext.class);
+        when(req.isAsyncSupported()).thenReturn(true);
+        when(req.startAsync(req, res)).thenReturn(context);
+        router.dispatch(req, res);
+        org.mockito.ArgumentCaptor<javax.servlet.AsyncListener> listener =
+            org.mockito.ArgumentCaptor.forClass(
+                javax.servlet.AsyncListener.class);
+        verify(context).addListener(listener.capture());
+        // Timed out while queued: the endpoint must not run afterwards.
+        listener.getValue().onTimeout(null);
+        verify(res).sendError(503);
+        tasks.get(0).run();
+        assertEquals(0, calls[0]);
+        verify(context, times(1)).complete();
+
+        req = newRequest("/doc/error");
+        res = newResponse();
+        context = mock(javax.servlet.AsyncContext.class);
+        when(req.isAsyncSupported()).thenReturn(true);
+        when(req.startAsync(req, res)).thenReturn(context);
+        router.dispatch(req, res);
+        try {
+            tasks.get(1).run();
+            fail();
+        } catch (AssertionError e) {
+            assertEquals("error", e.getMessage());
+        }
+        assertEquals(1, calls[0]);
+        verify(res).sendError(500);
+        verify(context, times(1)).complete();
+    }
+
+    @Test
+    public void testAsyncEndpointHoldsConcurrencySlot() throws Exception {
+        final java.util.List<Runnable> tasks = new java.util.ArrayList<>();
+        Router router = new Router();
+        router.setAsyncExecutor(new java.util.concurrent.Executor() {
+            @Override
+            public void execute(Runnable task) {
+                tasks.add(task);
+            }
+        });
+        router.on("/slow", new AsyncEndpoint() {
+            @Override
+            public void handle(HttpServletRequest req,
+                HttpServletResponse res, PathParams params) {
+            }
+        });
+        router.enableConcurrencyLimits(1, 1);
+        javax.servlet.AsyncListener[] listeners =
+            new javax.servlet.AsyncListener[2];
+        for (int i = 0; i < 2; ++i) {
+            HttpServletRequest req = newRequest("/slow");
+            HttpServletResponse res = newResponse();
+            javax.servlet.AsyncContext context =
+                mock(javax.servlet.AsyncContext.class);
+            when(req.isAsyncSupported()).thenReturn(true);
+            when(req.startAsync(req, res)).thenReturn(context);
+            assertTrue(router.dispatch(req, res));
+            org.mockito.ArgumentCaptor<javax.servlet.AsyncListener> listener =
+                org.mockito.ArgumentCaptor.forClass(
+                    javax.servlet.AsyncListener.class);
+            verify(context).addListener(listener.capture());
+            listeners[i] = listener.getValue();
+            // Held while queued, so the next request is turned away.
+            assertEquals(1, router.concurrencyLimits().get(0).inFlight());
+            HttpServletResponse rejected = newResponse();
+            assertTrue(router.dispatch(newRequest("/slow"), rejected));
+            verify(rejected).sendError(503);
+            if (i == 0) {
+                tasks.get(0).run();
+            } else {
+                listeners[1].onTimeout(null);
+            }
+            assertEquals(0, router.concurrencyLimits().get(0).inFlight());
+        }
+        // Late events do not release the slot twice.
+        listeners[0].onComplete(null);
+        tasks.get(1).run();
+        assertEquals(0, router.concurrencyLimits().get(0).inFlight());
+    }
+
+    @Test
+    public void testAsyncEndpointRejected() throws Exception {
+        Router router = new Router();
+        router.setAsyncExecutor(new java.util.concurrent.Executor() {
+            @Override
+            public void execute(Runnable task) {
+                throw new java.util.concurrent.RejectedExecutionException();
+            }
+        });
+        final boolean[] called = new boolean[1];
+        router.on("/slow", new AsyncEndpoint() {
+            @Override
+            public void handle(HttpServletRequest req,
+                HttpServletResponse res, PathParams params) {
+
+                called[0] = true;
+            }
+        });
+        HttpServletRequest req = newRequest("/slow");
+        HttpServletResponse res = newResponse();
+        javax.servlet.AsyncContext context =
+            mock(javax.servlet.AsyncContext.class);
+        when(req.isAsyncSupported()).thenReturn(true);
+        when(req.startAsync(req, res)).thenReturn(context);
+        assertTrue(router.dispatch(req, res));
+        assertFalse(called[0]);
+        verify(res).sendError(503);
+        verify(context).complete();
+        // Without async support, the endpoint runs on the calling thread.
+        assertTrue(router.dispatch(newRequest("/slow"), newResponse()));
+        assertTrue(called[0]);
+    }
+
+    private HttpServletRequest newRequest(String method, String pathInfo) {
+        HttpServletRequest result = newRequest(pathInfo);
+        when(result.getMethod()).thenReturn(method);
+        return result;
+    }
+
+    @Test
+    public void testMethodRoutes() throws Exception {
+        Router router = new Router(Router.Mode.TREE);
+        Ep get = new Ep();
+        Ep put = new Ep();
+        Ep any = new Ep();
+        router.on(HttpMethod.GET, "/doc/([^/]+)", get);
+        router.on("/other", any);
+        router.on(HttpMethod.PUT, "/doc/([^/]+)", put);
+        router.enableMetrics();
+
+        assertTrue(router.dispatch(newRequest("PUT", "/doc/a"),
+            newResponse()));
+        assertNotNull(put.req);
+        assertEquals("a", put.matcher.group(1));
+        assertNull(get.req);
+        assertTrue(router.dispatch(newRequest("GET", "/doc/b"),
+            newResponse()));
+        assertEquals("b", get.matcher.group(1));
+        assertTrue(router.dispatch(newRequest("POST", "/other"),
+            newResponse()));
+        assertNotNull(any.req);
+        assertEquals(2, router.metrics().routes().size());
+
+        HttpServletResponse res = newResponse();
+        assertTrue(router.dispatch(newRequest("POST", "/doc/a"), res));
+        verify(res).setHeader("Allow", "GET, HEAD, PUT, OPTIONS");
+        verify(res).sendError(405);
+
+        res = newResponse();
+        assertTrue(router.dispatch(newRequest("OPTIONS", "/doc/a"), res));
+        verify(res).setHeader("Allow", "GET, HEAD, PUT, OPTIONS");
+        verify(res, never()).sendError(anyInt());
+
+        res = newResponse();
+        assertTrue(router.dispatch(newRequest("BREW", "/doc/a"), res));
+        verify(res).sendError(501);
+
+        assertFalse(router.dispatch(newRequest("GET", "/nope"),
+            newResponse()));
+        try {
+            router.on(HttpMethod.GET, "/doc/([^/]+)", new Ep());
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void testMethodRoutesKeepScanning() throws Exception {
+        for (Router.Mode mode : Router.Mode.values()) {
+            Router router = new Router(mode);
+            Ep get = new Ep();
+            Ep search = new Ep();
+            router.on(HttpMethod.GET, "/users/([^/]+)", get);
+            router.on(HttpMethod.POST, "/users/search", search);
+
+            assertTrue(router.dispatch(newRequest("POST", "/users/search"),
+                newResponse()));
+            assertNotNull(search.req);
+            assertNull(get.req);
+
+            // HEAD goes to the GET endpoint, without a body.
+            HttpServletResponse res = newResponse();
+            assertTrue(router.dispatch(newRequest("HEAD", "/users/search"),
+                res));
+            assertEquals("search", get.matcher.group(1));
+            assertTrue(get.res instanceof HeadResponse);
+            get.res.getWriter().print("dropped");
+            verify(res, never()).getWriter();
+
+            res = newResponse();
+            assertTrue(router.dispatch(newRequest("POST", "/users/a"), res));
+            verify(res).setHeader("Allow", "GET, HEAD, OPTIONS");
+            verify(res).sendError(405);
+            res = newResponse();
+            assertTrue(router.dispatch(newRequest("DELETE", "/users/search"),
+                res));
+            verify(res).setHeader("Allow", "GET, HEAD, POST, OPTIONS");
+            verify(res).sendError(405);
+        }
+    }
+
+    @Test
+    public void testMethodRoutesChargeHandlingRoute() throws Exception {
+        for (Router.Mode mode : Router.Mode.values()) {
+            Router router = new Router(mode);
+            router.on(HttpMethod.GET, "/users/([^/]+)", new Ep());
+            router.on(HttpMethod.POST, "/users/search", new Ep());
+            router.enableMetrics();
+            router.dispatch(newRequest("POST", "/users/search"),
+                newResponse());
+            router.dispatch(newRequest("DELETE", "/users/search"),
+                newResponse());
+            RouterMetrics metrics = router.metrics();
+            assertEquals(0, metrics.routes().get(0).hits());
+            assertEquals(1, metrics.routes().get(1).hits());
+            assertEquals(2, metrics.dispatches());
+            assertEquals(0, metrics.misses());
+        }
+    }
+
+    @Test
+    public void testApiroServlet() throws Exception {
+        ApiroServlet servlet = new ApiroServlet();
+        Ep get = new Ep();
+        servlet.getRouter().on(HttpMethod.GET, "/doc/?", get);
+        servlet.service(newRequest("GET", "/doc"), newResponse());
+        assertNotNull(get.req);
+        HttpServletResponse res = newResponse();
+        servlet.service(newRequest("GET", "/none"), res);
+        verify(res).sendError(404);
+        res = newResponse();
+        servlet.service(newRequest("DELETE", "/doc/"), res);
+        verify(res).setHeader("Allow", "GET, HEAD, OPTIONS");
+        verify(res).sendError(405);
+    }
+
+    @Test
+    public void testTemplatesMatchBySegments() {
+        Router router = new Router();
+        Ep[] eps = new Ep[4];
+        String[] regexes = {"/doc/([^/]+)", "/doc/([^/]+)/page/?",
+            "/doc/(?<id>[^/]+)/([^/]+)", "/doc/(.+)"};
+        for (int i = 0; i < eps.length; ++i) {
+            eps[i] = new Ep();
+            router.on(regexes[i], eps[i]);
+        }
+        router.enableMetrics();
+        String[] paths = {"/doc/a", "/doc/a/page", "/doc/a/page/",
+            "/doc/a/b", "/doc//b", "/doc/a/b/c", "/doc/"};
+        int[] expected = {0, 1, 1, 2, 3, 3, -1};
+        for (int i = 0; i < paths.length; ++i) {
+            for (Ep ep : eps) {
+                ep.req = null;
+            }
+            assertEquals(paths[i], expected[i] >= 0,
+                router.dispatch(newRequest(paths[i]), newResponse()));
+            for (int j = 0; j < eps.length; ++j) {
+                assertEquals(paths[i], j == expected[i], eps[j].wasCalled());
+            }
+        }
+        assertEquals("a", eps[2].matcher.group("id"));
+        assertEquals("b", eps[2].matcher.group(2));
+        // Only "/doc/(.+)" is not a template.
+        assertEquals(3, router.metrics().regexesRun());
+    }
+
+    @Test
+    public void testEscapedSlashIsNotTemplate() {
+        assertNull(PathTemplate.parse("/a\\/b"));
+        for (Router.Mode mode : Router.Mode.values()) {
+            Router router = new Router(mode);
+            Ep ep = new Ep();
+            router.on("/a\\/b", ep);
+            assertTrue(mode.toString(),
+                router.dispatch(newRequest("/a/b"), newResponse()));
+            assertTrue(ep.wasCalled());
+        }
+    }
+
+    @Test
+    public void testRegexLimit() {
+        Router router = new Router();
+        Ep ep = new Ep();
+        // Takes seconds on this path without a limit.
+        router.on("/x/(.*a){12}", ep);
+        router.setRegexLimit(100000);
+        StringBuilder hostile = new StringBuilder("/x/");
+        for (int i = 0; i < 28; ++i) {
+            hostile.append('a');
+        }
+        hostile.append('!');
+        assertFalse(router.dispatch(newRequest(hostile.toString()),
+            newResponse()));
+        assertEquals(1, router.abortedMatches());
+        assertTrue(router.dispatch(newRequest("/x/aaaaaaaaaaaba"),
+            newResponse()));
+        assertEquals("ba", ep.matcher.group(1));
+        assertEquals(1, router.abortedMatches());
+        // The kept matcher does not see paths matched after it.
+        assertFalse(router.dispatch(newRequest("/x/bbbbbbbbbbbbbbbbbbbb"),
+            newResponse()));
+        assertEquals("ba", ep.matcher.group(1));
+    }
+
+    @Test
+    public void testRegexLimitPerPath() {
+        Router router = new Router();
+        Ep ep = new Ep();
+        for (int i = 0; i < 9; ++i) {
+            router.on("/p/(.*)/" + i, new Ep());
+        }
+        router.on("/p/(.*)/9", ep);
+        String path = "/p/abcdefghijklmnopqrst/9";
+        router.setRegexLimit(1000);
+        assertTrue(router.dispatch(newRequest(path), newResponse()));
+        assertTrue(ep.wasCalled());
+        // Enough for any one of the regexes, but not for all ten.
+        router.setRegexLimit(100);
+        assertFalse(router.dispatch(newRequest(path), newResponse()));
+        assertEquals(1, router.abortedMatches());
+        // Each path gets the whole limit again.
+        assertTrue(router.dispatch(newRequest("/p/a/0"), newResponse()));
+    }
+
+    @Test
+    public void testRegexLimitSparesFoundRoutes() {
+        for (Router.Mode mode : Router.Mode.values()) {
+            Router router = new Router(mode);
+            router.enableMatchCache(1024);
+            Ep ep = new Ep();
+            router.on("/doc/([^/]+)/(.+)", ep);
+            String path = "/doc/a/long/name/of/a/document";
+            // Paths are cached the second time they are seen.
+            for (int i = 0; i < 2; ++i) {
+                assertTrue(router.dispatch(newRequest(path), newResponse()));
+            }
+            // Too few reads to run the regex, but the route is cached.
+            router.setRegexLimit(4);
+            for (int i = 0; i < 3; ++i) {
+                assertTrue(mode.toString(),
+                    router.dispatch(newRequest(path), newResponse()));
+                assertEquals("long/name/of/a/document", ep.matcher.group(2));
+            }
+            assertEquals(0, router.abortedMatches());
+        }
+    }
+
+    @Test
+    public void testUnsafeRegexes() {
+        for (String regex : new String[] {"/x/(a+)+", "/x/(a*)*b",
+                "/x/(\\w+\\s?)*", "/x/(a|ab)*", "/x/((ab)+c?)+",
+                "/x/(a|b+)+", "/x/(\\d{1,3}\\.?)+", "/x/(.*a){12}",
+                "^/x/(a+)+$", "^/x/(a|ab)*$", "/x/(?=a)(a+)+",
+                "/x/(a)\\1"}) {
+            assertNotNull(regex, RegexSafety.check(regex));
+        }
+        for (String regex : new String[] {"/doc/(.*)", "/doc/([^/]+)/?",
+                "(/[^/]+)*", "/x/(\\w+\\s)+", "/x/(a+b)+", "/x/(a|b)*",
+                "/x/(a{2})+", "/x/(.*a){3}", "^/doc/([^/]+)$",
+                "/x/\\$"}) {
+            assertNull(regex, RegexSafety.check(regex));
+        }
+        Router router = new Router();
+        router.on("/safe/(.*)", new Ep());
+        router.on("/x/(a+)+", new Ep());
+        assertEquals(java.util.Arrays.asList("/x/(a+)+"),
+            router.unsafeRegexes());
+        router.rejectUnsafeRegexes();
+        try {
+            router.on("/y/(a|ab)*", new Ep());
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+        router.on("/y/(a|b)*", new Ep());
+    }
+
+    @Test
+    public void testPathCacheEviction() {
+        PathCache<Integer> cache = new PathCache<>(4);
+        for (int i = 0; i < 4; ++i) {
+            cache.put("/p" + i, i);
+        }
+        for (int i = 0; i < 4; ++i) {
+            assertEquals(Integer.valueOf(i), cache.get("/p" + i));
+        }
+        // All entries were used, so each gets a second chance, and the
+        // sweep evicts the entry at the hand.
+        cache.put("/p4", 4);
+        cache.put("/p5", 5);
+        int cached = 0;
+        for (int i = 0; i < 6; ++i) {
+            if (cache.get("/p" + i) != null) {
+                cached += 1;
+            }
+        }
+        assertEquals(4, cached);
+        assertEquals(Integer.valueOf(5), cache.get("/p5"));
+        StringBuilder longPath = new StringBuilder("/");
+        for (int i = 0; i < PathCache.MAX_PATH_LENGTH; ++i) {
+            longPath.append('x');
+        }
+        cache.put(longPath.toString(), 6);
+        assertNull(cache.get(longPath.toString()));
+    }
+
+    @Test
+    public void testStripedCounter() throws Exception {
+        final StripedCounter counter = new StripedCounter();
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; ++i) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 10000; ++j) {
+                        counter.increment();
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread i : threads) {
+            i.join();
+        }
+        assertEquals(40000, counter.sum());
+    }
+
+    @Test
+    public void testLatencyRecorder() throws Exception {
+        final LatencyRecorder recorder = new LatencyRecorder();
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; ++i) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 10000; ++j) {
+                        recorder.record(100);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread i : threads) {
+            i.join();
+        }
+        Latency latency = recorder.snapshot();
+        assertEquals(40000, latency.count());
+        assertEquals(4000000, latency.totalNanos());
+        assertEquals(127, latency.maxNanos());
+    }
+
+    private static class Body extends javax.servlet.ServletOutputStream {
+        final java.io.ByteArrayOutputStream bytes =
+            new java.io.ByteArrayOutputStream();
+        final java.io.PrintWriter writer = new java.io.PrintWriter(this);
+        @Override
+        public void write(int b) {
+            bytes.write(b);
+        }
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+        @Override
+        public void setWriteListener(javax.servlet.WriteListener listener) {
+        }
+        @Override
+        public String toString() {
+            writer.flush();
+            return bytes.toString();
+        }
+    }
+
+    private String getBody(Router router, HttpServletRequest req)
+        throws Exception {
+
+        Body body = new Body();
+        assertTrue(router.dispatch(req, newResponse(body)));
+        return body.toString();
+    }
+
+    private HttpServletResponse newResponse(Body body) throws Exception {
+        HttpServletResponse result = newResponse();
+        when(result.getOutputStream()).thenReturn(body);
+        when(result.getWriter()).thenReturn(body.writer);
+        return result;
+    }
+
+    @Test
+    public void testCachingEndpoint() throws Exception {
+        final int[] calls = new int[1];
+        CachingEndpoint docs = new CachingEndpoint.Builder(new Endpoint() {
+            @Override
+            public void handle(HttpServletRequest req,
+                HttpServletResponse res, Matcher matcher) {
+
+                calls[0] += 1;
+                try {
+                    if (matcher.group(1).equals("none")) {
+                        res.sendError(404);
+                        return;
+                    }
+                    res.setHeader("Cache-Control", "max-age=60");
+                    res.getWriter().print("doc " + matcher.group(1)
+                        + " " + req.getQueryString());
+                } catch (java.io.IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }).queryKeys("lang").build();
+        Router router = new Router();
+        router.on("/doc/([^/]+)/?", docs);
+
+        assertEquals("doc a null", getBody(router, newRequest("GET",
+            "/doc/a")));
+        assertEquals("doc a null", getBody(router, newRequest("GET",
+            "/doc/a/")));
+        assertEquals(1, calls[0]);
+        assertEquals(1, docs.stats().hits());
+        assertTrue(docs.size() > 0);
+
+        // Only the listed query parameters are part of the key.
+        HttpServletRequest req = newRequest("GET", "/doc/a");
+        when(req.getQueryString()).thenReturn("lang=fr");
+        assertEquals("doc a lang=fr", getBody(router, req));
+        req = newRequest("GET", "/doc/a");
+        when(req.getQueryString()).thenReturn("lang=fr&x=1");
+        assertEquals("doc a lang=fr", getBody(router, req));
+        assertEquals(2, calls[0]);
+
+        // Malformed query strings are left to the endpoint.
+        for (int i = 0; i < 2; ++i) {
+            req = newRequest("GET", "/doc/a");
+            when(req.getQueryString()).thenReturn("lang=%zz");
+            assertEquals("doc a lang=%zz", getBody(router, req));
+        }
+        assertEquals(4, calls[0]);
+        Router coalescing = new Router();
+        coalescing.on("/doc/([^/]+)/?", new CoalescingEndpoint.Builder(
+            docs).queryKeys("lang").build());
+        req = newRequest("GET", "/doc/a");
+        when(req.getQueryString()).thenReturn("lang=%zz");
+        assertEquals("doc a lang=%zz", getBody(coalescing, req));
+        assertEquals(5, calls[0]);
+
+        String etag = CachingEndpoint.tag("doc a null".getBytes("UTF-8"));
+        req = newRequest("GET", "/doc/a");
+        when(req.getHeader("If-None-Match")).thenReturn("\"x\", " + etag);
+        HttpServletResponse res = newResponse();
+        assertTrue(router.dispatch(req, res));
+        verify(res).setStatus(304);
+        verify(res).setHeader("ETag", etag);
+        verify(res).setHeader("Cache-Control", "max-age=60");
+        verify(res, never()).getOutputStream();
+
+        docs.invalidate("a");
+        assertEquals("doc a null", getBody(router, newRequest("GET",
+            "/doc/a")));
+        assertEquals(6, calls[0]);
+        getBody(router, newRequest("PUT", "/doc/a"));
+        assertEquals(7, calls[0]);
+
+        // Errors are not cached.
+        getBody(router, newRequest("GET", "/doc/none"));
+        getBody(router, newRequest("GET", "/doc/none"));
+        assertEquals(9, calls[0]);
+        docs.invalidateAll();
+        assertEquals(0, docs.size());
+    }
+
+    @Test
+    public void testWeakETags() throws Exception {
+        CachingEndpoint docs = new CachingEndpoint.Builder(new Endpoint() {
+            @Override
+            public void handle(HttpServletRequest req,
+                HttpServletResponse res, Matcher matcher) {
+
+                res.setHeader("ETag", "W/\"v1\"");
+                try {
+                    res.getWriter().print("doc");
+                } catch (java.io.IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }).build();
+        Router router = new Router();
+        router.on("/doc", docs);
+        for (String tags : new String[] {"W/\"v1\"", "\"v1\"",
+                "\"v0\", W/\"v1\""}) {
+            for (int i = 0; i < 2; ++i) {
+                // Filling the cache, then from it.
+                HttpServletRequest req = newRequest("GET", "/doc");
+                when(req.getHeader("If-None-Match")).thenReturn(tags);
+                HttpServletResponse res = newResponse(new Body());
+                assertTrue(router.dispatch(req, res));
+                verify(res).setStatus(304);
+            }
+            docs.invalidateAll();
+        }
+        HttpServletRequest req = newRequest("GET", "/doc");
+        when(req.getHeader("If-None-Match")).thenReturn("W/\"v2\"");
+        Body body = new Body();
+        HttpServletResponse res = newResponse(body);
+        assertTrue(router.dispatch(req, res));
+        verify(res, never()).setStatus(304);
+        assertEquals("doc", body.toString());
+    }
+
+    @Test
+    public void testCachingEndpointLimits() throws Exception {
+        final int[] calls = new int[1];
+        Endpoint ep = new Endpoint() {
+            @Override
+            public void handle(HttpServletRequest req,
+                HttpServletResponse res, Matcher matcher) {
+
+                calls[0] += 1;
+                try {
+                    res.getOutputStream().write(new byte[1000]);
+                } catch (java.io.IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        CachingEndpoint small = new CachingEndpoint.Builder(ep)
+            .maxBytes(500).build();
+        small.handle(newRequest("GET", "/"), newResponse(new Body()),
+            java.util.regex.Pattern.compile("/").matcher("/"));
+        assertEquals(0, small.size());
+
+        // Room for two responses. Making room spares the one requested.
+        Router router = new Router();
+        router.on("/(.*)", new CachingEndpoint.Builder(ep)
+            .maxBytes(3000).build());
+        for (String path : new String[] {"/a", "/b", "/a", "/c", "/a"}) {
+            getBody(router, newRequest("GET", path));
+        }
+        assertEquals(4, calls[0]);
+        getBody(router, newRequest("GET", "/b"));
+        assertEquals(5, calls[0]);
+
+        calls[0] = 1;
+        router = new Router();
+        router.on("/(.*)", new CachingEndpoint.Builder(ep)
+            .ttl(1, java.util.concurrent.TimeUnit.MILLISECONDS).build());
+        assertEquals(1000, getBody(router, newRequest("GET", "/x")).length());
+        Thread.sleep(10);
+        getBody(router, newRequest("GET", "/x"));
+        assertEquals(3, calls[0]);
+    }
+
+    @Test
+    public void testCoalescingEndpoint() throws Exception {
+        final java.util.concurrent.atomic.AtomicInteger calls =
+            new java.util.concurrent.atomic.AtomicInteger();
+        final java.util.concurrent.CountDownLatch release =
+            new java.util.concurrent.CountDownLatch(1);
+        final CoalescingEndpoint docs = new CoalescingEndpoint.Builder(
+            new Endpoint() {
+                @Override
+                public void handle(HttpServletRequest req,
+                    HttpServletResponse res, Matcher matcher) {
+
+                    int n = calls.incrementAndGet();
+                    try {
+                        release.await();
+                        if (matcher.group(1).equals("bad") && n == 2) {
+                            throw new IllegalStateException("down");
+                        }
+                        res.setHeader("X-Call", String.valueOf(n));
+                        res.getWriter().print("doc " + matcher.group(1));
+                    } catch (java.io.IOException | InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            }).build();
+        final Router router = new Router();
+        router.on("/doc/([^/]+)", docs);
+
+        // Mocks are stubbed before any thread uses them.
+        final HttpServletRequest[] reqs = new HttpServletRequest[4];
+        final Body[] bodies = new Body[4];
+        final HttpServletResponse[] ress = new HttpServletResponse[4];
+        for (int i = 0; i < reqs.length; ++i) {
+            reqs[i] = newRequest("GET", (i < 2) ? "/doc/a" : "/doc/bad");
+            bodies[i] = new Body();
+            ress[i] = newResponse(bodies[i]);
+        }
+        final Throwable[] failures = new Throwable[4];
+        Thread[] threads = new Thread[4];
+        long deadline = System.nanoTime() + 10000000000L;
+        try {
+            for (int i = 0; i < threads.length; ++i) {
+                final int j = i;
+                threads[i] = new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            router.dispatch(reqs[j], ress[j]);
+                        } catch (Throwable e) {
+                            failures[j] = e;
+                        }
+                    }
+                };
+                threads[i].start();
+                // Start each pair's leader before its follower.
+                while (calls.get() + docs.waiting() < i + 1) {
+                    assertTrue("Request " + i + " did not arrive",
+                        System.nanoTime() < deadline);
+                    Thread.sleep(1);
+                }
+            }
+        } finally {
+            // Let the endpoint return, even if the test failed.
+            release.countDown();
+        }
+        for (Thread i : threads) {
+            i.join();
+        }
+        assertEquals("down", failures[2].getMessage());
+        failures[2] = null;
+        for (Throwable i : failures) {
+            if (i != null) {
+                throw new AssertionError(i);
+            }
+        }
+        assertEquals("doc a", bodies[0].toString());
+        assertEquals("doc a", bodies[1].toString());
+        assertEquals("doc bad", bodies[3].toString());
+        assertEquals(3, calls.get());
+        assertEquals(1, docs.coalesced());
+        assertEquals(1, docs.fallbacks());
+        assertEquals(0, docs.waiting());
+    }
+
+    private static class PrivateEp implements Endpoint {
+        final java.util.concurrent.atomic.AtomicInteger calls =
+            new java.util.concurrent.atomic.AtomicInteger();
+        final java.util.concurrent.CountDownLatch release;
+        PrivateEp() {
+            this(new java.util.concurrent.CountDownLatch(0));
+        }
+        PrivateEp(java.util.concurrent.CountDownLatch release) {
+            this.release = release;
+        }
+        @Override
+        public void handle(HttpServletRequest req, HttpServletResponse res,
+            Matcher matcher) {
+
+            calls.incrementAndGet();
+            try {
+                release.await();
+                String kind = matcher.group(1);
+                if (kind.equals("cookie")) {
+                    res.setHeader("Set-Cookie", "session=1");
+                } else if (kind.equals("addcookie")) {
+                    res.addCookie(new javax.servlet.http.Cookie("s", "1"));
+                } else if (kind.equals("nostore")) {
+                    res.setHeader("Cache-Control", "no-store");
+                } else if (kind.equals("private")) {
+                    res.addHeader("Cache-Control", "max-age=60");
+                    res.addHeader("Cache-Control", "Private");
+                } else {
+                    res.setHeader("Cache-Control", "max-age=60");
+                }
+                res.getWriter().print("doc " + kind);
+            } catch (java.io.IOException | InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    @Test
+    public void testPrivateResponsesNotShared() throws Exception {
+        PrivateEp ep = new PrivateEp();
+        Router router = new Router();
+        router.on("/doc/([^/]+)", new CachingEndpoint.Builder(ep).build());
+        String[] kinds = {"cookie", "addcookie", "nostore", "private",
+            "public"};
+        for (int i = 0; i < 2; ++i) {
+            for (String kind : kinds) {
+                assertEquals("doc " + kind, getBody(router,
+                    newRequest("GET", "/doc/" + kind)));
+            }
+        }
+        // Only the public response was cached.
+        assertEquals(9, ep.calls.get());
+
+        // Nor is a cookie handed to waiting requests.
+        java.util.concurrent.CountDownLatch release =
+            new java.util.concurrent.CountDownLatch(1);
+        PrivateEp slow = new PrivateEp(release);
+        final CoalescingEndpoint docs = new CoalescingEndpoint.Builder(slow)
+            .build();
+        final Router coalescing = new Router();
+        coalescing.on("/doc/([^/]+)", docs);
+        final HttpServletRequest[] reqs = new HttpServletRequest[2];
+        final HttpServletResponse[] ress = new HttpServletResponse[2];
+        for (int i = 0; i < reqs.length; ++i) {
+            reqs[i] = newRequest("GET", "/doc/cookie");
+            ress[i] = newResponse(new Body());
+        }
+        final Throwable[] failures = new Throwable[2];
+        Thread[] threads = new Thread[2];
+        long deadline = System.nanoTime() + 10000000000L;
+        try {
+            for (int i = 0; i < threads.length; ++i) {
+                final int j = i;
+                threads[i] = new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            coalescing.dispatch(reqs[j], ress[j]);
+                        } catch (Throwable e) {
+                            failures[j] = e;
+                        }
+                    }
+                };
+                threads[i].start();
+                while (slow.calls.get() + docs.waiting() < i + 1) {
+                    assertTrue("Request " + i + " did not arrive",
+                        System.nanoTime() < deadline);
+                    Thread.sleep(1);
+                }
+            }
+        } finally {
+            release.countDown();
+        }
+        for (int i = 0; i < threads.length; ++i) {
+            threads[i].join();
+            if (failures[i] != null) {
+                throw new AssertionError(failures[i]);
+            }
+        }
+        assertEquals(2, slow.calls.get());
+        assertEquals(0, docs.coalesced());
+        assertEquals(1, docs.fallbacks());
+        verify(ress[1]).setHeader("Set-Cookie", "session=1");
+    }
+
+    private static class ChannelBody extends Body
+        implements java.nio.channels.WritableByteChannel {
+
+        boolean usedChannel;
+        @Override
+        public int write(java.nio.ByteBuffer src) {
+            usedChannel = true;
+            int n = src.remaining();
+            byte[] b = new byte[n];
+            src.get(b);
+            bytes.write(b, 0, n);
+            return n;
+        }
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+    }
+
+    @Test
+    public void testFileEndpoint() throws Exception {
+        java.nio.file.Path root = java.nio.file.Files.createTempDirectory(
+            "apiro");
+        java.nio.file.Path file = root.resolve("a.txt");
+        java.nio.file.Path secret = root.resolveSibling(
+            root.getFileName() + ".secret");
+        try {
+            java.nio.file.Files.write(file, "0123456789".getBytes("UTF-8"));
+            java.nio.file.Files.write(secret, "x".getBytes("UTF-8"));
+            Router router = new Router();
+            router.on("/files/(.+)", new FileEndpoint(root));
+
+            Body body = new Body();
+            HttpServletResponse res = newResponse(body);
+            assertTrue(router.dispatch(newRequest("GET", "/files/a.txt"),
+                res));
+            assertEquals("0123456789", body.toString());
+            verify(res).setContentLengthLong(10);
+            verify(res).setHeader("Accept-Ranges", "bytes");
+            org.mockito.ArgumentCaptor<String> etag =
+                org.mockito.ArgumentCaptor.forClass(String.class);
+            verify(res).setHeader(eq("ETag"), etag.capture());
+
+            HttpServletRequest req = newRequest("GET", "/files/a.txt");
+            when(req.getHeader("If-None-Match")).thenReturn(etag.getValue());
+            res = newResponse(new Body());
+            assertTrue(router.dispatch(req, res));
+            verify(res).setStatus(304);
+            verify(res, never()).getOutputStream();
+
+            ChannelBody channel = new ChannelBody();
+            req = newRequest("GET", "/files/a.txt");
+            when(req.getHeader("Range")).thenReturn("bytes=2-4");
+            res = newResponse(channel);
+            assertTrue(router.dispatch(req, res));
+            assertEquals("234", channel.toString());
+            assertTrue(channel.usedChannel);
+            verify(res).setStatus(206);
+            verify(res).setHeader("Content-Range", "bytes 2-4/10");
+
+            // A weak or stale If-Range gets the whole file.
+            for (String ifRange : new String[] {"W/" + etag.getValue(),
+                "\"stale\"", "W/\"stale\""}) {
+                body = new Body();
+                req = newRequest("GET", "/files/a.txt");
+                when(req.getHeader("Range")).thenReturn("bytes=2-4");
+                when(req.getHeader("If-Range")).thenReturn(ifRange);
+                res = newResponse(body);
+                assertTrue(router.dispatch(req, res));
+                assertEquals(ifRange, "0123456789", body.toString());
+                verify(res, never()).setStatus(206);
+            }
+            req = newRequest("GET", "/files/a.txt");
+            when(req.getHeader("Range")).thenReturn("bytes=2-4");
+            when(req.getHeader("If-Range")).thenReturn(etag.getValue());
+            res = newResponse(new Body());
+            assertTrue(router.dispatch(req, res));
+            verify(res).setStatus(206);
+
+            // Containers with sendfile send the file themselves.
+            req = newRequest("GET", "/files/a.txt");
+            when(req.getHeader("Range")).thenReturn("bytes=2-4");
+            when(req.getAttribute("org.apache.tomcat.sendfile.support"))
+                .thenReturn(Boolean.TRUE);
+            res = newResponse(new Body());
+            assertTrue(router.dispatch(req, res));
+            verify(req).setAttribute("org.apache.tomcat.sendfile.filename",
+                file.toRealPath().toString());
+            verify(req).setAttribute("org.apache.tomcat.sendfile.start", 2L);
+            verify(req).setAttribute("org.apache.tomcat.sendfile.end", 5L);
+            verify(res).setContentLengthLong(3);
+            verify(res, never()).getOutputStream();
+
+            // Caches need the bytes, so they hide sendfile support.
+            Router cached = new Router();
+            cached.on("/files/(.+)", new CachingEndpoint.Builder(
+                new FileEndpoint(root)).build());
+            for (int i = 0; i < 2; ++i) {
+                req = newRequest("GET", "/files/a.txt");
+                when(req.getAttribute("org.apache.tomcat.sendfile.support"))
+                    .thenReturn(Boolean.TRUE);
+                assertEquals("0123456789", getBody(cached, req));
+                verify(req, never()).setAttribute(
+                    eq("org.apache.tomcat.sendfile.filename"), any());
+            }
+
+            // Without sendfile or a channel, big files are copied in chunks.
+            byte[] big = new byte[200000];
+            new java.util.Random(1).nextBytes(big);
+            java.nio.file.Files.write(file, big);
+            body = new Body();
+            assertTrue(router.dispatch(newRequest("GET", "/files/a.txt"),
+                newResponse(body)));
+            assertArrayEquals(big, body.bytes.toByteArray());
+
+            for (String path : new String[] {"/files/missing",
+                "/files/../" + secret.getFileName(), "/files/."}) {
+                res = newResponse(new Body());
+                router.dispatch(newRequest("GET", path), res);
+                verify(res).sendError(404);
+            }
+        } finally {
+            java.nio.file.Files.delete(file);
+            java.nio.file.Files.delete(secret);
+            java.nio.file.Files.delete(root);
+        }
+    }
+
+    @Test
+    public void testParseRange() {
+        assertArrayEquals(new long[] {0, 9},
+            FileEndpoint.parseRange("bytes=0-", 10));
+        assertArrayEquals(new long[] {7, 9},
+            FileEndpoint.parseRange("bytes=-3", 10));
+        assertArrayEquals(new long[] {5, 9},
+            FileEndpoint.parseRange("bytes=5-100", 10));
+        assertEquals(0, FileEndpoint.parseRange("bytes=10-", 10).length);
+        assertNull(FileEndpoint.parseRange("bytes=0-1,3-4", 10));
+        assertNull(FileEndpoint.parseRange("bytes=4-2", 10));
+        assertNull(FileEndpoint.parseRange("lines=1-2", 10));
+    }
+
+    @Test
+    public void testConcurrencyLimits() throws Exception {
+        final Router router = new Router();
+        final HttpServletResponse inner = newResponse();
+        final int[] calls = new int[1];
+        router.on("/slow", new Endpoint() {
+            @Override
+            public void handle(HttpServletRequest req,
+                HttpServletResponse res, Matcher matcher) {
+
+                // A second request while this one is in flight.
+                if (++calls[0] == 1) {
+                    assertTrue(router.dispatch(newRequest("/slow"), inner));
+                }
+            }
+        });
+        router.enableConcurrencyLimits(1, 1);
+        assertTrue(router.dispatch(newRequest("/slow"), newResponse()));
+        assertEquals(1, calls[0]);
+        verify(inner).setHeader("Retry-After", "1");
+        verify(inner).sendError(503);
+
+        final String[] overloaded = new String[1];
+        router.setOverloadHandler(new OverloadHandler() {
+            @Override
+            public void handle(HttpServletRequest req,
+                HttpServletResponse res, String regex) {
+
+                overloaded[0] = regex;
+            }
+        });
+        calls[0] = 0;
+        assertTrue(router.dispatch(newRequest("/slow"), newResponse()));
+        assertEquals("/slow", overloaded[0]);
+        RouteLimit limit = router.concurrencyLimits().get(0);
+        assertEquals(1, limit.limit());
+        assertEquals(0, limit.inFlight());
+        assertEquals(2, limit.rejected());
+    }
+
+    @Test
+    public void testConcurrencyLimitAdapts() {
+        ConcurrencyLimit limit = new ConcurrencyLimit(4, 8);
+        // Busy and fast: grows to the maximum.
+        for (int i = 0; i < 20; ++i) {
+            for (int j = 0; j < 4; ++j) {
+                assertTrue(limit.tryAcquire());
+            }
+            for (int j = 0; j < 4; ++j) {
+                limit.release(1000);
+            }
+        }
+        assertEquals(8, limit.limit());
+        // Slow: backs off once per round trip, but not below one.
+        for (int i = 0; i < 200; ++i) {
+            assertTrue(limit.tryAcquire());
+            limit.release(10000);
+        }
+        assertEquals(1, limit.limit());
+        assertTrue(limit.tryAcquire());
+        assertFalse(limit.tryAcquire());
+        assertEquals(1, limit.rejected.sum());
+        limit.release(1000);
+        assertEquals(0, limit.inFlight());
+    }
+
+    @Test
+    public void testConcurrencyLimitToleratesVaryingLatency() {
+        ConcurrencyLimit limit = new ConcurrencyLimit(20, 500);
+        java.util.Random random = new java.util.Random(42);
+        // Eight requests in flight, each taking 1 to 4 ms, with no queueing.
+        for (int i = 0; i < 8; ++i) {
+            assertTrue(limit.tryAcquire());
+        }
+        for (int i = 0; i < 4800; ++i) {
+            limit.release(1000000 + random.nextInt(3000000));
+            assertTrue(limit.tryAcquire());
+        }
+        assertEquals(20, limit.limit());
+        assertEquals(0, limit.rejected.sum());
+    }
 }
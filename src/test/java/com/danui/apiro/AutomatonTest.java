@@ -0,0 +1,103 @@
+package com.danui.apiro;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class AutomatonTest {
+
+    private static final String[] REGEXES = {
+        "/doc/?",
+        "/doc/([^/]+)/?",
+        "/doc/(?<id>[^/]+)/page/(?<pg>[0-9]{1,})/?",
+        "/doc/(S[0-9]{6})/page/([0-9]{1,})?",
+        "/a(b|bc)(c?)",
+        "/x(a*)(a*?)",
+        "/y((?:ab)+)(b*)",
+        "/z(a|ab)(c|bcd)(d*)",
+        "/w(\\d{2,3}?)(\\d*)",
+        "/v(.)(.*)",
+        "/u[^a-c\\-]+(x)?",
+        "/t\\.json|/t\\.xml",
+        "/s((a)|b)+",
+    };
+
+    private static final String[] PATHS = {
+        "", "/", "/doc", "/doc/", "/doc/S1", "/doc/S1/", "/doc//",
+        "/doc/S123456/page/42", "/doc/S123456/page/", "/doc/x/page/7/",
+        "/abc", "/ab", "/abcc", "/xaaa", "/x", "/yababb", "/yab",
+        "/zabcd", "/zabcdd", "/w12345", "/w12", "/w1", "/v\u00e9t\u00e9",
+        "/v\ud83d\ude00", "/v\n", "/udef-", "/udefx", "/t.json", "/t.xml",
+        "/t.txt", "/sabab", "/sba",
+    };
+
+    @Test
+    public void testMatchesLikeMatcher() {
+        RegexParser.Node[] trees = new RegexParser.Node[REGEXES.length];
+        for (int i = 0; i < REGEXES.length; ++i) {
+            trees[i] = RegexParser.parse(REGEXES[i]);
+            assertNotNull(REGEXES[i], trees[i]);
+        }
+        Automaton automaton = new Automaton(trees);
+        int[] groups = new int[16];
+        for (String path : PATHS) {
+            int expected = -1;
+            Matcher matcher = null;
+            for (int i = 0; i < REGEXES.length && expected < 0; ++i) {
+                matcher = Pattern.compile(REGEXES[i]).matcher(path);
+                if (matcher.matches()) {
+                    expected = i;
+                }
+            }
+            assertEquals(path, expected, automaton.match(path, groups));
+            if (expected < 0 || !automaton.hasExactGroups(expected)) {
+                continue;
+            }
+            for (int g = 0; g <= matcher.groupCount(); ++g) {
+                assertEquals(path + " start " + g, matcher.start(g),
+                    groups[2 * g]);
+                assertEquals(path + " end " + g, matcher.end(g),
+                    groups[2 * g + 1]);
+            }
+        }
+    }
+
+    @Test
+    public void testMatchSeeds() {
+        RegexParser.Node[] trees = new RegexParser.Node[REGEXES.length];
+        for (int i = 0; i < REGEXES.length; ++i) {
+            trees[i] = RegexParser.parse(REGEXES[i]);
+        }
+        Automaton automaton = new Automaton(trees);
+        int[] groups = new int[16];
+        assertEquals(1, automaton.match("/doc/S1", groups));
+        assertEquals(1, automaton.match("/doc/S1", groups,
+            new int[] {1, 2, 3}, 3));
+        assertEquals("S1", "/doc/S1".substring(groups[2], groups[3]));
+        assertEquals(-1, automaton.match("/doc/S1", groups,
+            new int[] {0, 2, 3}, 3));
+        assertEquals(-1, automaton.match("/doc/S1", groups,
+            new int[] {1}, 0));
+    }
+
+    @Test
+    public void testGroupsLikeMatcher() {
+        assertTrue(RegexParser.groupsLikeMatcher(
+            RegexParser.parse("/doc/(?<id>[^/]+)/page/([0-9]+)/?")));
+        assertTrue(RegexParser.groupsLikeMatcher(
+            RegexParser.parse("/y((?:ab)+)(b*)")));
+        assertFalse(RegexParser.groupsLikeMatcher(
+            RegexParser.parse("/s((a)|b)+")));
+        assertFalse(RegexParser.groupsLikeMatcher(
+            RegexParser.parse("/r(?:a?)*(b)")));
+    }
+
+    @Test
+    public void testUnsupportedSyntax() {
+        for (String regex : new String[] {"^/doc$", "/(?i)doc", "/(a)\\1",
+                "/a++", "/(?=a)a", "/[a-z&&[^b]]", "/\\bdoc", "/\\Qa\\E"}) {
+            assertNull(regex, RegexParser.parse(regex));
+        }
+    }
+}
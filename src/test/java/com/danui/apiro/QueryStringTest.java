@@ -71,6 +71,8 @@ public class QueryStringTest {
         assertFalse(qs.has("x"));
         assertFalse(qs.has("y"));
         assertFalse(qs.has("z"));
+        assertFalse(qs.has(null));
+        assertFalse(qs.hasValue(null));
     }
 
     @Test
@@ -182,6 +184,38 @@ public class QueryStringTest {
         assertEquals(21474836470L, qs.getLong("t3"));
     }
 
+    @Test
+    public void testGetWithDefault() {
+        QueryString qs = QueryString.parse(
+            "t0=%2D7&t1=21474836470&f0=1.3&f1=abc&f2&f3=-");
+        assertEquals(-7, qs.getInt("t0", 42));
+        assertEquals(42, qs.getInt("t1", 42));
+        assertEquals(21474836470L, qs.getLong("t1", 42L));
+        for (String key : Arrays.asList("f0", "f1", "f2", "f3", "none")) {
+            assertEquals(key, 42, qs.getInt(key, 42));
+            assertEquals(key, 42L, qs.getLong(key, 42L));
+        }
+    }
+
+    @Test
+    public void testTryGetLong() {
+        QueryString qs = QueryString.parse(
+            "t0=9223372036854775807&f0=9223372036854775808&f1");
+        QueryString.LongResult result = new QueryString.LongResult();
+        assertSame(result, qs.tryGetLong("t0", result));
+        assertTrue(result.isPresent());
+        assertEquals(Long.MAX_VALUE, result.getAsLong());
+        assertFalse(qs.tryGetLong("f0", result).isPresent());
+        assertEquals(-1L, result.orElse(-1L));
+        assertFalse(qs.tryGetLong("f1", result).isPresent());
+        assertFalse(qs.tryGetLong("none", result).isPresent());
+    }
+
+    @Test(expected = WrongParameterTypeException.class)
+    public void testGetIntegerWrongType() throws Exception {
+        QueryString.parse("k=abc").getInteger("k");
+    }
+
     @Test
     public void testGetBoolean() throws Exception {
         for (String val : Arrays.asList("true", "TRUE", "True")) {
@@ -215,4 +249,222 @@ public class QueryStringTest {
         }
 
     }
+
+    @Test
+    public void testRepeatedKeyLastWins() throws Exception {
+        QueryString qs = QueryString.parse("k=1&k=2&k");
+        assertTrue(qs.has("k"));
+        assertFalse(qs.hasValue("k"));
+        qs = QueryString.parse("k=1&k=2");
+        assertEquals("2", qs.getString("k"));
+    }
+
+    @Test
+    public void testGetAll() throws Exception {
+        QueryString qs = QueryString.parse(
+            "tag=a&id=3&tag&t%61g=b+c&id=-1&tag=d");
+        assertArrayEquals(new String[] {"a", "b c", "d"}, qs.getAll("tag"));
+        assertArrayEquals(new int[] {3, -1}, qs.getIntArray("id"));
+        assertArrayEquals(new long[] {3L, -1L}, qs.getLongArray("id"));
+        assertEquals(0, qs.getAll("none").length);
+        assertEquals(0, qs.getIntArray("none").length);
+        assertEquals("d", qs.getString("tag"));
+    }
+
+    @Test(expected = WrongParameterTypeException.class)
+    public void testGetIntArrayWrongType() throws Exception {
+        QueryString.parse("id=1&id=x&id=3").getIntArray("id");
+    }
+
+    @Test
+    public void testEncodedKeysAndValues() throws Exception {
+        QueryString qs = QueryString.parse("a%20b=c+d&e%3D=%26&f=");
+        assertTrue(qs.has("a b"));
+        assertFalse(qs.has("a%20b"));
+        assertEquals("c d", qs.getString("a b"));
+        assertEquals("&", qs.getString("e="));
+        assertTrue(qs.has("f"));
+        assertFalse(qs.hasValue("f"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTooManyEquals() {
+        QueryString.parse("a=1&x=y=z");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBadEscape() {
+        QueryString.parse("a=%zz");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testIncompleteEscape() {
+        QueryString.parse("a=%2");
+    }
+
+    @Test
+    public void testDecodeLikeUrlDecoder() throws Exception {
+        String[] cases = {"", "plain", "a+b", "%41%42c", "caf%C3%A9",
+            "%E2%82%AC+%F0%9F%98%80", "%C3", "%E2%82x", "%FF%41",
+            "%ED%A0%80", "%C0%AF", "%F4%90%80%80", "x%C3%A9%C3", "\u00e9+%2B"};
+        for (String c : cases) {
+            assertEquals(c, java.net.URLDecoder.decode(c, "UTF-8"),
+                UriDecoder.decode(c, 0, c.length()));
+        }
+        assertEquals("b c", UriDecoder.decode("a=b+c&", 2, 5));
+    }
+
+    private static final QuerySchema TIME = new QuerySchema.Builder()
+        .addLong("timestamp")
+        .addInt("year")
+        .addInt("month")
+        .addInt("day")
+        .addInt("limit", 20)
+        .addString("q")
+        .addBoolean("desc", false)
+        .addFlag("verbose")
+        .addForm("timestamp")
+        .addForm("year", "month", "day")
+        .addForm()
+        .build();
+
+    @Test
+    public void testSchemaForms() throws Exception {
+        QueryValues qs = TIME.decode("timestamp=1400000000000&limit=5");
+        assertEquals(0, qs.form());
+        assertEquals(1400000000000L, qs.getLong("timestamp"));
+        assertEquals(5, qs.getInt(TIME.indexOf("limit")));
+        qs = TIME.decode("year=2014&month=5&day=%32%31&other=x");
+        assertEquals(1, qs.form());
+        assertEquals(21, qs.getInt("day"));
+        assertEquals(20, qs.getInt("limit"));
+        assertFalse(qs.has("limit"));
+        assertEquals(2, TIME.decode(null).form());
+        for (String bad : new String[] {"year=2014", "timestamp=1&day=2"}) {
+            try {
+                TIME.decode(bad);
+                fail(bad);
+            } catch (MissingParameterException e) {
+                // Expected.
+            }
+        }
+    }
+
+    @Test
+    public void testSchemaValues() throws Exception {
+        QueryValues qs = new QueryValues();
+        assertSame(qs, TIME.decode("q=a+b%21&desc=TRUE&verbose&limit=1"
+            + "&limit=2", qs));
+        assertEquals("a b!", qs.getString("q"));
+        assertTrue(qs.getBoolean("desc"));
+        assertTrue(qs.getBoolean("verbose"));
+        assertEquals(2, qs.getInt("limit"));
+        TIME.decode("verbose=false&q", qs);
+        assertFalse(qs.getBoolean("verbose"));
+        assertFalse(qs.getBoolean("desc"));
+        assertTrue(qs.has("q"));
+        assertFalse(qs.hasValue(TIME.indexOf("q")));
+        try {
+            qs.getString("q");
+            fail();
+        } catch (MissingParameterException e) {
+            // Expected.
+        }
+        try {
+            qs.getInt("q");
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void testSchemaErrors() throws Exception {
+        try {
+            TIME.decode("limit=99999999999");
+            fail();
+        } catch (WrongParameterTypeException e) {
+            assertEquals("Value '99999999999' for key 'limit' is not an "
+                + "Integer", e.getMessage());
+        }
+        try {
+            TIME.decode("desc=maybe");
+            fail();
+        } catch (WrongParameterTypeException e) {
+            // Expected.
+        }
+        QuerySchema strict = new QuerySchema.Builder()
+            .addString("q")
+            .rejectUnknown()
+            .build();
+        assertEquals("x", strict.decode("q=x").getString("q"));
+        try {
+            strict.decode("q=x&r%20s=y");
+            fail();
+        } catch (UnknownParameterException e) {
+            assertEquals("Query parameter 'r s' is not allowed",
+                e.getMessage());
+        }
+        try {
+            new QuerySchema.Builder().addString("q").addForm("r");
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void testQueryStringCache() throws Exception {
+        QueryStringCache cache = new QueryStringCache(64, 16);
+        QueryString first = cache.parse("page=2&limit=50");
+        // Cached on the second sighting, and shared from then on.
+        QueryString second = cache.parse("page=2&limit=50");
+        assertNotSame(first, second);
+        assertSame(second, cache.parse("page=2&limit=50"));
+        assertEquals(2, second.getInteger("page"));
+        assertEquals(1, cache.stats().hits());
+        assertEquals(2, cache.stats().misses());
+        String tooLong = "q=aaaaaaaaaaaaaaaaaaaa";
+        assertNotSame(cache.parse(tooLong), cache.parse(tooLong));
+        assertNotSame(cache.parse(tooLong), cache.parse(tooLong));
+        assertEquals(1, cache.stats().hits());
+        assertTrue(cache.parse(null).isEmpty());
+        try {
+            cache.parse("a=b=c");
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void testSharedQueryString() throws Exception {
+        final QueryString qs = QueryString.parse("a=%31&b=%32&c+d=3");
+        Thread[] threads = new Thread[4];
+        final boolean[] ok = new boolean[threads.length];
+        for (int i = 0; i < threads.length; ++i) {
+            final int n = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        boolean result = true;
+                        for (int j = 0; j < 1000; ++j) {
+                            result &= qs.getInteger("a") == 1
+                                && qs.getString("b").equals("2")
+                                && qs.getInteger("c d") == 3;
+                        }
+                        ok[n] = result;
+                    } catch (Exception e) {
+                        ok[n] = false;
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (int i = 0; i < threads.length; ++i) {
+            threads[i].join();
+            assertTrue(ok[i]);
+        }
+    }
 }